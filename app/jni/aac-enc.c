@@ -28,7 +28,7 @@ void throwException(JNIEnv* env, const char *name, const char *msg)
 
 /* internal storage */
 
-FILE* outfile;
+FILE* outfile = NULL;
 
 VO_AUDIO_CODECAPI codec_api;
 VO_HANDLE handle = 0;
@@ -37,22 +37,20 @@ VO_MEM_OPERATOR mem_operator = { 0 };
 VO_CODEC_INIT_USERDATA user_data;
 AACENC_PARAM params = { 0 };
 
-/* java native functions */
-
-void
-Java_com_todoroo_aacenc_AACEncoder_init( JNIEnv* env,
-                                         jobject thiz,
-                                         int bitrate,
-                                         int channels,
-                                         int sampleRate,
-                                         int bitsPerSample,
-                                         jstring outputFile)
+/* returns 0 if the encoder was initialized; otherwise an exception is thrown */
+int
+init_codec( JNIEnv* env,
+            int bitrate,
+            int channels,
+            int sampleRate,
+            int bitsPerSample,
+            int adtsUsed)
 {
 
   if (bitsPerSample != 16) {
     throwException(env, "java/lang/IllegalArgumentException", 
                    "Unsupported sample depth. Only 16 bits per sample is supported");
-    return;
+    return -1;
   }
   
   voGetAACEncAPI(&codec_api);
@@ -69,11 +67,32 @@ Java_com_todoroo_aacenc_AACEncoder_init( JNIEnv* env,
   params.sampleRate = sampleRate;
   params.bitRate = bitrate;
   params.nChannels = channels;
-  params.adtsUsed = 1;
+  params.adtsUsed = adtsUsed;
 
   if (codec_api.SetParam(handle, VO_PID_AAC_ENCPARAM, &params) != VO_ERR_NONE) {
     throwException(env, "java/lang/IllegalArgumentException", 
                    "Unable to set encoding parameters");
+    return -1;
+  }
+
+  LOG("initialized handle: %x", handle);
+
+  return 0;
+}
+
+/* java native functions */
+
+void
+Java_com_todoroo_aacenc_AACEncoder_init( JNIEnv* env,
+                                         jobject thiz,
+                                         int bitrate,
+                                         int channels,
+                                         int sampleRate,
+                                         int bitsPerSample,
+                                         jstring outputFile)
+{
+
+  if (init_codec(env, bitrate, channels, sampleRate, bitsPerSample, 1) != 0) {
     return;
   }
 
@@ -82,7 +101,19 @@ Java_com_todoroo_aacenc_AACEncoder_init( JNIEnv* env,
   LOG("writing to (ab) %s", output_file);
   (*env)->ReleaseStringUTFChars(env, outputFile, output_file);
 
-  LOG("initialized handle: %x", handle);
+}
+
+void
+Java_com_todoroo_aacenc_AACEncoder_initRaw( JNIEnv* env,
+                                            jobject thiz,
+                                            int bitrate,
+                                            int channels,
+                                            int sampleRate,
+                                            int bitsPerSample)
+{
+
+  outfile = NULL;
+  init_codec(env, bitrate, channels, sampleRate, bitsPerSample, 0);
 
 }
 
@@ -137,12 +168,63 @@ Java_com_todoroo_aacenc_AACEncoder_encode( JNIEnv* env,
   free(outbuf);
 }
 
+jint
+Java_com_todoroo_aacenc_AACEncoder_encodeFrame( JNIEnv* env,
+                                                jobject thiz,
+                                                jbyteArray inputArray,
+                                                jbyteArray outputArray)
+{
+
+  int readSize = params.nChannels * 2 * 1024;
+  int inputSize = (*env)->GetArrayLength(env, inputArray);
+  int outputSize = (*env)->GetArrayLength(env, outputArray);
+
+  if (inputSize < readSize) {
+    return 0;
+  }
+
+  jbyte* buffer = (*env)->GetByteArrayElements(env, inputArray, (jboolean) 0);
+  jbyte* outbuf = (*env)->GetByteArrayElements(env, outputArray, (jboolean) 0);
+
+  VO_CODECBUFFER input = { 0 }, output = { 0 };
+  VO_AUDIO_OUTPUTINFO output_info = { 0 };
+
+  input.Buffer = (VO_PBYTE) buffer;
+  input.Length = readSize;
+  codec_api.SetInputData(handle, &input);
+
+  output.Buffer = (VO_PBYTE) outbuf;
+  output.Length = outputSize;
+
+  int status = codec_api.GetOutputData(handle, &output, &output_info);
+
+  (*env)->ReleaseByteArrayElements(env, inputArray, buffer, JNI_ABORT);
+  (*env)->ReleaseByteArrayElements(env, outputArray, outbuf, 0);
+
+  if (status == VO_ERR_INPUT_BUFFER_SMALL) {
+    return 0;
+  }
+
+  if (status != VO_ERR_NONE) {
+    char message[100];
+    sprintf(message, "Unable to encode frame: %x", status);
+    throwException(env, "java/lang/RuntimeException", message);
+    return -1;
+  }
+
+  LOG("encoded access unit: %d", output.Length);
+  return output.Length;
+}
+
 void
 Java_com_todoroo_aacenc_AACEncoder_uninit( JNIEnv* env,
                                            jobject thiz)
 {
 
-  fclose(outfile);
+  if (outfile != NULL) {
+    fclose(outfile);
+    outfile = NULL;
+  }
   codec_api.Uninit(handle);
 
 }
@@ -15,7 +15,10 @@ import android.widget.Toast;
 
 import com.google.cloud.speech.v1.nano.InitialRecognizeRequest;
 import com.peppermint.app.cloud.apis.speech.GoogleSpeechRecognizeClient;
+import com.peppermint.app.cloud.apis.speech.MintFileRecognizer;
+import com.peppermint.app.cloud.apis.speech.TranscriptionRegistry;
 import com.peppermint.app.cloud.senders.SenderPreferences;
+import com.peppermint.app.cloud.senders.UploadPrefetcher;
 import com.peppermint.app.data.Chat;
 import com.peppermint.app.data.ContactRaw;
 import com.peppermint.app.data.Recording;
@@ -24,14 +27,12 @@ import com.peppermint.app.events.RecorderEvent;
 import com.peppermint.app.tracking.TrackerManager;
 import com.peppermint.app.ui.base.views.CustomToast;
 import com.peppermint.app.utils.ExtendedAudioRecorder;
+import com.peppermint.app.utils.MintFileWriter;
 import com.peppermint.app.utils.NoAccessToExternalStorageException;
+import com.peppermint.app.utils.PcmFrameRingBuffer;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import io.grpc.Status;
 
@@ -42,18 +43,9 @@ public class RecordService extends Service {
 
     private static final String TAG = RecordService.class.getSimpleName();
 
-    /** Intent action to pop recording transcription. **/
-    public static final String ACTION_POP_TRANSCRIPTION = "com.peppermint.app.RecordService.POP_TRANSCRIPTION";
-
     /** Intent action to start recording. **/
     public static final String ACTION_START_RECORDING = "com.peppermint.app.RecordService.START_RECORDING";
 
-    /**
-        Intent extra key for a string with the file path for the transcribed file.
-        This should be supplied for the POP_TRANSCRIPTION action.
-     **/
-    public static final String INTENT_DATA_TRANSCRIPTION_FILEPATH = TAG + "_TranscriptionFilePath";
-
     /**
         Intent extra key for a string with the filename prefix for the recorded file.
         This should be supplied for the START_RECORDING action.
@@ -78,7 +70,6 @@ public class RecordService extends Service {
 
     private float mMaxAmplitude;
     private Map<String, GoogleSpeechRecognizeClient> mSpeechRecognizers = new ArrayMap<>();
-    private Map<String, GoogleSpeechRecognizeClient.RecognizeResponseWrapper> mTranscriptionResults = new ConcurrentHashMap<>();
 
     /**
      * The service binder used by external components to interact with the service.
@@ -188,7 +179,10 @@ public class RecordService extends Service {
     }
 
     private Recording newRecording(ExtendedAudioRecorder recorder) {
-        final Object[] transcriptionData = GoogleSpeechRecognizeClient.getBestTranscriptionResults(mTranscriptionResults.get(recorder.getFilePath()));
+        Object[] transcriptionData = TranscriptionRegistry.get(recorder.getFilePath());
+        if(transcriptionData == null) {
+            transcriptionData = GoogleSpeechRecognizeClient.getBestTranscriptionResults(null);
+        }
         final Recording recording = new Recording(recorder.getFilePath(), recorder.getFullDuration(), recorder.getFullSize(), false);
         recording.setTranscription((String) transcriptionData[0]);
         recording.setTranscriptionConfidence((float) transcriptionData[1]);
@@ -199,7 +193,7 @@ public class RecordService extends Service {
 
     private final ExtendedAudioRecorder.Listener mAudioRecorderListener = new ExtendedAudioRecorder.Listener() {
 
-        private FileOutputStream mMintOutStream;
+        private MintFileWriter mMintWriter;
 
         @Override
         public void onStart(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp) {
@@ -212,7 +206,13 @@ public class RecordService extends Service {
                 mIsInForegroundMode = true;
             }
 
-            PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_START, newRecording(mRecorder), mChat, amplitude, null);
+            // overlap the upload with the recording: get the upload URL while the user is still talking
+            final Recording recording = newRecording(mRecorder);
+            if(mChat != null) {
+                UploadPrefetcher.prefetchSignedUrl(RecordService.this, filePath, recording.getContentType());
+            }
+
+            PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_START, recording, mChat, amplitude, null);
         }
 
         @Override
@@ -237,7 +237,15 @@ public class RecordService extends Service {
 
             finishSpeechToText(filePath);
 
-            PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_STOP, newRecording(mRecorder), mChat, amplitude, null);
+            // upload the finished recording right away (or discard the prefetch if the recording was discarded)
+            final Recording recording = newRecording(mRecorder);
+            if(recording.getValidatedFile() != null) {
+                UploadPrefetcher.upload(RecordService.this, filePath);
+            } else {
+                UploadPrefetcher.discard(filePath);
+            }
+
+            PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_STOP, recording, mChat, amplitude, null);
         }
 
         @Override
@@ -248,6 +256,7 @@ public class RecordService extends Service {
             }
 
             finishSpeechToText(filePath);
+            UploadPrefetcher.discard(filePath);
 
             PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_ERROR, newRecording(mRecorder), mChat, 0, t);
         }
@@ -263,36 +272,33 @@ public class RecordService extends Service {
             try {
                 final GoogleSpeechRecognizeClient client = new GoogleSpeechRecognizeClient(RecordService.this, filePath);
                 client.setRecognitionListener(mSpeechRecognitionListener);
+                TranscriptionRegistry.expect(filePath);
                 client.startSending(InitialRecognizeRequest.LINEAR16, sampleRate, transcriptionLanguage);
                 mSpeechRecognizers.put(filePath, client);
             } catch (Exception e) {
+                TranscriptionRegistry.complete(filePath, null);
                 TrackerManager.getInstance(RecordService.this).logException(e);
             }
 
 
             try {
-                final File mintFile = new File(filePath + ".mint");
-                mMintOutStream = new FileOutputStream(mintFile);
-                mMintOutStream.write(ByteBuffer.allocate(4).putInt(sampleRate).array());
-                mMintOutStream.write(ByteBuffer.allocate(4).putInt(transcriptionLanguage.length()).array());
-                mMintOutStream.write(transcriptionLanguage.getBytes("UTF-8"));
-            } catch (java.io.IOException e) {
+                mMintWriter = new MintFileWriter(filePath);
+                mMintWriter.start(sampleRate, transcriptionLanguage);
+            } catch (IOException e) {
+                mMintWriter = null;
                 TrackerManager.getInstance(RecordService.this).logException(e);
             }
         }
 
         @Override
-        public void onRecorderData(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp, byte[] bytes) {
+        public void onRecorderData(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp, PcmFrameRingBuffer.Frame frame) {
             if(!mPreferences.isAutomaticTranscription()) {
                 return;
             }
 
-            if(mMintOutStream != null) {
-                try {
-                    mMintOutStream.write(bytes);
-                } catch (IOException e) {
-                    TrackerManager.getInstance(RecordService.this).logException(e);
-                }
+            if(mMintWriter != null) {
+                // just queues the frame; written on the writer thread
+                mMintWriter.write(frame);
             }
 
             final GoogleSpeechRecognizeClient client = mSpeechRecognizers.get(filePath);
@@ -302,26 +308,27 @@ public class RecordService extends Service {
             }
 
             try {
-                client.recognize(bytes);
+                client.recognize(frame);
             } catch (Throwable e) {
                 TrackerManager.getInstance(RecordService.this).logException(e);
             }
         }
 
         private void finishSpeechToText(String filePath) {
-            if(mMintOutStream != null) {
+            if(mMintWriter != null) {
                 try {
-                    mMintOutStream.flush();
-                    mMintOutStream.close();
+                    mMintWriter.close();
                 } catch (IOException e) {
                     TrackerManager.getInstance(RecordService.this).logException(e);
                 }
-                mMintOutStream = null;
+                mMintWriter = null;
             }
 
             final GoogleSpeechRecognizeClient client = mSpeechRecognizers.get(filePath);
             if(client == null) {
                 Log.w(TAG, "No SpeechRecognizeClient found for " + filePath);
+                // no live transcription; speculatively start transcribing the recorded file
+                recognizeMintFile(filePath);
                 return;
             }
 
@@ -337,22 +344,33 @@ public class RecordService extends Service {
         @Override
         public void onRecognitionFinished(GoogleSpeechRecognizeClient client, GoogleSpeechRecognizeClient.RecognizeResponseWrapper lastResponse) {
             mSpeechRecognizers.remove(client.getId());
-            if(lastResponse != null) {
-                mTranscriptionResults.put(client.getId(), lastResponse);
-            }
+            TranscriptionRegistry.complete(client.getId(), GoogleSpeechRecognizeClient.getBestTranscriptionResults(lastResponse));
             PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_TRANSCRIPTION, newRecording(mRecorder), mChat, 0, null);
         }
 
         @Override
         public void onRecognitionError(GoogleSpeechRecognizeClient client, Status status, GoogleSpeechRecognizeClient.RecognizeResponseWrapper lastResponse) {
             mSpeechRecognizers.remove(client.getId());
-            if(lastResponse != null) {
-                mTranscriptionResults.put(client.getId(), lastResponse);
-            }
+            TranscriptionRegistry.complete(client.getId(), GoogleSpeechRecognizeClient.getBestTranscriptionResults(lastResponse));
+            // speculatively start transcribing the recorded file (if the recording has finished already)
+            recognizeMintFile(client.getId());
             PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_TRANSCRIPTION, newRecording(mRecorder), mChat, 0, null);
         }
     };
 
+    /**
+     * Starts transcribing the .mint file of the recording in the background, unless the recording
+     * is not valid (e.g. discarded) or the live transcription already got a result.
+     *
+     * @param filePath the recording file path
+     */
+    private void recognizeMintFile(String filePath) {
+        if(new Recording(filePath).getValidatedFile() == null || TranscriptionRegistry.hasTranscription(filePath)) {
+            return;
+        }
+        MintFileRecognizer.recognizeAsync(RecordService.this, filePath + MintFileWriter.EXTENSION);
+    }
+
     /**
      * Async handler to send loudness update events.
      */
@@ -390,11 +408,6 @@ public class RecordService extends Service {
                     Log.e(TAG, e.getMessage(), e);
                     TrackerManager.getInstance(getApplicationContext()).logException(e);
                 }
-            } else if(intent.getAction().compareTo(ACTION_POP_TRANSCRIPTION) == 0 && intent.hasExtra(INTENT_DATA_TRANSCRIPTION_FILEPATH)) {
-                String filePath = intent.getStringExtra(INTENT_DATA_TRANSCRIPTION_FILEPATH);
-                if(!mSpeechRecognizers.containsKey(filePath)) {
-                    popTranscription(filePath, 0, true);
-                }
             }
         }
 
@@ -423,32 +436,6 @@ public class RecordService extends Service {
         super.onDestroy();
     }
 
-    String popTranscription(String filePath, float minConfidence, boolean sendEvent) {
-        if(!mTranscriptionResults.containsKey(filePath)) {
-            if(sendEvent) {
-                PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_TRANSCRIPTION, new Recording(filePath), null, 0, null);
-            }
-            return null;
-        }
-
-        final Object[] transcriptionData = GoogleSpeechRecognizeClient.getBestTranscriptionResults(mTranscriptionResults.get(filePath));
-        mTranscriptionResults.remove(filePath);
-
-        if(sendEvent) {
-            Recording recording = new Recording(filePath);
-            recording.setTranscription((String) transcriptionData[0]);
-            recording.setTranscriptionConfidence((float) transcriptionData[1]);
-            recording.setTranscriptionLanguage((String) transcriptionData[2]);
-            PeppermintEventBus.postRecorderEvent(RecorderEvent.EVENT_TRANSCRIPTION, recording, null, 0, null);
-        }
-
-        if((float) transcriptionData[1] >= minConfidence) {
-            return (String) transcriptionData[0];
-        }
-
-        return null;
-    }
-
     boolean isTranscribing(String filePath) {
         return mSpeechRecognizers.containsKey(filePath);
     }
@@ -478,6 +465,8 @@ public class RecordService extends Service {
         }
 
         mRecorder.setListener(mAudioRecorderListener);
+        // frames may be queued for transcription and for the .mint file at the same time
+        mRecorder.setMaxListenerFrames(GoogleSpeechRecognizeClient.MAX_HELD_FRAMES + MintFileWriter.MAX_HELD_FRAMES);
         mRecorder.start(maxDurationMillis);
     }
 
@@ -166,14 +166,11 @@ public class AuthenticatorUtils {
                 mAccountManager.getUserData(mAccount, AuthenticatorConstants.ACCOUNT_PARAM_ACCOUNT_SERVER_ID),
                 peekAccessToken());
 
-        final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(mContext);
-        databaseHelper.lock();
         try {
             PendingLogoutManager.insert(DatabaseHelper.getInstance(mContext).getWritableDatabase(), pendingLogout);
         } catch (SQLException e) {
             mTrackerManager.logException(e);
         }
-        databaseHelper.unlock();
 
         messagesServiceManager.doPendingLogouts();
 
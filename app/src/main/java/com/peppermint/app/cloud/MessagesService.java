@@ -214,10 +214,7 @@ public class MessagesService extends Service {
             return null;
         }
 
-        DatabaseHelper databaseHelper = DatabaseHelper.getInstance(this);
-        databaseHelper.lock();
-        SQLiteDatabase db = databaseHelper.getWritableDatabase();
-        db.beginTransaction();
+        SQLiteDatabase db = DatabaseHelper.getInstance(this).beginWriteTransaction();
 
         Message message = null;
         try {
@@ -231,7 +228,6 @@ public class MessagesService extends Service {
         }
 
         db.endTransaction();
-        databaseHelper.unlock();
 
         return message;
     }
@@ -439,8 +435,7 @@ public class MessagesService extends Service {
 
     public void onEventMainThread(SenderEvent event) {
         final Message message = event.getSenderTask().getMessage();
-        final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(this);
-        final SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        final SQLiteDatabase db = DatabaseHelper.getInstance(this).getWritableDatabase();
 
         switch (event.getType()) {
             case SenderEvent.EVENT_ERROR:
@@ -480,13 +475,11 @@ public class MessagesService extends Service {
 
         if(event.getType() != SenderEvent.EVENT_CANCELLED &&
                 event.getType() != SenderEvent.EVENT_PROGRESS) {
-            databaseHelper.lock();
             try {
                 MessageManager.update(db, message);
             } catch (SQLException e) {
                 mTrackerManager.logException(e);
             }
-            databaseHelper.unlock();
         }
     }
 
@@ -1,7 +1,6 @@
 package com.peppermint.app.cloud;
 
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.util.Log;
 
@@ -10,7 +9,6 @@ import com.peppermint.app.cloud.apis.data.MessagesResponse;
 import com.peppermint.app.cloud.senders.SenderPreferences;
 import com.peppermint.app.cloud.senders.SenderSupportListener;
 import com.peppermint.app.cloud.senders.SenderSupportTask;
-import com.peppermint.app.data.DatabaseHelper;
 import com.peppermint.app.data.GlobalManager;
 import com.peppermint.app.data.Message;
 import com.peppermint.app.events.PeppermintEventBus;
@@ -21,18 +19,31 @@ import com.peppermint.app.utils.DateContainer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by Nuno Luz on 28-01-2016.
  * <p>
- *     Sync Peppermint messages.
+ *     Sync Peppermint messages.<br />
+ *     Received and sent messages are synced concurrently. For each, the next page is fetched
+ *     while the current one is being persisted.
  * </p>
  */
 public class MessagesSyncTask extends SenderSupportTask {
 
     private static final String TAG = MessagesSyncTask.class.getSimpleName();
 
-    private DatabaseHelper mDatabaseHelper;
+    // amount of pages fetched ahead of the page being persisted (per stream)
+    private static final int PREFETCH_PAGES = 1;
+    // marks the end of a stream of pages
+    private static final MessageListResponse END_OF_PAGES = new MessageListResponse();
+
     private boolean mNeverSyncedBefore = false;
 
     private List<Message> _receivedMessages = new ArrayList<>();
@@ -44,8 +55,6 @@ public class MessagesSyncTask extends SenderSupportTask {
         getIdentity().setContext(context);
         getIdentity().setTrackerManager(TrackerManager.getInstance(context.getApplicationContext()));
         getIdentity().setPreferences(new SenderPreferences(context));
-
-        mDatabaseHelper = DatabaseHelper.getInstance(context);
     }
 
     @Override
@@ -56,7 +65,6 @@ public class MessagesSyncTask extends SenderSupportTask {
         String serverAccountId = getAuthenticationData().getAccountServerId();
         mLocalEmailAddress = getAuthenticationData().getEmail();
 
-        // RECEIVED MESSAGES
         String originalSyncTimestamp = getSenderPreferences().getLastSyncTimestamp();
         if(originalSyncTimestamp == null) {
             mNeverSyncedBefore = true;
@@ -65,89 +73,150 @@ public class MessagesSyncTask extends SenderSupportTask {
             originalSyncTimestamp = weekAgo.toString();
         }
 
-        String syncTimestamp = originalSyncTimestamp;
-        String nextUrl;
-
-        do {
-            MessageListResponse receivedResponse = getPeppermintApi().getMessages(getId().toString(), serverAccountId, syncTimestamp, true);
-
-            int receivedAmount = receivedResponse.getMessages().size();
-            for (int i=0; i<receivedAmount && !isCancelled(); i++) {
-                MessagesResponse messagesResponse = receivedResponse.getMessages().get(i);
-
-                if(mLocalEmailAddress.compareToIgnoreCase(messagesResponse.getRecipientEmail().trim()) != 0) {
-                    getTrackerManager().log("Received wrong message from GCM! Should have gone to email " + messagesResponse.getRecipientEmail());
-                } else {
-
-                    mDatabaseHelper.lock();
-                    SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
-                    db.beginTransaction();
-
-                    try {
-                        Message message = GlobalManager.insertReceivedMessage(getContext(), db, messagesResponse.getRecipientEmail(), messagesResponse.getSenderName(),
-                                messagesResponse.getSenderEmail(), messagesResponse.getAudioUrl(), messagesResponse.getMessageId(), messagesResponse.getTranscription(),
-                                messagesResponse.getCreatedTimestamp(), messagesResponse.getDuration(), messagesResponse.getReadTimestamp());
-                        if (message != null) {
-                            _receivedMessages.add(message);
-                            if(!mNeverSyncedBefore && message.getParameter(Message.PARAM_INSERTED) != null &&
-                                    ((boolean) message.getParameter(Message.PARAM_INSERTED))) {
-                                PeppermintEventBus.postReceiverEvent(mLocalEmailAddress, message);
-                            }
-                        }
-                        db.setTransactionSuccessful();
-                    } catch (Exception e) {
-                        getTrackerManager().logException(e);
-                    } finally {
-                        db.endTransaction();
-                        mDatabaseHelper.unlock();
-                    }
+        // received and sent streams run concurrently
+        // each one has a fetcher that prefetches the next page while the current one is persisted
+        final BlockingQueue<MessageListResponse> receivedQueue = new ArrayBlockingQueue<>(PREFETCH_PAGES);
+        final BlockingQueue<MessageListResponse> sentQueue = new ArrayBlockingQueue<>(PREFETCH_PAGES);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final Future<Void> receivedFetch = executor.submit(new PageFetcher(serverAccountId, originalSyncTimestamp, true, receivedQueue));
+            final Future<Void> sentFetch = executor.submit(new PageFetcher(serverAccountId, originalSyncTimestamp, false, sentQueue));
+            final Future<Void> sentPersist = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    persistPages(sentQueue, false);
+                    return null;
                 }
+            });
+
+            // RECEIVED MESSAGES
+            persistPages(receivedQueue, true);
+
+            // SENT MESSAGES
+            waitFor(sentPersist);
+
+            // if cancelled, the persisters may have stopped while the fetchers are blocked on a full queue
+            if(isCancelled()) {
+                executor.shutdownNow();
+                return;
             }
 
-            nextUrl = receivedResponse.getNextUrl();
-            if (nextUrl != null) {
-                Uri uri = Uri.parse(nextUrl);
-                syncTimestamp = uri.getQueryParameter("since");
+            // propagate HTTP errors
+            waitFor(receivedFetch);
+            waitFor(sentFetch);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        GlobalManager.trimCache(getContext());
+    }
+
+    private void waitFor(Future<Void> future) throws Throwable {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Persists pages taken from the queue until the end of the stream is reached.
+     *
+     * @param queue the queue filled by a {@link PageFetcher}
+     * @param received true if the pages contain received messages; false if they contain sent messages
+     * @throws InterruptedException if the task is cancelled while waiting for a page
+     */
+    private void persistPages(BlockingQueue<MessageListResponse> queue, boolean received) throws InterruptedException {
+        MessageListResponse page = queue.take();
+        while(page != END_OF_PAGES && !isCancelled()) {
+            if(received) {
+                persistReceivedPage(page);
+            } else {
+                persistSentPage(page);
             }
-        } while (nextUrl != null && !isCancelled());
-
-        // SENT MESSAGES
-        syncTimestamp = originalSyncTimestamp;
-
-        do {
-            MessageListResponse sentResponse = getPeppermintApi().getMessages(getId().toString(), serverAccountId, syncTimestamp, false);
-            int sentAmount = sentResponse.getMessages().size();
-            for (int i=0; i<sentAmount && !isCancelled(); i++) {
-                MessagesResponse messagesResponse = sentResponse.getMessages().get(i);
-
-                mDatabaseHelper.lock();
-                SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
-                db.beginTransaction();
-                try {
-                    Message message = GlobalManager.insertSentMessage(getContext(), db, null, messagesResponse.getRecipientEmail(), messagesResponse.getSenderEmail(),
-                            messagesResponse.getAudioUrl(), messagesResponse.getMessageId(), messagesResponse.getTranscription(), messagesResponse.getCreatedTimestamp(),
-                            messagesResponse.getDuration());
-                    if (message != null) {
-                        _sentMessages.add(message);
-                    }
-                    db.setTransactionSuccessful();
-                } catch (Exception e) {
-                    getTrackerManager().logException(e);
-                } finally {
-                    db.endTransaction();
-                    mDatabaseHelper.unlock();
-                }
+            page = queue.take();
+        }
+    }
+
+    private void persistReceivedPage(MessageListResponse receivedResponse) {
+        // discard messages sent to other accounts
+        List<MessagesResponse> receivedList = receivedResponse.getMessages();
+        for (int i=receivedList.size()-1; i>=0; i--) {
+            MessagesResponse messagesResponse = receivedList.get(i);
+            if(messagesResponse.getRecipientEmail() == null || mLocalEmailAddress.compareToIgnoreCase(messagesResponse.getRecipientEmail().trim()) != 0) {
+                getTrackerManager().log("Received wrong message from GCM! Should have gone to email " + messagesResponse.getRecipientEmail());
+                receivedResponse.removeMessage(messagesResponse);
             }
+        }
 
-            nextUrl = sentResponse.getNextUrl();
-            if (nextUrl != null) {
-                Uri uri = Uri.parse(nextUrl);
-                syncTimestamp = uri.getQueryParameter("since");
+        try {
+            List<Message> messages = GlobalManager.insertMessagePage(getContext(), receivedResponse, true);
+            for (Message message : messages) {
+                _receivedMessages.add(message);
+                if (!mNeverSyncedBefore && message.getParameter(Message.PARAM_INSERTED) != null &&
+                        ((boolean) message.getParameter(Message.PARAM_INSERTED))) {
+                    PeppermintEventBus.postReceiverEvent(mLocalEmailAddress, message);
+                }
             }
+        } catch (Exception e) {
+            getTrackerManager().logException(e);
+        }
+    }
+
+    private void persistSentPage(MessageListResponse sentResponse) {
+        try {
+            _sentMessages.addAll(GlobalManager.insertMessagePage(getContext(), sentResponse, false));
+        } catch (Exception e) {
+            getTrackerManager().logException(e);
+        }
+    }
+
+    /**
+     * Fetches all pages of received or sent messages, following the next URL returned by the server,
+     * and puts them in a bounded queue. {@link #END_OF_PAGES} is always put in the queue at the end,
+     * even if an error occurs (in which case the error is thrown by {@link Future#get()}).
+     */
+    private class PageFetcher implements Callable<Void> {
+        private final String mServerAccountId;
+        private final String mSinceTimestamp;
+        private final boolean mReceived;
+        private final BlockingQueue<MessageListResponse> mQueue;
+
+        PageFetcher(String serverAccountId, String sinceTimestamp, boolean received, BlockingQueue<MessageListResponse> queue) {
+            this.mServerAccountId = serverAccountId;
+            this.mSinceTimestamp = sinceTimestamp;
+            this.mReceived = received;
+            this.mQueue = queue;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            String syncTimestamp = mSinceTimestamp;
+            String nextUrl;
 
-        } while (nextUrl != null && !isCancelled());
+            try {
+                do {
+                    MessageListResponse response = getPeppermintApi().getMessages(getId().toString(), mServerAccountId, syncTimestamp, mReceived);
+                    mQueue.put(response);
 
-        GlobalManager.clearCache();
+                    nextUrl = response.getNextUrl();
+                    if (nextUrl != null) {
+                        Uri uri = Uri.parse(nextUrl);
+                        syncTimestamp = uri.getQueryParameter("since");
+                    }
+                } while (nextUrl != null && !isCancelled());
+
+                mQueue.put(END_OF_PAGES);
+            } catch (Exception e) {
+                // discard pending pages to make room for the end of stream marker
+                mQueue.clear();
+                mQueue.offer(END_OF_PAGES);
+                throw e;
+            }
+
+            return null;
+        }
     }
 
     public void onEventMainThread(SignOutEvent event) {
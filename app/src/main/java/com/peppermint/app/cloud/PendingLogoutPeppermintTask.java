@@ -50,9 +50,7 @@ public class PendingLogoutPeppermintTask extends SenderSupportTask {
                      * TODO how to solve this so that the request is always performed? */
                 }
 
-                databaseHelper.lock();
                 PendingLogoutManager.delete(databaseHelper.getWritableDatabase(), pendingLogout.getId());
-                databaseHelper.unlock();
 
                 TrackerManager.getInstance(getContext()).track(TrackerApi.TYPE_EVENT, "Performed Pending Logout for " + pendingLogout.toString(), TAG);
             } catch (Exception e) {
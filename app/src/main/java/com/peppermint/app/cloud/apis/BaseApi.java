@@ -9,7 +9,7 @@ import com.peppermint.app.tracking.TrackerApi;
 import com.peppermint.app.tracking.TrackerManager;
 
 import java.io.Serializable;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -40,8 +40,14 @@ public class BaseApi implements Serializable {
 
         Set<HttpRequest> set = this.mPendingHttpRequests.get(requesterId);
         if (set == null) {
-            set = new HashSet<>();
-            this.mPendingHttpRequests.put(requesterId, set);
+            // the same requester might execute concurrent requests (e.g. the MessagesSyncTask)
+            synchronized (this.mPendingHttpRequests) {
+                set = this.mPendingHttpRequests.get(requesterId);
+                if (set == null) {
+                    set = Collections.newSetFromMap(new ConcurrentHashMap<HttpRequest, Boolean>());
+                    this.mPendingHttpRequests.put(requesterId, set);
+                }
+            }
         }
         set.add(request);
     }
@@ -12,6 +12,7 @@ import com.google.cloud.speech.v1.nano.SpeechGrpc;
 import com.peppermint.app.cloud.rest.HttpJSONResponse;
 import com.peppermint.app.cloud.senders.exceptions.NoInternetConnectionException;
 import com.peppermint.app.tracking.TrackerManager;
+import com.peppermint.app.utils.PcmFrameRingBuffer;
 import com.peppermint.app.utils.Utils;
 
 import java.io.File;
@@ -19,12 +20,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.grpc.ManagedChannel;
 import io.grpc.Status;
@@ -80,6 +83,11 @@ public class GoogleSpeechRecognizeClient {
 
     private static final int BUFFER_SIZE = 2048;
     private static final float BITS_PER_SAMPLE = 16f;
+    // max. amount of audio frames waiting to be sent (about two minutes of 16KHz audio, in 2KB frames)
+    // the recorder thread never blocks, so new frames are only dropped if exceeded
+    private static final int MAX_QUEUED_FRAMES = 1920;
+    /** Max. amount of audio frames held at once (queued plus the one being sent). **/
+    public static final int MAX_HELD_FRAMES = MAX_QUEUED_FRAMES + 1;
 
     private static final List<String> OAUTH2_SCOPES =
             Arrays.asList("https://www.googleapis.com/auth/cloud-platform");
@@ -94,7 +102,8 @@ public class GoogleSpeechRecognizeClient {
     private StreamObserver<RecognizeRequest> mStreamObserver;
     private RecognitionListener mRecognitionListener;
 
-    private BlockingQueue<byte[]> mAudioDataQueue = new LinkedBlockingQueue<>();
+    private BlockingQueue<PcmFrameRingBuffer.Frame> mAudioDataQueue = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+    private final AtomicInteger mDroppedFrameCount = new AtomicInteger();
     private int mEncoding, mSampleRate;
     private String mLanguageCode;
     private Future<?> mSenderFuture;
@@ -103,15 +112,7 @@ public class GoogleSpeechRecognizeClient {
         @Override
         public void run() {
             try {
-                GoogleCredentials creds = GoogleCredentials.fromStream(mContext.getAssets().open(SPEECH_CONFIG_FILE));
-                creds = creds.createScoped(OAUTH2_SCOPES);
-
-                mManagedChannel = OkHttpChannelBuilder.forAddress(SPEECH_HOST, SPEECH_PORT)
-                        .negotiationType(NegotiationType.TLS)
-                        // forcefully disable SSLv3 (mandatory for Android < v5)
-                        .sslSocketFactory(new NoSSLv3SocketFactory())
-                        .intercept(new ClientAuthInterceptor(creds, Executors.newSingleThreadExecutor()))
-                        .build();
+                mManagedChannel = newManagedChannel(mContext);
                 mStub = SpeechGrpc.newStub(mManagedChannel);
                 mStreamObserver = mStub.recognize(new RecognizeStreamObserver());
 
@@ -158,17 +159,25 @@ public class GoogleSpeechRecognizeClient {
                         /* nothing to do here */
                 }
 
+                // the request is serialized by onNext, so both instances can be reused
+                final AudioRequest audio = new AudioRequest();
+                final RecognizeRequest request = new RecognizeRequest();
+                request.audioRequest = audio;
+
                 while(!mFinished) {
                     try {
                         long ms = System.currentTimeMillis();
-                        final byte[] bytes = mAudioDataQueue.take();
-                        AudioRequest audio = new AudioRequest();
-                        audio.content = bytes;
-                        RecognizeRequest request = new RecognizeRequest();
-                        request.audioRequest = audio;
-                        mStreamObserver.onNext(request);
+                        final PcmFrameRingBuffer.Frame frame = mAudioDataQueue.take();
+                        try {
+                            audio.content = frame.getData();
+                            mStreamObserver.onNext(request);
+                        } finally {
+                            audio.content = null;
+                            frame.release();
+                        }
+                        // keep the real-time pace, unless there's a backlog to flush (e.g. after a network stall)
                         long realWait = waitingMs - (System.currentTimeMillis() - ms);
-                        if(realWait > 0) {
+                        if(realWait > 0 && mAudioDataQueue.isEmpty()) {
                             Thread.sleep(realWait);
                         }
                     } catch (InterruptedException e) {
@@ -182,8 +191,15 @@ public class GoogleSpeechRecognizeClient {
             // mark the end of requests
             mStreamObserver.onCompleted();
 
-            if(mAudioDataQueue != null) {
-                mAudioDataQueue.clear();
+            // return all pending frames to the recorder
+            PcmFrameRingBuffer.Frame frame;
+            while((frame = mAudioDataQueue.poll()) != null) {
+                frame.release();
+            }
+
+            final int droppedFrameCount = mDroppedFrameCount.getAndSet(0);
+            if(droppedFrameCount > 0) {
+                TrackerManager.getInstance(mContext).log("Dropped " + droppedFrameCount + " audio frames while transcribing " + mId);
             }
         }
     };
@@ -223,6 +239,25 @@ public class GoogleSpeechRecognizeClient {
         }
     }
 
+    /**
+     * Creates an authenticated channel to the Google Speech API.
+     *
+     * @param context the context
+     * @return the channel
+     * @throws IOException if unable to read the credentials
+     */
+    static ManagedChannel newManagedChannel(Context context) throws IOException {
+        GoogleCredentials creds = GoogleCredentials.fromStream(context.getAssets().open(SPEECH_CONFIG_FILE));
+        creds = creds.createScoped(OAUTH2_SCOPES);
+
+        return OkHttpChannelBuilder.forAddress(SPEECH_HOST, SPEECH_PORT)
+                .negotiationType(NegotiationType.TLS)
+                // forcefully disable SSLv3 (mandatory for Android < v5)
+                .sslSocketFactory(new NoSSLv3SocketFactory())
+                .intercept(new ClientAuthInterceptor(creds, Executors.newSingleThreadExecutor()))
+                .build();
+    }
+
     public GoogleSpeechRecognizeClient(final Context context, String id) {
         this.mContext = context;
         this.mId = id;
@@ -275,11 +310,28 @@ public class GoogleSpeechRecognizeClient {
         }
     }
 
-    public boolean recognize(byte[] bytes) {
+    /**
+     * Queues the audio frame to be sent to the speech recognition service.
+     * The frame is retained until it is sent.<br />
+     * <strong>Never blocks.</strong> If the queue is full, the frame is dropped and counted.
+     *
+     * @param frame the PCM audio frame
+     * @return true if the frame was queued; false if it was dropped
+     */
+    public boolean recognize(PcmFrameRingBuffer.Frame frame) {
         if(mFinished) {
             throw new IllegalStateException("No ongoing speech recognition! start() must be invoked first.");
         }
-        return mAudioDataQueue.offer(bytes);
+
+        frame.retain();
+        if(mAudioDataQueue.offer(frame)) {
+            return true;
+        }
+
+        // the sender has fallen too far behind; keep memory bounded
+        frame.release();
+        mDroppedFrameCount.incrementAndGet();
+        return false;
     }
 
     public synchronized Object[] getTranscriptionSync(String mintFilePath) throws IOException, NoInternetConnectionException {
@@ -394,7 +446,7 @@ public class GoogleSpeechRecognizeClient {
         return mLanguageCode;
     }
 
-    public String getAppropriateLanguage(String languageCode) {
+    public static String getAppropriateLanguage(String languageCode) {
         int separatorIndex = languageCode.indexOf("-");
         if(languageCode == null || separatorIndex < 0) {
             return DEFAULT_LANGUAGE_CODE;
@@ -414,7 +466,7 @@ public class GoogleSpeechRecognizeClient {
         return DEFAULT_LANGUAGE_CODE;
     }
 
-    public boolean supportsLanguageCode(String languageCode) {
+    public static boolean supportsLanguageCode(String languageCode) {
         for(int i=0; i<SUPPORTED_LANGUAGE_CODES.length; i++) {
             if(SUPPORTED_LANGUAGE_CODES[i].compareTo(languageCode) == 0) {
                 return true;
@@ -0,0 +1,232 @@
+package com.peppermint.app.cloud.apis.speech;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.cloud.speech.v1.nano.AudioRequest;
+import com.google.cloud.speech.v1.nano.InitialRecognizeRequest;
+import com.google.cloud.speech.v1.nano.RecognizeRequest;
+import com.google.cloud.speech.v1.nano.RecognizeResponse;
+import com.google.cloud.speech.v1.nano.SpeechGrpc;
+import com.peppermint.app.tracking.TrackerManager;
+import com.peppermint.app.utils.TimedLruCache;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Transcribes recorded .mint files (see {@link com.peppermint.app.utils.MintFileWriter}) by
+ * replaying them through the Google Speech API gRPC streaming recognizer, in large chunks.<br />
+ * This is the fallback for recordings whose live transcription (through
+ * {@link GoogleSpeechRecognizeClient}) was not possible or failed.<br />
+ * <br />
+ * Recognitions run on a small shared thread pool, which bounds the amount of concurrent streams.
+ * They can be started speculatively through {@link #recognizeAsync(Context, String)} (e.g. as
+ * soon as the recording stops); {@link #recognize(Context, String)} then waits for the already
+ * ongoing recognition instead of starting a new one.
+ */
+public class MintFileRecognizer {
+
+    private static final String TAG = MintFileRecognizer.class.getSimpleName();
+
+    private static final int MAX_CONCURRENT_RECOGNITIONS = 2;
+    // about one second of 16KHz 16 bit audio per request
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final long RESULT_TIMEOUT_MS = 60000;
+
+    // started (or finished) recognitions that were not consumed yet
+    private static final long PENDING_TTL_MS = 10 * 60 * 1000;
+    private static final TimedLruCache<String, Future<Object[]>> PENDING_RECOGNITIONS = new TimedLruCache<>(16, PENDING_TTL_MS);
+
+    private static ThreadPoolExecutor EXECUTOR;
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if(EXECUTOR == null) {
+            EXECUTOR = new ThreadPoolExecutor(MAX_CONCURRENT_RECOGNITIONS, MAX_CONCURRENT_RECOGNITIONS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+        return EXECUTOR;
+    }
+
+    /**
+     * Starts the recognition of the .mint file in the background, if not started yet.
+     *
+     * @param context the context
+     * @param mintFilePath the path of the .mint file
+     * @return the future with the transcription results (as returned by
+     * {@link GoogleSpeechRecognizeClient#getBestTranscriptionResults(GoogleSpeechRecognizeClient.RecognizeResponseWrapper)});
+     * null if the file does not exist
+     */
+    public static Future<Object[]> recognizeAsync(Context context, final String mintFilePath) {
+        final File file = new File(mintFilePath);
+        if(!file.exists()) {
+            return null;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        synchronized (PENDING_RECOGNITIONS) {
+            Future<Object[]> future = PENDING_RECOGNITIONS.get(mintFilePath);
+            if(future == null) {
+                future = getExecutor().submit(new Callable<Object[]>() {
+                    @Override
+                    public Object[] call() throws Exception {
+                        return recognizeSync(appContext, file);
+                    }
+                });
+                PENDING_RECOGNITIONS.put(mintFilePath, future);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Obtains the transcription of the .mint file, waiting for the ongoing recognition
+     * (or starting a new one).
+     *
+     * @param context the context
+     * @param mintFilePath the path of the .mint file
+     * @return the transcription results; null if the file does not exist or the recognition failed
+     */
+    public static Object[] recognize(Context context, String mintFilePath) {
+        final Future<Object[]> future = recognizeAsync(context, mintFilePath);
+        if(future == null) {
+            return null;
+        }
+
+        try {
+            return future.get(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            TrackerManager.getInstance(context.getApplicationContext()).log("Unable to recognize " + mintFilePath, e.getCause());
+        } catch (TimeoutException e) {
+            TrackerManager.getInstance(context.getApplicationContext()).log("Timeout recognizing " + mintFilePath, e);
+        } finally {
+            synchronized (PENDING_RECOGNITIONS) {
+                PENDING_RECOGNITIONS.remove(mintFilePath);
+            }
+        }
+
+        return null;
+    }
+
+    private static Object[] recognizeSync(Context context, File file) throws Exception {
+        final DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        ManagedChannel channel = null;
+
+        try {
+            // header
+            final int sampleRate = inputStream.readInt();
+            final byte[] languageData = new byte[inputStream.readInt()];
+            inputStream.readFully(languageData);
+            final String languageCode = GoogleSpeechRecognizeClient.getAppropriateLanguage(new String(languageData, "UTF-8"));
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            final List<RecognizeResponse> responseList = new ArrayList<>();
+            final Throwable[] error = new Throwable[1];
+
+            channel = GoogleSpeechRecognizeClient.newManagedChannel(context);
+            final StreamObserver<RecognizeRequest> requestObserver = SpeechGrpc.newStub(channel).recognize(new StreamObserver<RecognizeResponse>() {
+                @Override
+                public void onNext(RecognizeResponse response) {
+                    if(response != null && response.error == null && response.results != null && response.results.length > 0 && response.results[0].isFinal) {
+                        synchronized (responseList) {
+                            responseList.add(response);
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    error[0] = t;
+                    latch.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    latch.countDown();
+                }
+            });
+
+            final InitialRecognizeRequest initial = new InitialRecognizeRequest();
+            initial.encoding = InitialRecognizeRequest.LINEAR16;
+            initial.sampleRate = sampleRate;
+            initial.interimResults = false;
+            initial.continuous = true;
+            initial.maxAlternatives = 3;
+            initial.languageCode = languageCode;
+
+            final RecognizeRequest firstRequest = new RecognizeRequest();
+            firstRequest.initialRequest = initial;
+            requestObserver.onNext(firstRequest);
+
+            // the request is serialized by onNext, so the buffer can be reused
+            final byte[] buffer = new byte[CHUNK_SIZE];
+            final AudioRequest audio = new AudioRequest();
+            final RecognizeRequest request = new RecognizeRequest();
+            request.audioRequest = audio;
+
+            try {
+                int read;
+                while((read = readChunk(inputStream, buffer)) > 0) {
+                    audio.content = read == buffer.length ? buffer : Arrays.copyOf(buffer, read);
+                    requestObserver.onNext(request);
+                }
+            } catch (IOException | RuntimeException e) {
+                requestObserver.onError(e);
+                throw e;
+            }
+            requestObserver.onCompleted();
+
+            if(!latch.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("No recognition results for " + file);
+            }
+
+            if(error[0] != null) {
+                Log.d(TAG, "Recognize Failed: " + error[0]);
+                if(responseList.size() <= 0) {
+                    throw new ExecutionException(error[0]);
+                }
+            }
+
+            synchronized (responseList) {
+                return GoogleSpeechRecognizeClient.getBestTranscriptionResults(new GoogleSpeechRecognizeClient.RecognizeResponseWrapper(responseList, languageCode));
+            }
+        } finally {
+            inputStream.close();
+            if(channel != null) {
+                channel.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Fills the buffer with as much data as available (until the end of the stream).
+     * @return the amount of read bytes
+     */
+    private static int readChunk(DataInputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while(total < buffer.length && (read = inputStream.read(buffer, total, buffer.length - total)) > 0) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,114 @@
+package com.peppermint.app.cloud.apis.speech;
+
+import com.peppermint.app.utils.TimedLruCache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands off live transcription results (from the recording service) to whoever needs them
+ * (e.g. the senders), keyed by the recording file path.<br />
+ * <br />
+ * A transcription is {@link #expect(String)}ed once the live recognition starts and is
+ * {@link #complete(String, Object[])}d once it finishes (successfully or not).
+ * {@link #await(String, long)} blocks only while the transcription is pending, and returns as
+ * soon as it is completed. Transcriptions that were never expected are not waited for.<br />
+ * <br />
+ * Results are kept for a while, since the same recording can be sent to multiple recipients.
+ */
+public class TranscriptionRegistry {
+
+    private static final int MAX_ENTRIES = 32;
+    private static final long ENTRY_TTL_MS = 30 * 60 * 1000;
+
+    private static class Entry {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private volatile Object[] mResults;
+    }
+
+    private static final TimedLruCache<String, Entry> ENTRIES = new TimedLruCache<>(MAX_ENTRIES, ENTRY_TTL_MS);
+
+    private static Entry getOrCreateEntry(String filePath) {
+        synchronized (ENTRIES) {
+            Entry entry = ENTRIES.get(filePath);
+            if(entry == null) {
+                entry = new Entry();
+                ENTRIES.put(filePath, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Marks the transcription of the recording as pending.
+     *
+     * @param filePath the recording file path
+     */
+    public static void expect(String filePath) {
+        getOrCreateEntry(filePath);
+    }
+
+    /**
+     * Completes the transcription of the recording, waking up all threads waiting for it.
+     *
+     * @param filePath the recording file path
+     * @param results the transcription results (as returned by
+     * {@link GoogleSpeechRecognizeClient#getBestTranscriptionResults(GoogleSpeechRecognizeClient.RecognizeResponseWrapper)});
+     * null if there's no transcription
+     */
+    public static void complete(String filePath, Object[] results) {
+        final Entry entry = getOrCreateEntry(filePath);
+        entry.mResults = results;
+        entry.mLatch.countDown();
+    }
+
+    /**
+     * Waits for the transcription of the recording.
+     *
+     * @param filePath the recording file path
+     * @param timeoutMs the max. amount of time to wait
+     * @return the transcription results; null if there's no (expected) transcription, if the
+     * timeout expired or if interrupted
+     */
+    public static Object[] await(String filePath, long timeoutMs) {
+        final Entry entry;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(filePath);
+        }
+        if(entry == null) {
+            return null;
+        }
+
+        try {
+            if(entry.mLatch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return entry.mResults;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Obtains the transcription of the recording without waiting for it.
+     *
+     * @param filePath the recording file path
+     * @return the transcription results; null if there's no completed transcription
+     */
+    public static Object[] get(String filePath) {
+        final Entry entry;
+        synchronized (ENTRIES) {
+            entry = ENTRIES.get(filePath);
+        }
+        return entry == null || entry.mLatch.getCount() > 0 ? null : entry.mResults;
+    }
+
+    /**
+     * @param filePath the recording file path
+     * @return true if the transcription of the recording has been completed with a transcription
+     */
+    public static boolean hasTranscription(String filePath) {
+        final Object[] results = get(filePath);
+        return results != null && results[0] != null;
+    }
+}
@@ -21,6 +21,8 @@ public class HttpRequestFileData extends HttpRequest implements Parcelable {
 
     private static final String TAG = HttpRequestFileData.class.getSimpleName();
 
+    private static final int WRITE_BUFFER_SIZE = 3 * 8192;
+
     protected ResultReceiver mListener;
     protected File mFile;
 
@@ -57,22 +59,28 @@ public class HttpRequestFileData extends HttpRequest implements Parcelable {
     }
 
     protected void writeInputStream(OutputStream outputStream, InputStream inputStream) throws IOException {
-        byte[] buffer = new byte[1023];
+        // multiple of 3 to keep chunks aligned with Base64 groups
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
 
         int count = 0;
         long sum = 0;
+        int lastPercent = -1;
         final long length = mFile.length();
 
         while((count = inputStream.read(buffer)) > 0 && !isCancelled()) {
             outputStream.write(buffer, 0, count);
-            outputStream.flush();
 
             if (mListener != null) {
                 sum += count;
                 int percent = (int) ((sum * 100) / length);
-                mListener.send(percent, null);
+                if(percent != lastPercent) {
+                    mListener.send(percent, null);
+                    lastPercent = percent;
+                }
             }
         }
+
+        outputStream.flush();
     }
 
     public void setUploadResultReceiver(ResultReceiver listener) {
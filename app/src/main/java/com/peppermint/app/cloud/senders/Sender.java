@@ -35,6 +35,7 @@ public abstract class Sender extends SenderObject {
     public static final String PARAM_PEPPERMINT_API = TAG + "_paramPeppermintApi";
     public static final String PARAM_GOOGLE_API = TAG + "_paramGoogleApi";
     public static final String PARAM_SPARKPOST_API = TAG + "_paramSparkPostApi";
+    public static final String PARAM_SENDER_PIPELINE = TAG + "_paramSenderPipeline";
 
     protected SenderErrorHandler mErrorHandler;
     private SenderUploadListener mSenderUploadListener;
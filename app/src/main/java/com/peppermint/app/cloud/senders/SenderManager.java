@@ -43,7 +43,8 @@ public class SenderManager extends SenderObject implements SenderUploadListener
 
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
 
-    private ThreadPoolExecutor mExecutor, mCancelExecutor;      // a thread pool for sending tasks
+    private SenderPipeline mPipeline;                           // executes sending tasks
+    private ThreadPoolExecutor mCancelExecutor;                 // a thread pool for cancelling tasks
 
     private Map<String, Sender> mSenderMap;                     // map of senders <mime type, sender>
 
@@ -75,11 +76,10 @@ public class SenderManager extends SenderObject implements SenderUploadListener
                 60, TimeUnit.SECONDS,
                 new LinkedBlockingQueue<Runnable>());
 
-        // private thread pool to avoid hanging up other AsyncTasks
-        // only one thread so that messages are sent one at a time (allows better control when cancelling)
-        this.mExecutor = new ThreadPoolExecutor(/*CPU_COUNT + 1, CPU_COUNT * 2 + 2*/1, 1,
-                60, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
+        // private pipeline to avoid hanging up other AsyncTasks
+        // messages of different chats are sent in parallel; messages of the same chat one at a time
+        this.mPipeline = new SenderPipeline();
+        setParameter(Sender.PARAM_SENDER_PIPELINE, mPipeline);
 
         // here we add all available sender instances to the sender map
         // add gmail api + email intent sender chain
@@ -170,7 +170,8 @@ public class SenderManager extends SenderObject implements SenderUploadListener
         SenderUploadTask task = sender.newTask(message, previousFailedTask == null ? null : previousFailedTask.getId());
         task.setRecovering(previousFailedTask != null);
         mTaskMap.put(task.getId(), task);
-        task.executeOnExecutor(mExecutor);
+        task.executeOnExecutor(mPipeline.getChatExecutor(message.getChatParameter().getId()));
+        mTrackerManager.log("Queued SenderUploadTask " + task.getId() + " (queue depth " + mPipeline.getQueueDepth() + ")");
     }
 
     /**
@@ -264,14 +265,14 @@ public class SenderManager extends SenderObject implements SenderUploadListener
 
     @Override
     public void onSendingUploadCancelled(SenderUploadTask uploadTask) {
-        mTrackerManager.log("Cancelled SenderUploadTask " + uploadTask.getId());
+        mTrackerManager.log("Cancelled SenderUploadTask " + uploadTask.getId() + " " + mPipeline);
         mTaskMap.remove(uploadTask.getId());
         PeppermintEventBus.postSenderEvent(SenderEvent.EVENT_CANCELLED, uploadTask, null);
     }
 
     @Override
     public void onSendingUploadFinished(SenderUploadTask uploadTask) {
-        mTrackerManager.log("Finished SenderUploadTask " + uploadTask.getId());
+        mTrackerManager.log("Finished SenderUploadTask " + uploadTask.getId() + " " + mPipeline);
         mTaskMap.remove(uploadTask.getId());
         PeppermintEventBus.postSenderEvent(SenderEvent.EVENT_FINISHED, uploadTask, null);
     }
@@ -307,6 +308,7 @@ public class SenderManager extends SenderObject implements SenderUploadListener
 
         if(nextSender == null) {
             mTaskMap.remove(previousUploadTask.getId());
+            mTrackerManager.log("Not Recovered SenderUploadTask " + previousUploadTask.getId() + " " + mPipeline);
             if(error != null) {
                 mTrackerManager.track(TrackerApi.TYPE_EVENT, error, TAG);
             }
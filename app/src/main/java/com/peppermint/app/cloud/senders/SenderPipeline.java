@@ -0,0 +1,196 @@
+package com.peppermint.app.cloud.senders;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes {@link SenderUploadTask}s in parallel, while keeping the order of tasks of the same chat.<br />
+ * <br />
+ * Tasks of different chats run concurrently on a bounded thread pool. Tasks of the same chat run
+ * one at a time, in the order they were submitted.<br />
+ * Each task goes through the stages of sending a message (see {@link #STAGE_METADATA}, etc.).
+ * The amount of tasks in each stage is bounded independently (e.g. two uploads at a time),
+ * so that a slow stage of one message does not hold back the other stages of other messages.<br />
+ * <br />
+ * The queue depth and the wait/execution latency of each stage are kept as metrics
+ * (see {@link #toString()}).
+ */
+public class SenderPipeline {
+
+    // get the message metadata (e.g. the AWS signed URL)
+    public static final int STAGE_METADATA = 0;
+    // upload the recording
+    public static final int STAGE_UPLOAD = 1;
+    // wait for and send the transcription
+    public static final int STAGE_TRANSCRIPTION = 2;
+    // send the message to the recipient (Peppermint or email)
+    public static final int STAGE_NOTIFY = 3;
+
+    private static final String[] STAGE_NAMES = { "Metadata", "Upload", "Transcription", "Notify" };
+    private static final int[] STAGE_PERMITS = { 3, 2, 2, 3 };
+
+    private static final int MAX_PARALLEL_TASKS = 4;
+
+    /**
+     * Runs the tasks of a single chat one at a time on the shared thread pool.<br />
+     * <strong>Only accessed while holding the {@link #mChatExecutors} lock.</strong>
+     */
+    private class ChatExecutor {
+        private final long mChatId;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private Runnable mActive;
+
+        private ChatExecutor(long chatId) {
+            this.mChatId = chatId;
+        }
+
+        private void execute(final Runnable runnable) {
+            mQueueDepth.incrementAndGet();
+            mTasks.offer(new Runnable() {
+                @Override
+                public void run() {
+                    mQueueDepth.decrementAndGet();
+                    try {
+                        runnable.run();
+                    } finally {
+                        synchronized (mChatExecutors) {
+                            scheduleNext();
+                        }
+                    }
+                }
+            });
+            if(mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private void scheduleNext() {
+            mActive = mTasks.poll();
+            if(mActive != null) {
+                mThreadPoolExecutor.execute(mActive);
+            } else {
+                mChatExecutors.remove(mChatId);
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor mThreadPoolExecutor;
+    private final Map<Long, ChatExecutor> mChatExecutors = new HashMap<>();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private int mMaxQueueDepth = 0;
+
+    private final Semaphore[] mStageSemaphores = new Semaphore[STAGE_NAMES.length];
+    // metrics (only accessed while holding the lock)
+    private final long[] mStageCounts = new long[STAGE_NAMES.length];
+    private final long[] mStageWaitMs = new long[STAGE_NAMES.length];
+    private final long[] mStageTotalMs = new long[STAGE_NAMES.length];
+    private final long[] mStageMaxMs = new long[STAGE_NAMES.length];
+
+    public SenderPipeline() {
+        mThreadPoolExecutor = new ThreadPoolExecutor(MAX_PARALLEL_TASKS, MAX_PARALLEL_TASKS,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mThreadPoolExecutor.allowCoreThreadTimeOut(true);
+
+        for(int i=0; i<STAGE_NAMES.length; i++) {
+            mStageSemaphores[i] = new Semaphore(STAGE_PERMITS[i], true);
+        }
+    }
+
+    /**
+     * Obtains an executor that runs tasks after all previously submitted tasks of the same chat.
+     *
+     * @param chatId the chat id
+     * @return the executor
+     */
+    public Executor getChatExecutor(final long chatId) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                synchronized (mChatExecutors) {
+                    ChatExecutor chatExecutor = mChatExecutors.get(chatId);
+                    if(chatExecutor == null) {
+                        chatExecutor = new ChatExecutor(chatId);
+                        mChatExecutors.put(chatId, chatExecutor);
+                    }
+                    chatExecutor.execute(runnable);
+                    mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueueDepth.get());
+                }
+            }
+        };
+    }
+
+    /**
+     * Enters the stage, waiting while the stage is full.<br />
+     * Must be followed by {@link #exitStage(int, long)}, even if the stage fails.
+     *
+     * @param stage the stage
+     * @return the time at which the stage was entered (after waiting)
+     * @throws InterruptedException if interrupted while waiting (e.g. the task was cancelled)
+     */
+    public long enterStage(int stage) throws InterruptedException {
+        final long requestedAt = SystemClock.elapsedRealtime();
+        mStageSemaphores[stage].acquire();
+        final long enteredAt = SystemClock.elapsedRealtime();
+
+        synchronized (mStageCounts) {
+            mStageWaitMs[stage] += enteredAt - requestedAt;
+        }
+        return enteredAt;
+    }
+
+    /**
+     * Exits the stage, allowing other tasks in, and records its latency.
+     *
+     * @param stage the stage
+     * @param enteredAt the time returned by {@link #enterStage(int)}
+     */
+    public void exitStage(int stage, long enteredAt) {
+        mStageSemaphores[stage].release();
+
+        final long elapsed = SystemClock.elapsedRealtime() - enteredAt;
+        synchronized (mStageCounts) {
+            mStageCounts[stage]++;
+            mStageTotalMs[stage] += elapsed;
+            mStageMaxMs[stage] = Math.max(mStageMaxMs[stage], elapsed);
+        }
+    }
+
+    /**
+     * @return the amount of tasks waiting to be executed
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("SenderPipeline{queueDepth=").append(mQueueDepth.get());
+        synchronized (mChatExecutors) {
+            builder.append(", maxQueueDepth=").append(mMaxQueueDepth);
+        }
+        synchronized (mStageCounts) {
+            for(int i=0; i<STAGE_NAMES.length; i++) {
+                final long count = mStageCounts[i];
+                builder.append(", ").append(STAGE_NAMES[i])
+                        .append("={count=").append(count);
+                if(count > 0) {
+                    builder.append(", avgWaitMs=").append(mStageWaitMs[i] / count)
+                            .append(", avgMs=").append(mStageTotalMs[i] / count)
+                            .append(", maxMs=").append(mStageMaxMs[i]);
+                }
+                builder.append("}");
+            }
+        }
+        return builder.append("}").toString();
+    }
+}
@@ -1,7 +1,5 @@
 package com.peppermint.app.cloud.senders;
 
-import android.content.Intent;
-
 import com.peppermint.app.RecordService;
 import com.peppermint.app.authenticator.AuthenticationData;
 import com.peppermint.app.cloud.apis.PeppermintApi;
@@ -10,6 +8,8 @@ import com.peppermint.app.cloud.apis.data.TranscriptionResponse;
 import com.peppermint.app.cloud.apis.data.UploadsResponse;
 import com.peppermint.app.cloud.apis.exceptions.PeppermintApiRecipientNoAppException;
 import com.peppermint.app.cloud.apis.speech.GoogleSpeechRecognizeClient;
+import com.peppermint.app.cloud.apis.speech.MintFileRecognizer;
+import com.peppermint.app.cloud.apis.speech.TranscriptionRegistry;
 import com.peppermint.app.cloud.senders.exceptions.NoInternetConnectionException;
 import com.peppermint.app.data.DatabaseHelper;
 import com.peppermint.app.data.GlobalManager;
@@ -18,8 +18,7 @@ import com.peppermint.app.data.MessageManager;
 import com.peppermint.app.data.Recipient;
 import com.peppermint.app.data.Recording;
 import com.peppermint.app.data.RecordingManager;
-import com.peppermint.app.events.PeppermintEventBus;
-import com.peppermint.app.events.RecorderEvent;
+import com.peppermint.app.utils.MintFileWriter;
 
 import java.io.File;
 import java.io.IOException;
@@ -37,10 +36,12 @@ import java.sql.SQLException;
  */
 public abstract class SenderUploadTask extends SenderTask implements Cloneable {
 
+    // max. time to wait for the live transcription of the recording
+    private static final long TRANSCRIPTION_TIMEOUT_MS = 20000;
+
     private SenderUploadListener mSenderUploadListener;
     private boolean mRecovering = false;
     private boolean mNonCancellable = false;
-    private boolean mMoveOnTranscription = false;
 
     public SenderUploadTask(final SenderUploadTask uploadTask) {
         super(uploadTask);
@@ -53,6 +54,26 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
         this.mSenderUploadListener = senderUploadListener;
     }
 
+    /**
+     * Enters a stage of the {@link SenderPipeline} executing this task (if any), waiting while
+     * the stage is full. Must be followed by {@link #exitStage(int, long)}, even if the stage fails.
+     *
+     * @param stage the stage (e.g. {@link SenderPipeline#STAGE_UPLOAD})
+     * @return the time at which the stage was entered
+     * @throws InterruptedException if cancelled while waiting
+     */
+    protected long enterStage(int stage) throws InterruptedException {
+        final SenderPipeline pipeline = (SenderPipeline) getParameter(Sender.PARAM_SENDER_PIPELINE);
+        return pipeline == null ? 0 : pipeline.enterStage(stage);
+    }
+
+    protected void exitStage(int stage, long enteredAt) {
+        final SenderPipeline pipeline = (SenderPipeline) getParameter(Sender.PARAM_SENDER_PIPELINE);
+        if(pipeline != null) {
+            pipeline.exitStage(stage, enteredAt);
+        }
+    }
+
     /**
      * Uploads the {@link Message} to the Peppermint server.<br />
      * If successful, access URLs will be accessible through {@link Message#getServerShortUrl()}
@@ -75,15 +96,37 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
             fullName = authenticationData.getEmail();
         }
 
+        // use the signed URL fetched (and the upload started) while recording, if any
+        // the prefetcher has its own executor, so no stage permit is held while waiting for it
+        final UploadPrefetcher.Result prefetched = UploadPrefetcher.take(getMessage().getRecordingParameter().getFilePath());
+
+        if(prefetched != null && prefetched.isUploaded()) {
+            getMessage().setServerCanonicalUrl(prefetched.getUploadsResponse().getCanonicalUrl());
+            getMessage().setServerShortUrl(prefetched.getUploadsResponse().getShortUrl());
+            return;
+        }
+
         // get AWS signed URL
-        final UploadsResponse uploadsResponse = peppermintApi.getSignedUrl(getId().toString(), fullName, authenticationData.getEmail(), contentType);
-        final String signedUrl = uploadsResponse.getSignedUrl();
-        getMessage().setServerCanonicalUrl(uploadsResponse.getCanonicalUrl());
-        getMessage().setServerShortUrl(uploadsResponse.getShortUrl());
+        final String signedUrl;
+        long stageStart = enterStage(SenderPipeline.STAGE_METADATA);
+        try {
+            final UploadsResponse uploadsResponse = prefetched != null ? prefetched.getUploadsResponse() :
+                    peppermintApi.getSignedUrl(getId().toString(), fullName, authenticationData.getEmail(), contentType);
+            signedUrl = uploadsResponse.getSignedUrl();
+            getMessage().setServerCanonicalUrl(uploadsResponse.getCanonicalUrl());
+            getMessage().setServerShortUrl(uploadsResponse.getShortUrl());
+        } finally {
+            exitStage(SenderPipeline.STAGE_METADATA, stageStart);
+        }
 
         // upload to AWS
         if(!isCancelled()) {
-            peppermintApi.uploadMessage(getId().toString(), signedUrl, recordedFile, contentType);
+            stageStart = enterStage(SenderPipeline.STAGE_UPLOAD);
+            try {
+                peppermintApi.uploadMessage(getId().toString(), signedUrl, recordedFile, contentType);
+            } finally {
+                exitStage(SenderPipeline.STAGE_UPLOAD, stageStart);
+            }
         }
     }
 
@@ -105,6 +148,7 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
 
         final PeppermintApi peppermintApi = getPeppermintApi();
 
+        final long stageStart = enterStage(SenderPipeline.STAGE_NOTIFY);
         try {
             final MessagesResponse response = peppermintApi.sendMessage(getId().toString(),
                     message.getRecordingParameter().getTranscriptionUrl(), canonicalUrl,
@@ -127,21 +171,27 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
             } catch (SQLException e1) {
                 getTrackerManager().logException(e1);
             }
+        } finally {
+            exitStage(SenderPipeline.STAGE_NOTIFY, stageStart);
         }
 
         // immediately update message with serverId and sent recipients
         final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(getContext());
-        databaseHelper.lock();
         try {
             MessageManager.update(databaseHelper.getWritableDatabase(), message);
         } catch (SQLException e) {
             getTrackerManager().logException(e);
         }
-        databaseHelper.unlock();
 
         return sentInApp;
     }
 
+    /**
+     * Waits for the live transcription of the recording (if still pending), as handed off by the
+     * {@link RecordService} through the {@link TranscriptionRegistry}.
+     *
+     * @return the transcription; null if there's none
+     */
     protected String waitTranscription() {
         final Recording recording = getMessage().getRecordingParameter();
 
@@ -149,36 +199,39 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
             return recording.getTranscription();
         }
 
-        int waitCount = 20; // 30 secs tops
-
         if(recording.getTranscriptionConfidence() < 0) {
-            Intent popTranscriptionIntent = new Intent(getContext(), RecordService.class);
-            popTranscriptionIntent.setAction(RecordService.ACTION_POP_TRANSCRIPTION);
-            popTranscriptionIntent.putExtra(RecordService.INTENT_DATA_TRANSCRIPTION_FILEPATH, recording.getFilePath());
-            getContext().startService(popTranscriptionIntent);
-
-            do {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    /* nothing to do here */
-                }
-                waitCount--;
-            } while(waitCount > 0 && !mMoveOnTranscription);
+            final Object[] transcriptionResults = TranscriptionRegistry.await(recording.getFilePath(), TRANSCRIPTION_TIMEOUT_MS);
+            if(transcriptionResults != null && transcriptionResults[0] != null) {
+                recording.setTranscription((String) transcriptionResults[0]);
+                recording.setTranscriptionConfidence((float) transcriptionResults[1]);
+                recording.setTranscriptionLanguage((String) transcriptionResults[2]);
+            }
         }
 
         return recording.getTranscription();
     }
 
+    /**
+     * Obtains the transcription of the recording from its .mint file, by replaying it through the
+     * streaming recognizer (waiting for the recognition if it was already started by the {@link RecordService}).<br />
+     * Falls back to the single request HTTP API if the streaming recognition fails.
+     *
+     * @return the transcription results; null if there's no .mint file
+     */
     protected Object[] getTranscription() throws IOException, NoInternetConnectionException {
         final Message message = getMessage();
         final Recording recording = message.getRecordingParameter();
-        final File mintFile = new File(recording.getFilePath() + ".mint");
+        final File mintFile = new File(recording.getFilePath() + MintFileWriter.EXTENSION);
 
         if(!mintFile.exists()) {
             return null;
         }
 
+        final Object[] transcriptionResults = MintFileRecognizer.recognize(getContext(), mintFile.getAbsolutePath());
+        if(transcriptionResults != null) {
+            return transcriptionResults;
+        }
+
         final GoogleSpeechRecognizeClient googleSpeechRecognizeClient = new GoogleSpeechRecognizeClient(getContext(), message.getUUID().toString());
         return googleSpeechRecognizeClient.getTranscriptionSync(mintFile.getAbsolutePath());
     }
@@ -191,11 +244,18 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
             return recording.getTranscriptionUrl();
         }
 
-        if(waitTranscription() == null) {
-            Object[] transcriptionResults = getTranscription();
-            recording.setTranscription((String) transcriptionResults[0]);
-            recording.setTranscriptionConfidence((float) transcriptionResults[1]);
-            recording.setTranscriptionLanguage((String) transcriptionResults[2]);
+        final long stageStart = enterStage(SenderPipeline.STAGE_TRANSCRIPTION);
+        try {
+            if(waitTranscription() == null) {
+                Object[] transcriptionResults = getTranscription();
+                if(transcriptionResults != null) {
+                    recording.setTranscription((String) transcriptionResults[0]);
+                    recording.setTranscriptionConfidence((float) transcriptionResults[1]);
+                    recording.setTranscriptionLanguage((String) transcriptionResults[2]);
+                }
+            }
+        } finally {
+            exitStage(SenderPipeline.STAGE_TRANSCRIPTION, stageStart);
         }
 
         if(recording.getTranscription() != null) {
@@ -207,13 +267,11 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
 
             // immediately update recording with transcription data
             final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(getContext());
-            databaseHelper.lock();
             try {
                 RecordingManager.update(databaseHelper.getWritableDatabase(), recording);
             } catch (SQLException e) {
                 getTrackerManager().logException(e);
             }
-            databaseHelper.unlock();
 
             return response.getTranscriptionUrl();
         }
@@ -221,23 +279,12 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
         return null;
     }
 
-    public void onEventMainThread(RecorderEvent event) {
-        final Recording recording = getMessage() != null ? getMessage().getRecordingParameter() : null;
-        if(recording != null && recording.getFilePath().compareTo(event.getRecording().getFilePath()) == 0) {
-            recording.setTranscription(event.getRecording().getTranscription());
-            recording.setTranscriptionConfidence(event.getRecording().getTranscriptionConfidence());
-            recording.setTranscriptionLanguage(event.getRecording().getTranscriptionLanguage());
-            mMoveOnTranscription = true;
-        }
-    }
-
     @Override
     protected void onPreExecute() {
         super.onPreExecute();
         if(mSenderUploadListener != null && !mRecovering) {
             mSenderUploadListener.onSendingUploadStarted(this);
         }
-        PeppermintEventBus.registerAudio(this);
     }
 
     @Override
@@ -250,7 +297,6 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
 
     @Override
     protected void onCancelled(Void aVoid) {
-        PeppermintEventBus.unregisterAudio(this);
         if(mSenderUploadListener != null) {
             mSenderUploadListener.onSendingUploadCancelled(this);
         }
@@ -258,7 +304,6 @@ public abstract class SenderUploadTask extends SenderTask implements Cloneable {
 
     @Override
     protected void onPostExecute(Void aVoid) {
-        PeppermintEventBus.unregisterAudio(this);
         if(getError() == null) {
             if(mSenderUploadListener != null) {
                 mSenderUploadListener.onSendingUploadFinished(this);
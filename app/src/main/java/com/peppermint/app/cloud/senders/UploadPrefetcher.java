@@ -0,0 +1,242 @@
+package com.peppermint.app.cloud.senders;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.peppermint.app.authenticator.AuthenticationData;
+import com.peppermint.app.authenticator.AuthenticatorUtils;
+import com.peppermint.app.cloud.apis.PeppermintApi;
+import com.peppermint.app.cloud.apis.data.UploadsResponse;
+import com.peppermint.app.tracking.TrackerManager;
+import com.peppermint.app.utils.TimedLruCache;
+import com.peppermint.app.utils.Utils;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Overlaps the upload of a recording to the Peppermint server with the recording itself.<br />
+ * <br />
+ * The AWS signed URL is fetched as soon as the recording starts
+ * (see {@link #prefetchSignedUrl(Context, String, String)}) and the recorded file is uploaded as
+ * soon as it is finished (see {@link #upload(Context, String)}), before the message is even
+ * handed over to the {@link SenderManager}.<br />
+ * The {@link SenderUploadTask} then {@link #take(String)}s the ongoing (or finished) upload
+ * instead of starting a new one. If anything fails, it just falls back to the regular upload.<br />
+ * <br />
+ * Each prefetched upload is used by one message only. Unused prefetches are cancelled and
+ * discarded after a while, since signed URLs expire.
+ */
+public class UploadPrefetcher {
+
+    private static final String TAG = UploadPrefetcher.class.getSimpleName();
+
+    private static final int MAX_CONCURRENT_PREFETCHES = 2;
+    private static final int MAX_PREFETCHES = 8;
+    private static final long PREFETCH_TTL_MS = 10 * 60 * 1000;
+    // max. time to wait for an ongoing prefetch before falling back to the regular upload
+    private static final long TAKE_TIMEOUT_MS = 20 * 1000;
+
+    /**
+     * The result of a prefetch taken by {@link #take(String)}.
+     */
+    public static class Result {
+        private final UploadsResponse mUploadsResponse;
+        private final boolean mUploaded;
+
+        private Result(UploadsResponse uploadsResponse, boolean uploaded) {
+            this.mUploadsResponse = uploadsResponse;
+            this.mUploaded = uploaded;
+        }
+
+        /**
+         * @return the signed, canonical and short URLs of the recording
+         */
+        public UploadsResponse getUploadsResponse() {
+            return mUploadsResponse;
+        }
+
+        /**
+         * @return true if the recording was already uploaded to the signed URL
+         */
+        public boolean isUploaded() {
+            return mUploaded;
+        }
+    }
+
+    private static class Prefetch {
+        private final String mRequesterId = UUID.randomUUID().toString();
+        private final PeppermintApi mPeppermintApi;
+        private final String mContentType;
+        private Future<UploadsResponse> mSignedUrlFuture;
+        private Future<UploadsResponse> mUploadFuture;
+
+        private Prefetch(Context context, String contentType) {
+            this.mPeppermintApi = new PeppermintApi(context);
+            this.mContentType = contentType;
+        }
+
+        private void cancel() {
+            if(mUploadFuture != null) {
+                mUploadFuture.cancel(true);
+            }
+            mSignedUrlFuture.cancel(true);
+            mPeppermintApi.cancelPendingRequests(mRequesterId);
+        }
+    }
+
+    private static final TimedLruCache<String, Prefetch> PREFETCHES = new TimedLruCache<String, Prefetch>(MAX_PREFETCHES, PREFETCH_TTL_MS) {
+        @Override
+        protected void entryEvicted(String filePath, Prefetch prefetch) {
+            prefetch.cancel();
+        }
+    };
+
+    private static ThreadPoolExecutor EXECUTOR;
+
+    // tasks start in the order they are submitted, so an upload only ever waits for the signed URL
+    // fetch that is already running (or done) on another thread
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if(EXECUTOR == null) {
+            EXECUTOR = new ThreadPoolExecutor(MAX_CONCURRENT_PREFETCHES, MAX_CONCURRENT_PREFETCHES,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        }
+        return EXECUTOR;
+    }
+
+    /**
+     * Starts fetching the AWS signed URL for the recording in the background.<br />
+     * Does nothing if there's no internet connection.
+     *
+     * @param context the context
+     * @param filePath the path of the recording file (which may not exist yet)
+     * @param contentType the content type of the recording
+     */
+    public static void prefetchSignedUrl(Context context, String filePath, String contentType) {
+        final Context appContext = context.getApplicationContext();
+        if(!Utils.isInternetAvailable(appContext)) {
+            return;
+        }
+
+        final Prefetch prefetch = new Prefetch(appContext, contentType);
+        prefetch.mSignedUrlFuture = getExecutor().submit(new Callable<UploadsResponse>() {
+            @Override
+            public UploadsResponse call() throws Exception {
+                final PeppermintApi peppermintApi = prefetch.mPeppermintApi;
+                if(peppermintApi.peekAuthenticationToken() == null && peppermintApi.renewAuthenticationToken() == null) {
+                    throw new IllegalStateException("No Peppermint access token!");
+                }
+
+                final AuthenticationData authenticationData = new AuthenticatorUtils(appContext).getAccountData();
+                String fullName = new SenderPreferences(appContext).getFullName();
+                if(fullName == null) {
+                    fullName = authenticationData.getEmail();
+                }
+
+                return peppermintApi.getSignedUrl(prefetch.mRequesterId, fullName, authenticationData.getEmail(), prefetch.mContentType);
+            }
+        });
+
+        final Prefetch previousPrefetch;
+        synchronized (PREFETCHES) {
+            // cancel unused prefetches whose signed URL has expired
+            PREFETCHES.trimExpired();
+            previousPrefetch = PREFETCHES.remove(filePath);
+            PREFETCHES.put(filePath, prefetch);
+        }
+        if(previousPrefetch != null) {
+            previousPrefetch.cancel();
+        }
+    }
+
+    /**
+     * Starts uploading the finished recording to the prefetched signed URL in the background.<br />
+     * Does nothing if the signed URL was not prefetched.
+     *
+     * @param context the context
+     * @param filePath the path of the (finished) recording file
+     */
+    public static void upload(Context context, final String filePath) {
+        final Context appContext = context.getApplicationContext();
+        final File file = new File(filePath);
+
+        synchronized (PREFETCHES) {
+            final Prefetch prefetch = PREFETCHES.get(filePath);
+            if(prefetch == null || prefetch.mUploadFuture != null) {
+                return;
+            }
+
+            prefetch.mUploadFuture = getExecutor().submit(new Callable<UploadsResponse>() {
+                @Override
+                public UploadsResponse call() throws Exception {
+                    final UploadsResponse uploadsResponse = prefetch.mSignedUrlFuture.get();
+                    final long now = SystemClock.uptimeMillis();
+                    prefetch.mPeppermintApi.uploadMessage(prefetch.mRequesterId, uploadsResponse.getSignedUrl(), file, prefetch.mContentType);
+                    TrackerManager.getInstance(appContext).log("Pre-uploaded " + filePath + " in " + (SystemClock.uptimeMillis() - now) + " ms");
+                    return uploadsResponse;
+                }
+            });
+        }
+    }
+
+    /**
+     * Discards the prefetch of the recording (e.g. if the recording was discarded), cancelling
+     * any ongoing request.
+     *
+     * @param filePath the path of the recording file
+     */
+    public static void discard(String filePath) {
+        final Prefetch prefetch;
+        synchronized (PREFETCHES) {
+            prefetch = PREFETCHES.remove(filePath);
+        }
+        if(prefetch != null) {
+            prefetch.cancel();
+        }
+    }
+
+    /**
+     * Takes the prefetch of the recording, waiting a while for its ongoing upload (if any).<br />
+     * The prefetch is removed, so that it is used by one message only. If it has expired or takes
+     * too long, it is cancelled, so that the caller falls back to the regular upload.
+     *
+     * @param filePath the path of the recording file
+     * @return the result; null if there's no prefetch or if it failed
+     * @throws InterruptedException if interrupted while waiting (the prefetch is cancelled)
+     */
+    public static Result take(String filePath) throws InterruptedException {
+        final Prefetch prefetch;
+        synchronized (PREFETCHES) {
+            // an expired prefetch (whose signed URL may no longer be valid) is evicted and cancelled by get()
+            prefetch = PREFETCHES.get(filePath) == null ? null : PREFETCHES.remove(filePath);
+        }
+        if(prefetch == null) {
+            return null;
+        }
+
+        try {
+            if(prefetch.mUploadFuture != null) {
+                return new Result(prefetch.mUploadFuture.get(TAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS), true);
+            }
+            // the signed URL fetch started with the recording, so it should be done by now
+            return new Result(prefetch.mSignedUrlFuture.get(TAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS), false);
+        } catch (InterruptedException e) {
+            prefetch.cancel();
+            throw e;
+        } catch (ExecutionException | TimeoutException e) {
+            Log.d(TAG, "Unable to use prefetch of " + filePath + ": " + e);
+            prefetch.cancel();
+        }
+
+        return null;
+    }
+}
@@ -10,6 +10,7 @@ import com.peppermint.app.authenticator.AuthenticationData;
 import com.peppermint.app.cloud.apis.GoogleApi;
 import com.peppermint.app.cloud.apis.SparkPostApi;
 import com.peppermint.app.cloud.senders.Sender;
+import com.peppermint.app.cloud.senders.SenderPipeline;
 import com.peppermint.app.cloud.senders.SenderUploadListener;
 import com.peppermint.app.cloud.senders.SenderUploadTask;
 import com.peppermint.app.cloud.senders.exceptions.NoInternetConnectionException;
@@ -54,6 +55,18 @@ public class GmailSenderTask extends SenderUploadTask {
 
         if(isCancelled()) { return; }
 
+        final long stageStart = enterStage(SenderPipeline.STAGE_NOTIFY);
+        try {
+            sendGmail(data);
+        } finally {
+            exitStage(SenderPipeline.STAGE_NOTIFY, stageStart);
+        }
+    }
+
+    /**
+     * Sends the message through a Gmail draft (when the recipient doesn't have Peppermint).
+     */
+    private void sendGmail(AuthenticationData data) throws Throwable {
         String url = getMessage().getServerShortUrl();
         String canonicalUrl = getMessage().getServerCanonicalUrl();
 
@@ -1,9 +1,7 @@
 package com.peppermint.app.data;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -26,6 +24,13 @@ public class ChatManager {
 
     private static final String TAG = ChatManager.class.getSimpleName();
 
+    // single value queries (package-private so that their query plans can be tested)
+    static final String SQL_CHAT_COUNT = "SELECT COUNT(*) FROM v_chat;";
+    static final String SQL_CHAT_COUNT_WITHOUT_RELATED = "SELECT COUNT(*) FROM v_chat WHERE peppermint_chat_id = 0;";
+    static final String SQL_OLDEST_CHAT_TIMESTAMP = "SELECT last_message_ts FROM tbl_chat ORDER BY last_message_ts ASC LIMIT 1;";
+    static final String SQL_SUMMARY_DROID_CONTACT_IDS = "SELECT droid_contact_ids FROM tbl_chat_summary WHERE chat_id = ?";
+    static final String SQL_SUMMARY_PEPPERMINT_CHAT_ID = "SELECT peppermint_chat_id FROM tbl_chat_summary WHERE chat_id = ?";
+
     /**
      * Gets the {@link Chat} data inside the cursor's current position.<br />
      * <strong>If db is supplied, it will also load all {@link Recipient} data, which will be
@@ -48,17 +53,11 @@ public class ChatManager {
     }
 
     private static Cursor getById(SQLiteDatabase db, long chatId) {
-        return db.rawQuery("SELECT * FROM v_chat WHERE v_chat.chat_id = " + chatId + ";", null);
+        return StatementCache.query(db, "SELECT * FROM v_chat WHERE v_chat.chat_id = ?;", chatId);
     }
 
     public static int getChatCount(SQLiteDatabase db, boolean avoidThoseWithRelatedPeppermintChat) {
-        int count = 0;
-        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM v_chat" + (avoidThoseWithRelatedPeppermintChat ? " WHERE peppermint_chat_id = 0" : "") + ";", null);
-        if(cursor.moveToFirst()) {
-            count = cursor.getInt(0);
-        }
-        cursor.close();
-        return count;
+        return (int) StatementCache.simpleQueryForLong(db, avoidThoseWithRelatedPeppermintChat ? SQL_CHAT_COUNT_WITHOUT_RELATED : SQL_CHAT_COUNT, 0);
     }
 
     public static Cursor getAll(SQLiteDatabase db, boolean avoidThoseWithRelatedPeppermintChat) {
@@ -67,13 +66,7 @@ public class ChatManager {
     }
 
     public static String getOldestChatTimestamp(SQLiteDatabase db) {
-        String ts = null;
-        Cursor cursor = db.rawQuery("SELECT last_message_ts FROM tbl_chat ORDER BY last_message_ts ASC;", null);
-        if(cursor.moveToFirst()) {
-            ts = cursor.getString(0);
-        }
-        cursor.close();
-        return ts;
+        return StatementCache.simpleQueryForString(db, SQL_OLDEST_CHAT_TIMESTAMP);
     }
 
     public static Chat getChatById(SQLiteDatabase db, long chatId) {
@@ -87,9 +80,9 @@ public class ChatManager {
     }
 
     public static Chat getMainChatByDroidContactId(SQLiteDatabase db, long droidContactId) {
-        Cursor cursor = db.rawQuery("SELECT v_chat.* FROM v_chat, tbl_chat_recipient, tbl_recipient WHERE " +
-                "v_chat.chat_id = tbl_chat_recipient.chat_id AND tbl_chat_recipient.recipient_id = tbl_recipient.recipient_id AND tbl_recipient.droid_contact_id = " + droidContactId +
-                " ORDER BY v_chat.peppermint_chat_id ASC LIMIT 1;", null);
+        Cursor cursor = StatementCache.query(db, "SELECT v_chat.* FROM v_chat, tbl_chat_recipient, tbl_recipient WHERE " +
+                "v_chat.chat_id = tbl_chat_recipient.chat_id AND tbl_chat_recipient.recipient_id = tbl_recipient.recipient_id AND tbl_recipient.droid_contact_id = ?" +
+                " ORDER BY v_chat.peppermint_chat_id ASC LIMIT 1;", droidContactId);
         Chat chat = null;
         if(cursor.moveToNext()) {
             chat = getChatFromCursor(db, cursor);
@@ -107,14 +100,22 @@ public class ChatManager {
     public static Chat getChatByRecipients(SQLiteDatabase db, List<Recipient> recipientList) {
         int recipientAmount = recipientList.size();
         String[] conditions = new String[recipientAmount];
+        List<Object> args = new ArrayList<>();
         for(int i=0; i<recipientAmount; i++) {
-            conditions[i] = Utils.joinString(" AND ", recipientList.get(i).getMimeType() != null ? "mimetype = " + DatabaseUtils.sqlEscapeString(recipientList.get(i).getMimeType()) : null,
-                    recipientList.get(i).getVia() != null ? "via = " + DatabaseUtils.sqlEscapeString(recipientList.get(i).getVia()) : null);
+            final Recipient recipient = recipientList.get(i);
+            conditions[i] = Utils.joinString(" AND ", recipient.getMimeType() != null ? "mimetype = ?" : null,
+                    recipient.getVia() != null ? "via = ?" : null);
+            if(recipient.getMimeType() != null) {
+                args.add(recipient.getMimeType());
+            }
+            if(recipient.getVia() != null) {
+                args.add(recipient.getVia());
+            }
         }
 
         String where = Utils.joinString(" OR ", conditions);
-        Cursor cursor = db.rawQuery("SELECT v_chat.*, tbl_recipient.via AS via, tbl_recipient.mimetype AS mimetype FROM v_chat, tbl_chat_recipient, tbl_recipient WHERE " +
-                "v_chat.chat_id = tbl_chat_recipient.chat_id AND tbl_chat_recipient.recipient_id = tbl_recipient.recipient_id AND " + where + ";", null);
+        Cursor cursor = StatementCache.query(db, "SELECT v_chat.*, tbl_recipient.via AS via, tbl_recipient.mimetype AS mimetype FROM v_chat, tbl_chat_recipient, tbl_recipient WHERE " +
+                "v_chat.chat_id = tbl_chat_recipient.chat_id AND tbl_chat_recipient.recipient_id = tbl_recipient.recipient_id AND (" + where + ");", args.toArray());
         Chat chat = null;
         Set<String> uniqueMimeVia = new HashSet<>();
         while(cursor.moveToNext()) {
@@ -141,15 +142,91 @@ public class ChatManager {
 
     // OPERATIONS
     private static void refreshTimestamps(SQLiteDatabase db, long peppermintChatId) throws SQLException {
-        db.execSQL("UPDATE tbl_chat SET last_message_ts = (SELECT MAX(last_message_ts) FROM v_chat WHERE chat_id = " + peppermintChatId + " OR peppermint_chat_id = " + peppermintChatId + ") WHERE chat_id = " + peppermintChatId);
+        StatementCache.executeUpdateDelete(db, "UPDATE tbl_chat SET last_message_ts = (SELECT MAX(last_message_ts) FROM v_chat WHERE chat_id = ?1 OR peppermint_chat_id = ?1) WHERE chat_id = ?1", peppermintChatId);
+        StatementCache.executeUpdateDelete(db, "UPDATE tbl_chat_summary SET last_message_ts = (SELECT last_message_ts FROM tbl_chat WHERE chat_id = ?1) WHERE chat_id = ?1", peppermintChatId);
+    }
+
+    private static String getSummaryDroidContactIds(SQLiteDatabase db, long chatId) {
+        return StatementCache.simpleQueryForString(db, SQL_SUMMARY_DROID_CONTACT_IDS, chatId);
+    }
+
+    /**
+     * Re-evaluates the peppermint_chat_id of all chats with the specified set of Android contacts.
+     * A non-Peppermint chat is related to (merged into) the Peppermint chat with the same contacts.
+     *
+     * @param db the db connection
+     * @param droidContactIds the comma separated Android contact ids
+     */
+    private static void refreshPeppermintRelations(SQLiteDatabase db, String droidContactIds) {
+        if(droidContactIds == null) {
+            return;
+        }
+        StatementCache.executeUpdateDelete(db, "UPDATE tbl_chat_summary SET peppermint_chat_id = (CASE WHEN is_peppermint <= 0 THEN IFNULL((SELECT rel.chat_id FROM tbl_chat_summary AS rel WHERE rel.is_peppermint > 0 AND rel.droid_contact_ids = tbl_chat_summary.droid_contact_ids), 0) ELSE 0 END) " +
+                "WHERE droid_contact_ids = ?", droidContactIds);
+    }
+
+    /**
+     * Refreshes the materialized data of the chat in tbl_chat_summary (Android contact ids,
+     * Peppermint flag and last message timestamp), as well as the Peppermint relations of all
+     * chats that had or now have the same set of Android contacts.<br />
+     * <strong>Must be invoked whenever the chat, its recipients or the recipient data change.</strong>
+     *
+     * @param db the db connection
+     * @param chatId the chat id
+     */
+    static void refreshSummary(SQLiteDatabase db, long chatId) {
+        final String oldDroidContactIds = getSummaryDroidContactIds(db, chatId);
+
+        StatementCache.executeUpdateDelete(db, "INSERT OR IGNORE INTO tbl_chat_summary (chat_id) VALUES (?)", chatId);
+        StatementCache.executeUpdateDelete(db, "UPDATE tbl_chat_summary SET " +
+                "droid_contact_ids = (SELECT GROUP_CONCAT(droid_contact_id, ',') FROM (SELECT DISTINCT tbl_recipient.droid_contact_id FROM tbl_chat_recipient, tbl_recipient WHERE tbl_recipient.recipient_id = tbl_chat_recipient.recipient_id AND tbl_chat_recipient.chat_id = ?1 ORDER BY tbl_recipient.droid_contact_id ASC)), " +
+                "is_peppermint = IFNULL((SELECT MAX(tbl_recipient.is_peppermint) FROM tbl_chat_recipient, tbl_recipient WHERE tbl_recipient.recipient_id = tbl_chat_recipient.recipient_id AND tbl_chat_recipient.chat_id = ?1), 0), " +
+                "last_message_ts = (SELECT last_message_ts FROM tbl_chat WHERE chat_id = ?1) " +
+                "WHERE chat_id = ?1", chatId);
+
+        final String newDroidContactIds = getSummaryDroidContactIds(db, chatId);
+        refreshPeppermintRelations(db, oldDroidContactIds);
+        if(oldDroidContactIds == null || newDroidContactIds == null || oldDroidContactIds.compareTo(newDroidContactIds) != 0) {
+            refreshPeppermintRelations(db, newDroidContactIds);
+        }
+    }
+
+    /**
+     * Refreshes the tbl_chat_summary data of all chats with the specified recipient.
+     * See {@link #refreshSummary(SQLiteDatabase, long)}.
+     *
+     * @param db the db connection
+     * @param recipientId the recipient id
+     */
+    static void refreshSummaryByRecipient(SQLiteDatabase db, long recipientId) {
+        List<Long> chatIds = new ArrayList<>();
+        Cursor cursor = StatementCache.query(db, "SELECT chat_id FROM tbl_chat_recipient WHERE recipient_id = ?", recipientId);
+        while(cursor.moveToNext()) {
+            chatIds.add(cursor.getLong(0));
+        }
+        cursor.close();
+
+        for(long chatId : chatIds) {
+            refreshSummary(db, chatId);
+        }
+    }
+
+    private static void deleteSummary(SQLiteDatabase db, long chatId) {
+        final String oldDroidContactIds = getSummaryDroidContactIds(db, chatId);
+        StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_chat_summary WHERE chat_id = ?", chatId);
+        refreshPeppermintRelations(db, oldDroidContactIds);
+    }
+
+    private static long getSummaryPeppermintChatId(SQLiteDatabase db, long chatId) {
+        return StatementCache.simpleQueryForLong(db, SQL_SUMMARY_PEPPERMINT_CHAT_ID, 0, chatId);
     }
 
     private static void deassociateRecipients(SQLiteDatabase db, long chatId) throws SQLException {
-        db.delete("tbl_chat_recipient", "chat_id = " + chatId, null);
+        StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_chat_recipient WHERE chat_id = ?", chatId);
     }
 
     private static void associateRecipients(SQLiteDatabase db, long chatId, List<Recipient> recipientList) throws SQLException {
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         try {
             for (Recipient recipient : recipientList) {
@@ -157,15 +234,8 @@ public class ChatManager {
                     throw new IllegalArgumentException("Must register the recipient first!");
                 }
 
-                ContentValues cv = new ContentValues();
-                cv.put("chat_id", chatId);
-                cv.put("recipient_id", recipient.getId());
-                cv.put("registration_ts", DateContainer.getCurrentUTCTimestamp());
-
-                long id = db.insert("tbl_chat_recipient", null, cv);
-                if (id < 0) {
-                    throw new SQLException("Unable to associate chat with recipient!");
-                }
+                StatementCache.executeInsert(db, "INSERT INTO tbl_chat_recipient (chat_id, recipient_id, registration_ts) VALUES (?, ?, ?)",
+                        chatId, recipient.getId(), DateContainer.getCurrentUTCTimestamp());
             }
 
             db.setTransactionSuccessful();
@@ -175,62 +245,47 @@ public class ChatManager {
     }
 
     public static Chat insert(SQLiteDatabase db, Chat chat) throws SQLException {
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         long id = 0;
 
         try {
-            ContentValues cv = new ContentValues();
-            cv.put("title", chat.getTitle());
-            cv.put("last_message_ts", chat.getLastMessageTimestamp());
-
-            id = db.insert("tbl_chat", null, cv);
-            if (id < 0) {
-                throw new SQLException("Unable to insert chat!");
-            }
+            id = StatementCache.executeInsert(db, "INSERT INTO tbl_chat (title, last_message_ts) VALUES (?, ?)",
+                    chat.getTitle(), chat.getLastMessageTimestamp());
 
             associateRecipients(db, id, chat.getRecipientList());
             chat.setId(id);
 
+            refreshSummary(db, id);
+            chat.setPeppermintChatId(getSummaryPeppermintChatId(db, id));
+            if(chat.getPeppermintChatId() > 0) {
+                refreshTimestamps(db, chat.getPeppermintChatId());
+            }
+
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
 
-        // get additional data only visible through the v_chat view
-        Cursor autoCursor = db.rawQuery("SELECT peppermint_chat_id FROM v_chat WHERE chat_id = " + id, null);
-        try {
-            if (autoCursor.moveToNext()) {
-                chat.setPeppermintChatId(autoCursor.getLong(autoCursor.getColumnIndex("peppermint_chat_id")));
-            }
-        } finally {
-            autoCursor.close();
-        }
-
-        if(chat.getPeppermintChatId() > 0) {
-            refreshTimestamps(db, chat.getPeppermintChatId());
-        }
-
         Log.d(TAG, "INSERTED " + chat);
 
         return chat;
     }
 
     public static void update(SQLiteDatabase db, Chat chat) throws SQLException {
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
         try {
             deassociateRecipients(db, chat.getId());
             associateRecipients(db, chat.getId(), chat.getRecipientList());
 
-            ContentValues cv = new ContentValues();
-            if(chat.getTitle() != null) {
-                cv.put("title", chat.getTitle());
-            }
-            cv.put("last_message_ts", chat.getLastMessageTimestamp());
+            // the title is only replaced if supplied
+            StatementCache.executeUpdateDelete(db, "UPDATE tbl_chat SET title = IFNULL(?, title), last_message_ts = ? WHERE chat_id = ?",
+                    chat.getTitle(), chat.getLastMessageTimestamp(), chat.getId());
 
-            long id = db.update("tbl_chat", cv, "chat_id = " + chat.getId(), null);
-            if(id < 0) {
-                throw new SQLException("Unable to update chat!");
+            refreshSummary(db, chat.getId());
+            chat.setPeppermintChatId(getSummaryPeppermintChatId(db, chat.getId()));
+            if(chat.getPeppermintChatId() > 0) {
+                refreshTimestamps(db, chat.getPeppermintChatId());
             }
 
             db.setTransactionSuccessful();
@@ -238,20 +293,6 @@ public class ChatManager {
             db.endTransaction();
         }
 
-        // get additional data only visible through the v_chat view
-        Cursor autoCursor = db.rawQuery("SELECT peppermint_chat_id FROM v_chat WHERE chat_id = " + chat.getId(), null);
-        try {
-            if (autoCursor.moveToNext()) {
-                chat.setPeppermintChatId(autoCursor.getLong(autoCursor.getColumnIndex("peppermint_chat_id")));
-            }
-        } finally {
-            autoCursor.close();
-        }
-
-        if(chat.getPeppermintChatId() > 0) {
-            refreshTimestamps(db, chat.getPeppermintChatId());
-        }
-
         Log.d(TAG, "UPDATED " + chat);
     }
 
@@ -276,16 +317,15 @@ public class ChatManager {
     }
 
     public static void delete(SQLiteDatabase db, long chatId) throws SQLException {
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         try {
             MessageManager.deleteByChat(db, chatId);
             deassociateRecipients(db, chatId);
 
-            long resId = db.delete("tbl_chat", "chat_id = " + chatId, null);
-            if (resId < 0) {
-                throw new SQLException("Unable to delete chat!");
-            }
+            StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_chat WHERE chat_id = ?", chatId);
+
+            deleteSummary(db, chatId);
 
             db.setTransactionSuccessful();
         } finally {
@@ -22,8 +22,13 @@ import com.peppermint.app.utils.Utils;
 
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by Nuno Luz on 17-02-2016.
@@ -246,7 +251,8 @@ public class ContactManager {
      * Obtains a list of all contact data found in the Android contacts database according to
      * the given restrictions.
      * <strong>If allowedIds is null, will returns a {@link PeppermintFilteredCursor}, which will merge duplicate
-     * contacts and Peppermint contacts.</strong>
+     * contacts and Peppermint contacts.</strong> In this case, the search is answered by the
+     * {@link ContactSearchIndex} (if available).
      *
      * @param context the context
      * @param allowedIds the allowed ids filter
@@ -255,10 +261,17 @@ public class ContactManager {
      * @return the result cursor
      */
     public static Cursor get(final Context context, final List<Long> allowedIds, String freeTextSearch, List<String> allowedMimeTypes, String enforcedViaSearch) {
+        if(allowedIds == null) {
+            Cursor indexCursor = ContactSearchIndex.getInstance(context).search(freeTextSearch, allowedMimeTypes, enforcedViaSearch);
+            if(indexCursor != null) {
+                return new PeppermintFilteredCursor(context, indexCursor);
+            }
+        }
+
         List<String> args = new ArrayList<>();
 
         String condFreeSearch = (freeTextSearch == null ? null : "(LOWER(" + FIELD_DISPLAY_NAME + ") LIKE " + DatabaseUtils.sqlEscapeString(freeTextSearch + "%") + " OR LOWER(" + FIELD_DISPLAY_NAME + ") LIKE " + DatabaseUtils.sqlEscapeString("% " + freeTextSearch + "%") + " OR " + String.format(SQL_VIA_CONDITION, DatabaseUtils.sqlEscapeString(freeTextSearch + "%")) + ")");
-        String condViaSearch = (enforcedViaSearch == null ? null : String.format(SQL_VIA_CONDITION, DatabaseUtils.sqlEscapeString(freeTextSearch + "%")));
+        String condViaSearch = (enforcedViaSearch == null ? null : String.format(SQL_VIA_CONDITION, DatabaseUtils.sqlEscapeString(enforcedViaSearch + "%")));
 
         String condMimeTypes = Utils.getSQLConditions(ContactsContract.Data.MIMETYPE, allowedMimeTypes, args, false);
         String condIds = Utils.getSQLConditions(ContactsContract.Data._ID, allowedIds, null, false);
@@ -370,6 +383,29 @@ public class ContactManager {
         return -1;
     }
 
+    /**
+     * @return an insert operation builder for a data row of the raw contact with the specified
+     * id or, if rawId is not valid, of the raw contact inserted by the operation at rawIdBackRef
+     */
+    private static ContentProviderOperation.Builder newDataInsert(long rawId, int rawIdBackRef) {
+        if (rawId <= 0) {
+            return ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
+                    .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIdBackRef);
+        }
+        return ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
+                .withValue(ContactsContract.Data.RAW_CONTACT_ID, rawId);
+    }
+
+    private static void addEmailOperation(String email, long rawId, int rawIdBackRef, ArrayList<ContentProviderOperation> ops) {
+        ops.add(newDataInsert(rawId, rawIdBackRef).withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
+                .withValue(ContactsContract.Data.DATA1, email).build());
+    }
+
+    private static void addPeppermintOperation(String email, long rawId, int rawIdBackRef, ArrayList<ContentProviderOperation> ops) {
+        ops.add(newDataInsert(rawId, rawIdBackRef).withValue(ContactsContract.Data.MIMETYPE, ContactData.PEPPERMINT_MIMETYPE)
+                .withValue(ContactsContract.Data.DATA1, email).build());
+    }
+
     public static long insertEmail(Context context, String email, long rawId, int rawIdBackRef, ArrayList<ContentProviderOperation> operationsList) throws InvalidEmailException {
         if(!Utils.isValidEmail(email)) {
             throw new InvalidEmailException();
@@ -387,19 +423,7 @@ public class ContactManager {
 
         if(!alreadyHasEmail) {
             ArrayList<ContentProviderOperation> ops = operationsList == null ? new ArrayList<ContentProviderOperation>() : operationsList;
-
-            ContentProviderOperation.Builder op;
-            if (rawId <= 0) {
-                op = ContentProviderOperation
-                        .newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIdBackRef);
-            } else {
-                op = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, rawId);
-            }
-
-            ops.add(op.withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
-                    .withValue(ContactsContract.Data.DATA1, email).build());
+            addEmailOperation(email, rawId, rawIdBackRef, ops);
 
             if(operationsList == null) {
                 // no caller operations list, so execute the operations right away
@@ -481,18 +505,7 @@ public class ContactManager {
 
         if(!alreadyHasPeppermint) {
             ArrayList<ContentProviderOperation> ops = operationsList == null ? new ArrayList<ContentProviderOperation>() : operationsList;
-
-            ContentProviderOperation.Builder op;
-            if (rawId <= 0) {
-                op = ContentProviderOperation
-                        .newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIdBackRef);
-            } else {
-                op = ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                        .withValue(ContactsContract.Data.RAW_CONTACT_ID, rawId);
-            }
-
-            ops.add(op.withValue(ContactsContract.Data.MIMETYPE, ContactData.PEPPERMINT_MIMETYPE).withValue(ContactsContract.Data.DATA1, email).build());
+            addPeppermintOperation(email, rawId, rawIdBackRef, ops);
 
             if(operationsList == null) {
                 // no caller operations list, so execute the operations right away
@@ -506,24 +519,18 @@ public class ContactManager {
         return -1;
     }
 
-    private static long insertRaw(Context context, long contactId, String googleAccountName, ArrayList<ContentProviderOperation> operationsList) {
-        ArrayList<ContentProviderOperation> ops = operationsList == null ? new ArrayList<ContentProviderOperation>() : operationsList;
-
-        ContentProviderOperation.Builder insertOp = ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
-                .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, GOOGLE_ACCOUNT_TYPE)
-                .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, googleAccountName);
-
-        if(contactId > 0) {
-            insertOp.withValue(ContactsContract.RawContacts.CONTACT_ID, contactId);
-        }
-
-        ops.add(insertOp.build());
-
-        // check if Peppermint group exists; create it if not
-        // we could add to the default group "My Contacts" but it might not exist
-        // also, the default operation doesn't necessarily add the contact to a group
-        // causing the GROUP_VISIBLE flag to be 0
-        Long groupId = null;
+    /**
+     * Obtains the id of the visible Peppermint group of the specified account, creating it if necessary.<br />
+     * We could add contacts to the default group "My Contacts" but it might not exist.
+     * Also, the default operation doesn't necessarily add the contact to a group,
+     * causing the GROUP_VISIBLE flag to be 0.
+     *
+     * @param context the context
+     * @param googleAccountName the google account name
+     * @return the group id
+     */
+    private static long getOrInsertPeppermintGroup(Context context, String googleAccountName) {
+        long groupId;
         Cursor groupCursor = context.getContentResolver().query(
                 ContactsContract.Groups.CONTENT_URI,
                 new String[]{ContactsContract.Groups._ID},
@@ -546,9 +553,30 @@ public class ContactManager {
                 groupCursor.close();
             }
         }
+        return groupId;
+    }
+
+    private static long insertRaw(Context context, long contactId, String googleAccountName, ArrayList<ContentProviderOperation> operationsList) {
+        return insertRaw(context, contactId, googleAccountName, getOrInsertPeppermintGroup(context, googleAccountName), operationsList);
+    }
+
+    private static long insertRaw(Context context, long contactId, String googleAccountName, long groupId, ArrayList<ContentProviderOperation> operationsList) {
+        ArrayList<ContentProviderOperation> ops = operationsList == null ? new ArrayList<ContentProviderOperation>() : operationsList;
+        final int rawIdBackRef = ops.size();
+
+        // no yield points: the batch must stay atomic, so that a failed batch can be retried as a whole
+        ContentProviderOperation.Builder insertOp = ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
+                .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, GOOGLE_ACCOUNT_TYPE)
+                .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, googleAccountName);
+
+        if(contactId > 0) {
+            insertOp.withValue(ContactsContract.RawContacts.CONTACT_ID, contactId);
+        }
+
+        ops.add(insertOp.build());
 
         ops.add(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI)
-                .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0)
+                .withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawIdBackRef)
                 .withValue(ContactsContract.Data.DATA1, groupId)
                 .withValue(ContactsContract.Data.MIMETYPE, ContactsContract.CommonDataKinds.GroupMembership.CONTENT_ITEM_TYPE).build());
 
@@ -642,6 +670,282 @@ public class ContactManager {
         return insert(context, contactId, rawId, firstName, lastName, phone, email, photoUri, googleAccountName, hasPeppermint);
     }
 
+    /**
+     * A contact to insert or update through {@link #insertOrUpdate(Context, List)}.
+     */
+    public static class BatchContact {
+        private String mFirstName, mLastName, mEmail, mGoogleAccountName;
+        private boolean mHasPeppermint;
+
+        public BatchContact(String firstName, String lastName, String email, String googleAccountName, boolean hasPeppermint) {
+            this.mFirstName = firstName;
+            this.mLastName = lastName;
+            this.mEmail = email;
+            this.mGoogleAccountName = googleAccountName;
+            this.mHasPeppermint = hasPeppermint;
+        }
+
+        public String getFirstName() {
+            return mFirstName;
+        }
+
+        public String getLastName() {
+            return mLastName;
+        }
+
+        public String getEmail() {
+            return mEmail;
+        }
+
+        public String getGoogleAccountName() {
+            return mGoogleAccountName;
+        }
+
+        public boolean hasPeppermint() {
+            return mHasPeppermint;
+        }
+    }
+
+    private static String getInCondition(String field, Collection<String> values) {
+        StringBuilder b = new StringBuilder(field).append(" IN (");
+        boolean first = true;
+        for(String value : values) {
+            if(!first) {
+                b.append(",");
+            }
+            b.append(DatabaseUtils.sqlEscapeString(value));
+            first = false;
+        }
+        return b.append(")").toString();
+    }
+
+    /**
+     * Batch version of {@link #insertOrUpdate(Context, long, long, String, String, String, String, Uri, String, boolean)}
+     * for contacts identified by their email (e.g. all unknown senders of a page of messages).<br />
+     * <ol>
+     *     <li>Existing raw contacts, along with their email and Peppermint data, are found with a single query;</li>
+     *     <li>All inserts and updates are applied in a single batch, using back-references for new raw contacts;</li>
+     *     <li>The resulting contacts are read with a single query (plus one for their Peppermint data).</li>
+     * </ol>
+     * Contacts with an invalid email or name are logged and skipped. Contacts with the same email
+     * are only inserted/updated once.
+     *
+     * @param context the context
+     * @param contacts the contacts to insert or update
+     * @return the resulting contacts, in the same order as the supplied list (null for skipped contacts)
+     */
+    public static List<ContactRaw> insertOrUpdate(Context context, List<BatchContact> contacts) {
+        final TrackerManager trackerManager = TrackerManager.getInstance(context.getApplicationContext());
+        final int count = contacts.size();
+        final List<ContactRaw> result = new ArrayList<>(count);
+
+        // validate and index contacts by email
+        final String[] keys = new String[count];
+        final Map<String, Integer> indexByKey = new HashMap<>();
+        for(int i=0; i<count; i++) {
+            result.add(null);
+            final String email = contacts.get(i).getEmail() == null ? "" : contacts.get(i).getEmail().trim();
+            if(!Utils.isValidEmail(email)) {
+                trackerManager.logException(new InvalidEmailException());
+                continue;
+            }
+            keys[i] = email.toLowerCase();
+            if(!indexByKey.containsKey(keys[i])) {
+                indexByKey.put(keys[i], i);
+            }
+        }
+
+        if(indexByKey.size() <= 0) {
+            return result;
+        }
+
+        final Set<String> emails = new HashSet<>();
+        for(int i : indexByKey.values()) {
+            emails.add(contacts.get(i).getEmail().trim());
+        }
+        final String condEmails = getInCondition(ContactsContract.Data.DATA1, emails) + " AND " +
+                getInCondition(ContactsContract.Data.MIMETYPE, Arrays.asList(ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE, ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE));
+
+        // 1. find existing raw contacts (first match by email, as in getByEmailOrPhone) and their data
+        final Map<String, ContactData> existingByKey = new HashMap<>();
+        final Map<Long, List<String>> emailsByRawId = new HashMap<>();
+        final Set<Long> peppermintRawIds = new HashSet<>();
+        Cursor cursor = context.getContentResolver().query(ContactsContract.Data.CONTENT_URI, PROJECTION,
+                getInCondition(ContactsContract.Data.MIMETYPE, Arrays.asList(ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE, ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE, ContactData.PEPPERMINT_MIMETYPE)) +
+                        " AND " + ContactsContract.Data.RAW_CONTACT_ID + " IN (SELECT " + ContactsContract.Data.RAW_CONTACT_ID + " FROM view_data WHERE " + condEmails + ")",
+                null, SQL_GENERAL_ORDER);
+        if(cursor != null) {
+            while(cursor.moveToNext()) {
+                final ContactData data = getContactFromCursor(cursor);
+                final String via = data.getVia() == null ? "" : data.getVia();
+                if(ContactData.PEPPERMINT_MIMETYPE.equals(data.getMimeType())) {
+                    peppermintRawIds.add(data.getRawId());
+                    continue;
+                }
+
+                final String key = via.trim().toLowerCase();
+                if(indexByKey.containsKey(key) && !existingByKey.containsKey(key)) {
+                    existingByKey.put(key, data);
+                }
+
+                if(ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE.equals(data.getMimeType())) {
+                    List<String> rawEmails = emailsByRawId.get(data.getRawId());
+                    if(rawEmails == null) {
+                        rawEmails = new ArrayList<>();
+                        emailsByRawId.put(data.getRawId(), rawEmails);
+                    }
+                    rawEmails.add(via.trim().toLowerCase());
+                }
+            }
+            cursor.close();
+        }
+
+        // 2. build all operations
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        final Map<String, Long> groupIds = new HashMap<>();
+        final Map<String, Long> rawIdByKey = new HashMap<>();
+        final Map<String, Integer> rawIdBackRefByKey = new HashMap<>();
+
+        for(Map.Entry<String, Integer> entry : indexByKey.entrySet()) {
+            final String key = entry.getKey();
+            final BatchContact contact = contacts.get(entry.getValue());
+            final String email = contact.getEmail().trim();
+            final ContactData existing = existingByKey.get(key);
+            final long rawId = existing == null ? 0 : existing.getRawId();
+
+            String firstName = contact.getFirstName(), lastName = contact.getLastName();
+            if(existing != null && Utils.isValidEmail(firstName)) {
+                firstName = null;
+                lastName = null;
+            }
+            firstName = firstName == null ? "" : Utils.capitalizeFully(firstName.trim());
+            lastName = lastName == null ? "" : Utils.capitalizeFully(lastName.trim());
+
+            final boolean hasName = !TextUtils.isEmpty(firstName) || !TextUtils.isEmpty(lastName);
+            if(hasName && !Utils.isValidName((firstName + " " + lastName).trim())) {
+                trackerManager.logException(new InvalidNameException());
+                continue;
+            }
+
+            final int rawIdBackRef = ops.size();
+            if(rawId <= 0) {
+                final String account = contact.getGoogleAccountName();
+                Long groupId = groupIds.get(account);
+                if(groupId == null) {
+                    groupId = getOrInsertPeppermintGroup(context, account);
+                    groupIds.put(account, groupId);
+                }
+                insertRaw(context, 0, account, groupId, ops);
+                rawIdBackRefByKey.put(key, rawIdBackRef);
+            } else {
+                rawIdByKey.put(key, rawId);
+            }
+
+            if(hasName) {
+                try {
+                    insertOrUpdateName(context, firstName, lastName, rawId, rawIdBackRef, ops);
+                } catch (InvalidNameException e) {
+                    // already validated above
+                    trackerManager.logException(e);
+                }
+            }
+
+            boolean alreadyHasEmail = false;
+            final List<String> rawEmails = emailsByRawId.get(rawId);
+            if(rawId > 0 && rawEmails != null) {
+                for(int i=0; i<rawEmails.size() && !alreadyHasEmail; i++) {
+                    alreadyHasEmail = rawEmails.get(i).equals(key);
+                }
+            }
+            if(!alreadyHasEmail) {
+                addEmailOperation(email, rawId, rawIdBackRef, ops);
+            }
+
+            if(contact.hasPeppermint() && (rawId <= 0 || !peppermintRawIds.contains(rawId))) {
+                addPeppermintOperation(email, rawId, rawIdBackRef, ops);
+            }
+        }
+
+        // 3. apply all operations at once
+        if(ops.size() > 0) {
+            final ContentProviderResult[] res = executeOperations(context, ops);
+            if(res == null) {
+                // the whole batch failed; insert/update contacts one by one, so that only the failing ones are lost
+                for(Map.Entry<String, Integer> entry : indexByKey.entrySet()) {
+                    final BatchContact contact = contacts.get(entry.getValue());
+                    try {
+                        final ContactRaw contactRaw = insertOrUpdate(context, 0, 0, contact.getFirstName(), contact.getLastName(), null,
+                                contact.getEmail().trim(), null, contact.getGoogleAccountName(), contact.hasPeppermint());
+                        for(int i=0; i<count; i++) {
+                            if(entry.getKey().equals(keys[i])) {
+                                result.set(i, contactRaw);
+                            }
+                        }
+                    } catch (InvalidPhoneException | InvalidNameException | InvalidEmailException e) {
+                        trackerManager.logException(e);
+                    }
+                }
+                return result;
+            }
+
+            for(Map.Entry<String, Integer> entry : rawIdBackRefByKey.entrySet()) {
+                rawIdByKey.put(entry.getKey(), ContentUris.parseId(res[entry.getValue()].uri));
+            }
+        }
+
+        // 4. read the resulting contacts (prefer the row of the inserted/updated raw contact)
+        final Map<String, ContactRaw> contactRawByKey = new HashMap<>();
+        cursor = context.getContentResolver().query(ContactsContract.Data.CONTENT_URI, PROJECTION, condEmails, null, SQL_GENERAL_ORDER);
+        if(cursor != null) {
+            while(cursor.moveToNext()) {
+                final String via = cursor.getString(cursor.getColumnIndex(ContactsContract.Data.DATA1));
+                final String key = via == null ? "" : via.trim().toLowerCase();
+                if(!rawIdByKey.containsKey(key)) {
+                    continue;
+                }
+                final ContactRaw current = contactRawByKey.get(key);
+                final long rawId = cursor.getLong(cursor.getColumnIndex(ContactsContract.Data.RAW_CONTACT_ID));
+                if(current == null || (current.getRawId() != rawIdByKey.get(key) && rawId == rawIdByKey.get(key))) {
+                    contactRawByKey.put(key, getRawContactFromCursor(null, cursor));
+                }
+            }
+            cursor.close();
+        }
+
+        if(contactRawByKey.size() <= 0) {
+            return result;
+        }
+
+        // Peppermint data of all resulting contacts
+        final List<Long> contactIds = new ArrayList<>();
+        for(ContactRaw contactRaw : contactRawByKey.values()) {
+            contactIds.add(contactRaw.getContactId());
+        }
+        final List<String> mimeTypes = new ArrayList<>();
+        mimeTypes.add(ContactData.PEPPERMINT_MIMETYPE);
+        final Map<Long, ContactData> peppermintByContactId = new HashMap<>();
+        cursor = getRaw(context, contactIds, null, mimeTypes, null);
+        if(cursor != null) {
+            while(cursor.moveToNext()) {
+                final ContactData data = getContactFromCursor(cursor);
+                if(!peppermintByContactId.containsKey(data.getContactId())) {
+                    peppermintByContactId.put(data.getContactId(), data);
+                }
+            }
+            cursor.close();
+        }
+
+        for(int i=0; i<count; i++) {
+            final ContactRaw contactRaw = keys[i] == null ? null : contactRawByKey.get(keys[i]);
+            if(contactRaw != null) {
+                contactRaw.setContactData(peppermintByContactId.get(contactRaw.getContactId()));
+                result.set(i, contactRaw);
+            }
+        }
+
+        return result;
+    }
+
     private static ContentProviderResult[] executeOperations(Context context, ArrayList<ContentProviderOperation> operations) {
         try {
             ContentProviderResult[] res = context.getContentResolver().applyBatch(ContactsContract.AUTHORITY, operations);
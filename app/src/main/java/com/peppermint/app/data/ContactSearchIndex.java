@@ -0,0 +1,441 @@
+package com.peppermint.app.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.peppermint.app.tracking.TrackerManager;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Local search index of the Android contacts, stored in the Peppermint database.<br />
+ * The contact data rows used by the contact list ({@link ContactManager#get(Context, List, String, List, String)})
+ * are mirrored from the {@link ContactsContract} to tbl_contact_data, and their normalized display
+ * name and email address are indexed in the FTS table tbl_contact_search.<br />
+ * <br />
+ * The mirror is rebuilt in the background after the {@link ContactsContract} changes (detected through
+ * a {@link ContentObserver}) and once per process. Until then, searches are answered from the
+ * last index (or by the caller, if there is none). Prefix searches are answered from the FTS index. If a search
+ * only narrows the previous one (e.g. the user typed one more letter), the previous result set
+ * is filtered in memory instead.
+ */
+public class ContactSearchIndex {
+
+    private static final String TAG = ContactSearchIndex.class.getSimpleName();
+
+    // results larger than this are not kept in memory for narrowing
+    private static final int MAX_NARROWING_ROWS = 1000;
+    // coalesces bursts of contact changes (e.g. a sync inserting many contacts) into one rebuild
+    private static final long REBUILD_DELAY_MS = 2000;
+
+    private static final Pattern NON_TOKEN_PATTERN = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern DIACRITICS_PATTERN = Pattern.compile("\\p{M}+");
+
+    private static final String[] MIRRORED_MIMETYPES = {
+            ContactData.EMAIL_MIMETYPE,
+            ContactData.PHONE_MIMETYPE,
+            ContactData.PEPPERMINT_MIMETYPE
+    };
+
+    // same as in raw/db_create.sql and raw/db_23_contact_search.sql
+    private static final String TABLE_DATA = "tbl_contact_data";
+    private static final String TABLE_SEARCH = "tbl_contact_search";
+
+    private static final String[] PROJECTION = {
+            ContactsContract.Data._ID,
+            ContactsContract.Data.RAW_CONTACT_ID,
+            ContactsContract.Data.CONTACT_ID,
+            ContactsContract.Data.STARRED,
+            ContactsContract.Data.MIMETYPE,
+            ContactsContract.Data.DATA1,
+            ContactsContract.CommonDataKinds.Photo.PHOTO_URI,
+            ContactManager.FIELD_DISPLAY_NAME,
+            ContactsContract.RawContacts.ACCOUNT_NAME,
+            ContactsContract.RawContacts.ACCOUNT_TYPE,
+            ContactsContract.Data.IS_PRIMARY,
+            ContactsContract.Data.IS_SUPER_PRIMARY,
+            ContactsContract.Data.IN_VISIBLE_GROUP
+    };
+
+    private static final String SQL_INSERT_DATA = "INSERT INTO " + TABLE_DATA + " (" + join(", ", PROJECTION) + ", is_peppermint) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_INSERT_SEARCH = "INSERT INTO " + TABLE_SEARCH + " (docid, search_name, search_via) VALUES (?, ?, ?)";
+    private static final String SQL_SELECT = "SELECT " + join(", ", PROJECTION) + ", is_peppermint FROM " + TABLE_DATA;
+    private static final String SQL_MATCH = ContactsContract.Data._ID + " IN (SELECT docid FROM " + TABLE_SEARCH + " WHERE " + TABLE_SEARCH + " MATCH %1$s)";
+    // same order as the provider query in ContactManager: Peppermint contacts first, then by name, email first
+    private static final String SQL_ORDER = " ORDER BY is_peppermint DESC, " + ContactManager.FIELD_DISPLAY_NAME + " COLLATE NOCASE, " +
+            "(CASE WHEN " + ContactsContract.Data.MIMETYPE + " = " + DatabaseUtils.sqlEscapeString(ContactData.EMAIL_MIMETYPE) + " THEN 1 ELSE 0 END) DESC, " +
+            ContactsContract.Data.IN_VISIBLE_GROUP + " DESC, " + ContactsContract.Data.IS_SUPER_PRIMARY + " DESC, " + ContactsContract.Data.IS_PRIMARY + " DESC";
+
+    private static ContactSearchIndex INSTANCE;
+
+    public static synchronized ContactSearchIndex getInstance(Context context) {
+        if(INSTANCE == null) {
+            INSTANCE = new ContactSearchIndex(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * The rows of the previous search, kept to narrow down the next one.
+     */
+    private static class SearchState {
+        private final long mGeneration;
+        private final String mQuery;
+        private final List<String> mMimeTypes;
+        private final String mViaQuery;
+        private final long[] mIds;
+        private final String[][] mNameTokens;
+        private final String[] mViaKeys;
+
+        private SearchState(long generation, String query, List<String> mimeTypes, String viaQuery, long[] ids, String[][] nameTokens, String[] viaKeys) {
+            this.mGeneration = generation;
+            this.mQuery = query;
+            this.mMimeTypes = mimeTypes == null ? null : new ArrayList<>(mimeTypes);
+            this.mViaQuery = viaQuery;
+            this.mIds = ids;
+            this.mNameTokens = nameTokens;
+            this.mViaKeys = viaKeys;
+        }
+
+        private boolean canNarrow(long generation, String query, List<String> mimeTypes, String viaQuery) {
+            return generation == mGeneration && query != null && mQuery != null && query.startsWith(mQuery) &&
+                    (mimeTypes == null ? mMimeTypes == null : mimeTypes.equals(mMimeTypes)) &&
+                    (viaQuery == null ? mViaQuery == null : viaQuery.equals(mViaQuery));
+        }
+    }
+
+    private final Context mContext;
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mDirty = true;
+            scheduleRebuild(REBUILD_DELAY_MS);
+        }
+    };
+
+    private final Runnable mRebuildRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mRebuildScheduled.set(false);
+            if(mDirty) {
+                rebuild();
+            }
+        }
+    };
+
+    private final ScheduledThreadPoolExecutor mRebuildExecutor = new ScheduledThreadPoolExecutor(1);
+    private final AtomicBoolean mRebuildScheduled = new AtomicBoolean(false);
+
+    // the mirror is always rebuilt once per process, since contacts may have changed in the meantime
+    private volatile boolean mDirty = true;
+    // true if the index tables have contents (possibly from a previous process)
+    private volatile boolean mAvailable = false;
+    private boolean mObserving = false;
+    private long mGeneration = 0;
+    private SearchState mLastSearch;
+
+    private ContactSearchIndex(Context context) {
+        this.mContext = context;
+    }
+
+    /**
+     * Searches the contact data rows. <strong>Never waits for the index to be rebuilt</strong>; if
+     * the contacts have changed, the last index is used while it is rebuilt in the background.<br />
+     * The returned cursor has the same columns as the cursors of {@link ContactManager}.
+     * <strong>Requires the READ_CONTACTS permission.</strong>
+     *
+     * @param freeTextSearch matches the start of any word in the display name, or the start of the email address
+     * @param allowedMimeTypes the allowed mime types (null for all)
+     * @param viaSearch matches the start of the email address
+     * @return the result cursor; null if the index is not available (e.g. not built yet)
+     */
+    public synchronized Cursor search(String freeTextSearch, List<String> allowedMimeTypes, String viaSearch) {
+        final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).getReadableDatabase();
+
+        if(!mObserving) {
+            mContext.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI, true, mContactsObserver);
+            mObserving = true;
+            // the index built by a previous process can be used until it is rebuilt
+            mAvailable = StatementCache.simpleQueryForLong(db, "SELECT EXISTS(SELECT 1 FROM " + TABLE_DATA + ")", 0) > 0;
+        }
+
+        if(mDirty) {
+            scheduleRebuild(0);
+        }
+        if(!mAvailable) {
+            return null;
+        }
+
+        final String query = freeTextSearch == null || freeTextSearch.trim().length() <= 0 ? null : joinTokens(getTokens(freeTextSearch));
+        final String viaQuery = viaSearch == null || viaSearch.trim().length() <= 0 ? null : getViaKey(viaSearch);
+
+        final SearchState lastSearch = mLastSearch;
+        final Cursor cursor;
+        if(lastSearch != null && lastSearch.canNarrow(mGeneration, query, allowedMimeTypes, viaQuery)) {
+            cursor = narrow(db, lastSearch, query);
+        } else {
+            cursor = db.rawQuery(SQL_SELECT + " WHERE " + getConditions(query, allowedMimeTypes, viaQuery) + SQL_ORDER, null);
+        }
+
+        mLastSearch = query == null || query.length() <= 0 ? null : getSearchState(cursor, query, allowedMimeTypes, viaQuery);
+        return cursor;
+    }
+
+    private Cursor narrow(SQLiteDatabase db, SearchState lastSearch, String query) {
+        final String[] queryTokens = query.split(" ");
+        final String queryViaKey = getViaKey(query);
+
+        final StringBuilder ids = new StringBuilder();
+        for(int i=0; i<lastSearch.mIds.length; i++) {
+            if(matchesName(lastSearch.mNameTokens[i], queryTokens) || matchesVia(lastSearch.mViaKeys[i], queryViaKey)) {
+                if(ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(lastSearch.mIds[i]);
+            }
+        }
+
+        return db.rawQuery(SQL_SELECT + " WHERE " + ContactsContract.Data._ID + " IN (" + ids + ")" + SQL_ORDER, null);
+    }
+
+    private SearchState getSearchState(Cursor cursor, String query, List<String> allowedMimeTypes, String viaQuery) {
+        final int count = cursor.getCount();
+        if(count > MAX_NARROWING_ROWS) {
+            return null;
+        }
+
+        final int idIndex = cursor.getColumnIndex(ContactsContract.Data._ID);
+        final int nameIndex = cursor.getColumnIndex(ContactManager.FIELD_DISPLAY_NAME);
+        final int mimeTypeIndex = cursor.getColumnIndex(ContactsContract.Data.MIMETYPE);
+        final int viaIndex = cursor.getColumnIndex(ContactsContract.Data.DATA1);
+
+        final long[] ids = new long[count];
+        final String[][] nameTokens = new String[count][];
+        final String[] viaKeys = new String[count];
+        int i = 0;
+        while(cursor.moveToNext()) {
+            ids[i] = cursor.getLong(idIndex);
+            nameTokens[i] = getTokens(cursor.getString(nameIndex));
+            viaKeys[i] = ContactData.EMAIL_MIMETYPE.equals(cursor.getString(mimeTypeIndex)) ? getViaKey(cursor.getString(viaIndex)) : "";
+            i++;
+        }
+        cursor.moveToPosition(-1);
+
+        return new SearchState(mGeneration, query, allowedMimeTypes, viaQuery, ids, nameTokens, viaKeys);
+    }
+
+    /**
+     * @param query the normalized free text query (see {@link #getTokens(String)})
+     * @param allowedMimeTypes the allowed mime types (null for all)
+     * @param viaQuery the normalized email query (see {@link #getViaKey(String)})
+     * @return the WHERE conditions of the search in tbl_contact_data
+     */
+    static String getConditions(String query, List<String> allowedMimeTypes, String viaQuery) {
+        final List<String> conditions = new ArrayList<>();
+
+        if(query != null && query.length() <= 0) {
+            // nothing searchable (e.g. only punctuation)
+            conditions.add("0");
+        } else if(query != null) {
+            // phrase prefix search in the name, prefix search in the email
+            final String viaKey = getViaKey(query);
+            String match = "search_name:\"" + query + "*\"";
+            if(viaKey.length() > 0) {
+                match += " OR search_via:" + viaKey + "*";
+            }
+            conditions.add(String.format(SQL_MATCH, DatabaseUtils.sqlEscapeString(match)));
+        }
+
+        if(viaQuery != null) {
+            conditions.add(viaQuery.length() > 0 ? String.format(SQL_MATCH, DatabaseUtils.sqlEscapeString("search_via:" + viaQuery + "*")) : "0");
+        }
+
+        if(allowedMimeTypes != null) {
+            final List<String> escapedMimeTypes = new ArrayList<>();
+            for(String mimeType : allowedMimeTypes) {
+                escapedMimeTypes.add(DatabaseUtils.sqlEscapeString(mimeType));
+            }
+            conditions.add(ContactsContract.Data.MIMETYPE + " IN (" + join(", ", escapedMimeTypes.toArray(new String[escapedMimeTypes.size()])) + ")");
+        }
+
+        return conditions.size() <= 0 ? "1" : join(" AND ", conditions.toArray(new String[conditions.size()]));
+    }
+
+    private void scheduleRebuild(long delayMs) {
+        if(mRebuildScheduled.compareAndSet(false, true)) {
+            mRebuildExecutor.schedule(mRebuildRunnable, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Rebuilds the mirror of the contact data rows and the search index.<br />
+     * Runs in the background; searches keep reading the last committed index meanwhile.
+     *
+     * @return true if successful; false otherwise
+     */
+    private boolean rebuild() {
+        // the flag must be cleared before reading, so that changes made while reading are not lost
+        mDirty = false;
+
+        final String mimeTypeCondition = ContactsContract.Data.MIMETYPE + " IN (" + DatabaseUtils.sqlEscapeString(MIRRORED_MIMETYPES[0]) + ", " +
+                DatabaseUtils.sqlEscapeString(MIRRORED_MIMETYPES[1]) + ", " + DatabaseUtils.sqlEscapeString(MIRRORED_MIMETYPES[2]) + ")";
+
+        final Cursor cursor;
+        try {
+            cursor = mContext.getContentResolver().query(ContactsContract.Data.CONTENT_URI, PROJECTION, mimeTypeCondition, null, null);
+        } catch(SecurityException e) {
+            TrackerManager.getInstance(mContext).log("Unable to read contacts to build the search index", e);
+            mDirty = true;
+            return false;
+        }
+
+        if(cursor == null) {
+            mDirty = true;
+            return false;
+        }
+
+        final long startMillis = System.currentTimeMillis();
+        final SQLiteDatabase db = DatabaseHelper.getInstance(mContext).beginWriteTransaction();
+        try {
+            // peppermint contacts are prioritized
+            final Set<Long> peppermintRawIds = new HashSet<>();
+            final int rawIdIndex = cursor.getColumnIndex(ContactsContract.Data.RAW_CONTACT_ID);
+            final int mimeTypeIndex = cursor.getColumnIndex(ContactsContract.Data.MIMETYPE);
+            while(cursor.moveToNext()) {
+                if(ContactData.PEPPERMINT_MIMETYPE.equals(cursor.getString(mimeTypeIndex))) {
+                    peppermintRawIds.add(cursor.getLong(rawIdIndex));
+                }
+            }
+
+            db.execSQL("DELETE FROM " + TABLE_DATA);
+            db.execSQL("DELETE FROM " + TABLE_SEARCH);
+
+            final int nameIndex = cursor.getColumnIndex(ContactManager.FIELD_DISPLAY_NAME);
+            final int viaIndex = cursor.getColumnIndex(ContactsContract.Data.DATA1);
+            final Object[] args = new Object[PROJECTION.length + 1];
+
+            cursor.moveToPosition(-1);
+            while(cursor.moveToNext()) {
+                for(int i=0; i<PROJECTION.length; i++) {
+                    switch(cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            args[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_NULL:
+                            args[i] = null;
+                            break;
+                        default:
+                            args[i] = cursor.getString(i);
+                    }
+                }
+                args[PROJECTION.length] = peppermintRawIds.contains(cursor.getLong(rawIdIndex)) ? 1 : 0;
+                final long id = StatementCache.executeInsert(db, SQL_INSERT_DATA, args);
+
+                final boolean isEmail = ContactData.EMAIL_MIMETYPE.equals(cursor.getString(mimeTypeIndex));
+                StatementCache.executeInsert(db, SQL_INSERT_SEARCH, id,
+                        joinTokens(getTokens(cursor.getString(nameIndex))),
+                        isEmail ? getViaKey(cursor.getString(viaIndex)) : "");
+            }
+
+            db.setTransactionSuccessful();
+        } catch(RuntimeException e) {
+            TrackerManager.getInstance(mContext).log("Unable to build the contact search index", e);
+            mDirty = true;
+            return false;
+        } finally {
+            db.endTransaction();
+            cursor.close();
+        }
+
+        synchronized (this) {
+            mGeneration++;
+            mLastSearch = null;
+            mAvailable = true;
+        }
+        Log.d(TAG, "Rebuilt contact search index in " + (System.currentTimeMillis() - startMillis) + " ms");
+        return true;
+    }
+
+    /**
+     * Normalizes the text for searching: lower case, without diacritics.
+     */
+    static String normalize(String text) {
+        if(text == null) {
+            return "";
+        }
+        return DIACRITICS_PATTERN.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @return the normalized words of the text
+     */
+    static String[] getTokens(String text) {
+        final String normalized = NON_TOKEN_PATTERN.matcher(normalize(text)).replaceAll(" ").trim();
+        return normalized.length() <= 0 ? new String[0] : normalized.split(" ");
+    }
+
+    /**
+     * @return the normalized text as a single word (e.g. "john.doe@gmail.com" becomes "johndoegmailcom")
+     */
+    static String getViaKey(String text) {
+        return NON_TOKEN_PATTERN.matcher(normalize(text)).replaceAll("");
+    }
+
+    static String joinTokens(String[] tokens) {
+        return join(" ", tokens);
+    }
+
+    private static String join(String separator, String[] values) {
+        final StringBuilder builder = new StringBuilder();
+        for(int i=0; i<values.length; i++) {
+            if(i > 0) {
+                builder.append(separator);
+            }
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Same as the phrase prefix query of the FTS index: the name contains the query words in sequence,
+     * and the last query word is the prefix of a name word.
+     */
+    static boolean matchesName(String[] nameTokens, String[] queryTokens) {
+        if(queryTokens.length <= 0 || queryTokens.length > nameTokens.length) {
+            return false;
+        }
+
+        final int last = queryTokens.length - 1;
+        for(int i=0; i + last < nameTokens.length; i++) {
+            boolean matches = nameTokens[i + last].startsWith(queryTokens[last]);
+            for(int j=0; matches && j<last; j++) {
+                matches = nameTokens[i + j].equals(queryTokens[j]);
+            }
+            if(matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as the prefix query of the FTS index on the email address.
+     */
+    static boolean matchesVia(String viaKey, String queryViaKey) {
+        return queryViaKey.length() > 0 && viaKey.startsWith(queryViaKey);
+    }
+}
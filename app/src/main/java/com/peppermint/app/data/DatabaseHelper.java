@@ -4,10 +4,13 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.peppermint.app.R;
 import com.peppermint.app.cloud.senders.SenderPreferences;
+import com.peppermint.app.tracking.TrackerApi;
 import com.peppermint.app.tracking.TrackerManager;
 import com.peppermint.app.utils.DateContainer;
 import com.peppermint.app.utils.ScriptFileReader;
@@ -18,12 +21,16 @@ import java.util.Calendar;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Nuno Luz on 05/10/2015.
  *
- * Database helper class for initialization, migration and connect operations.
+ * Database helper class for initialization, migration and connect operations.<br />
+ * Read operations use {@link #getReadableDatabase()} and never wait for write transactions
+ * (write-ahead logging). Write operations use {@link #beginWriteTransaction()}, or a single
+ * data manager call on {@link #getWritableDatabase()}. Data managers begin their own (usually nested)
+ * transactions through {@link #beginWrite(SQLiteDatabase)}, so that all writes are measured.
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
 
@@ -45,23 +52,103 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
 	private static final String TAG = DatabaseHelper.class.getSimpleName();
 	private static final String DATABASE_NAME = "peppermint.db";        // database filename
-	private static final int DATABASE_VERSION = 20;                     // database version
+	private static final int DATABASE_VERSION = 23;                     // database version
+
+	// same as in raw/db_create.sql and raw/db_21_chat_summary.sql
+	private static final String SQL_CREATE_CHAT_SUMMARY = "CREATE TABLE IF NOT EXISTS tbl_chat_summary (chat_id INTEGER PRIMARY KEY, droid_contact_ids text, is_peppermint int default 0, peppermint_chat_id bigint default 0, unopened_count int default 0, last_message_ts varchar(19));";
+
+	// waits for the write lock longer than this are reported through the TrackerManager
+	private static final long WRITE_LOCK_WAIT_REPORT_MS = 500;
+
+	// write lock contention metrics (process-wide, since there's a single database)
+	private static final AtomicLong WRITE_COUNT = new AtomicLong();
+	private static final AtomicLong WRITE_LOCK_WAIT_MILLIS = new AtomicLong();
 
 	private Context mContext;
-    private ReentrantLock mLock = new ReentrantLock();
 
 	public DatabaseHelper(Context context) {
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		this.mContext = context;
+
+		// with write-ahead logging, readers use their own connections and never wait
+		// for a write transaction (e.g. a message sync) to finish
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			setWriteAheadLoggingEnabled(true);
+		}
 	}
 
-    public void lock() {
-        mLock.lock();
-    }
+	@Override
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
+	}
 
-    public void unlock() {
-		mLock.unlock();
-    }
+	/**
+	 * Write access path. Begins a (possibly nested) write transaction, waiting for any other
+	 * write transaction to finish. Only one write transaction is active at any given time,
+	 * so check-then-write sequences performed inside it are atomic.<br />
+	 * The caller must invoke {@link SQLiteDatabase#setTransactionSuccessful()} and
+	 * {@link SQLiteDatabase#endTransaction()} on the returned connection, just like with
+	 * {@link SQLiteDatabase#beginTransaction()}.
+	 *
+	 * @return the database connection for write operations
+	 */
+	public SQLiteDatabase beginWriteTransaction() {
+		final SQLiteDatabase db = getWritableDatabase();
+		beginWrite(db);
+		return db;
+	}
+
+	/**
+	 * Common write entry point, used by {@link #beginWriteTransaction()}, by the data managers and
+	 * by the single statement writes of the {@link StatementCache}. Begins a (possibly nested) write
+	 * transaction on the connection, measuring how long it waited for the write lock.<br />
+	 * Nested transactions are not measured, since the write lock is already held.
+	 *
+	 * @param db the writable database connection
+	 */
+	static void beginWrite(SQLiteDatabase db) {
+		if(db.inTransaction()) {
+			db.beginTransactionNonExclusive();
+			return;
+		}
+
+		final long startMillis = SystemClock.elapsedRealtime();
+		db.beginTransactionNonExclusive();
+		final long waitMillis = SystemClock.elapsedRealtime() - startMillis;
+
+		final long writeCount = WRITE_COUNT.incrementAndGet();
+		final long totalWaitMillis = WRITE_LOCK_WAIT_MILLIS.addAndGet(waitMillis);
+		if(waitMillis >= WRITE_LOCK_WAIT_REPORT_MS) {
+			final String message = "Waited " + waitMillis + " ms for the database write lock (total " +
+					totalWaitMillis + " ms in " + writeCount + " write transactions)";
+			final DatabaseHelper instance;
+			synchronized (DatabaseHelper.class) {
+				instance = INSTANCE;
+			}
+			if(instance != null) {
+				TrackerManager.getInstance(instance.mContext).track(TrackerApi.TYPE_EVENT, message, TAG);
+			} else {
+				Log.w(TAG, message);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of write transactions started through {@link #beginWrite(SQLiteDatabase)}
+	 */
+	public static long getWriteCount() {
+		return WRITE_COUNT.get();
+	}
+
+	/**
+	 * @return the total time spent waiting for the write lock in {@link #beginWrite(SQLiteDatabase)}
+	 */
+	public static long getWriteLockWaitMillis() {
+		return WRITE_LOCK_WAIT_MILLIS.get();
+	}
 
     /**
      * Reads and executes single line SQL instructions from a resource text file.
@@ -152,7 +239,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ContactRaw rawContact = ContactManager.getRawContactByDataId(mContext, contactId);
                 String utcTimestamp = dateContainer.getAsString(DateContainer.UTC);
 
-                _db.beginTransaction();
+                beginWrite(_db);
 
                 try {
                     Recipient recipient = new Recipient(rawContact, utcTimestamp);
@@ -174,6 +261,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             return;
 		}
 
+		if(_oldVersion < 21) {
+			// the chat summary table is kept up-to-date by the managers used in the upgrade steps below
+			// it is (re)filled by the v21 upgrade step
+			_db.execSQL(SQL_CREATE_CHAT_SUMMARY);
+		}
+
 		if(_oldVersion < 17) {
             Log.d(TAG, "Updating Database: v17 Refactoring...");
 
@@ -250,7 +343,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 			}
 		}
 
-		if(_oldVersion < 19) {
+		if(_oldVersion < 20) {
 			Log.d(TAG, "Updating Database: v20 Transcription...");
 
 			try {
@@ -259,5 +352,35 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 				TrackerManager.getInstance(mContext).logException(e);
 			}
 		}
+
+		if(_oldVersion < 21) {
+			Log.d(TAG, "Updating Database: v21 Chat Summary...");
+
+			try {
+				execSQLScript(R.raw.db_21_chat_summary, _db);
+			} catch (Exception e) {
+				TrackerManager.getInstance(mContext).logException(e);
+			}
+		}
+
+		if(_oldVersion < 22) {
+			Log.d(TAG, "Updating Database: v22 Indexes...");
+
+			try {
+				execSQLScript(R.raw.db_22_indexes, _db);
+			} catch (Exception e) {
+				TrackerManager.getInstance(mContext).logException(e);
+			}
+		}
+
+		if(_oldVersion < 23) {
+			Log.d(TAG, "Updating Database: v23 Contact Search...");
+
+			try {
+				execSQLScript(R.raw.db_23_contact_search, _db);
+			} catch (Exception e) {
+				TrackerManager.getInstance(mContext).logException(e);
+			}
+		}
 	}
 }
\ No newline at end of file
@@ -5,19 +5,23 @@ import android.content.ContentResolver;
 import android.database.CharArrayBuffer;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DataSetObservable;
 import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by Nuno Luz on 11-09-2015.
  *
  * Cursor that filters all the contents of another {@link Cursor} to all those
  * accepted by a {@link FilteredCursor.Filter}.<br />
+ * Accepted positions are kept in a growable int array. Filtering can be performed in chunks
+ * through {@link #filter(int)}: the rows accepted so far are immediately available (and counted
+ * by {@link #getCount()}), and registered {@link DataSetObserver}s are notified when more are added.<br />
+ * <strong>Moving the cursor never filters more rows.</strong> Only the rows filtered so far can be accessed.<br />
  *
  * Inspired on the solution found at http://stackoverflow.com/questions/3766688/filtering-a-cursor-the-right-way
  */
@@ -27,37 +31,98 @@ public class FilteredCursor implements Cursor {
         boolean isValid(Cursor cursor);
     }
 
+    private static final int INITIAL_CAPACITY = 64;
+
     protected Cursor mCursor;
-    protected List<Integer> mFilterList;
+    // accepted positions of the original cursor
+    protected int[] mPositions;
+    protected int mCount = 0;
+    // the next position of the original cursor to be filtered
+    private int mNextFilterPosition = 0;
     private int mPos = -1;
     private Filter mFilter;
+    private final DataSetObservable mDataSetObservable = new DataSetObservable();
 
     public FilteredCursor(Cursor cursor) {
-        this.mFilterList = new ArrayList<>();
+        this.mPositions = new int[INITIAL_CAPACITY];
         this.mCursor = cursor;
     }
 
+    /**
+     * Filters all (remaining) rows with the current filter.
+     */
     public void filter() {
         filter(mFilter);
     }
 
+    /**
+     * Filters all (remaining) rows with the specified filter.
+     *
+     * @param filter the filter
+     */
     public void filter(Filter filter) {
-        if(filter == null) {
-            return;
+        filter(filter, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Filters the next rows with the current filter.<br />
+     * Registered {@link DataSetObserver}s are notified if rows were accepted and this is not
+     * the first chunk (i.e. if the cursor may already be in use).
+     *
+     * @param maxRows the max. amount of rows of the original cursor to filter
+     * @return true if all rows have been filtered; false otherwise
+     */
+    public boolean filter(int maxRows) {
+        final boolean firstChunk = mNextFilterPosition == 0;
+        final int prevCount = mCount;
+        final boolean finished = filter(mFilter, maxRows);
+        if(!firstChunk && mCount != prevCount) {
+            mDataSetObservable.notifyChanged();
+        }
+        return finished;
+    }
+
+    private boolean filter(Filter filter, int maxRows) {
+        if(filter == null || mPositions == null) {
+            return true;
         }
 
-        mCursor.moveToPosition(-1);
-        while(mCursor.moveToNext()) {
-            if(filter.isValid(mCursor)) {
-                mFilterList.add(mCursor.getPosition());
+        final int originalCount = mCursor.getCount();
+        final int end = maxRows >= originalCount - mNextFilterPosition ? originalCount : mNextFilterPosition + maxRows;
+
+        for(int position = mNextFilterPosition; position < end; position++) {
+            if(mCursor.moveToPosition(position) && filter.isValid(mCursor)) {
+                if(mCount >= mPositions.length) {
+                    mPositions = Arrays.copyOf(mPositions, mPositions.length * 2);
+                }
+                mPositions[mCount++] = position;
             }
         }
-        mCursor.moveToPosition(-1);
+        mNextFilterPosition = end;
+
+        // keep the current position of this cursor
+        if(mPos >= 0 && mPos < mCount) {
+            mCursor.moveToPosition(mPositions[mPos]);
+        } else {
+            mCursor.moveToPosition(-1);
+        }
+
+        return isFiltered();
     }
 
+    /**
+     * @return true if all rows of the original cursor have been filtered
+     */
+    public boolean isFiltered() {
+        return mCursor.isClosed() || mNextFilterPosition >= mCursor.getCount();
+    }
+
+    /**
+     * @return the amount of accepted rows filtered so far
+     */
     @Override
     public int getCount() {
-        return mFilterList.size();
+        return mCount;
     }
 
     @Override
@@ -76,7 +141,7 @@ public class FilteredCursor implements Cursor {
         final int count = getCount();
         if (position >= count) {
             mPos = count;
-            moveToPosition(count);
+            mCursor.moveToPosition(mCursor.getCount());
             return false;
         }
 
@@ -87,7 +152,7 @@ public class FilteredCursor implements Cursor {
             return false;
         }
 
-        final int realPosition = mFilterList.get(position);
+        final int realPosition = mPositions[position];
 
         // When moving to an empty position, just pretend we did it
         boolean moved = mCursor.moveToPosition(realPosition);
@@ -230,10 +295,8 @@ public class FilteredCursor implements Cursor {
     @Override
     public void close() {
         mCursor.close();
-        if(mFilterList != null) {
-            mFilterList.clear();
-            mFilterList = null;
-        }
+        mPositions = null;
+        mCount = 0;
         mFilter = null;
     }
 
@@ -255,11 +318,13 @@ public class FilteredCursor implements Cursor {
     @Override
     public void registerDataSetObserver(DataSetObserver observer) {
         mCursor.registerDataSetObserver(observer);
+        mDataSetObservable.registerObserver(observer);
     }
 
     @Override
     public void unregisterDataSetObserver(DataSetObserver observer) {
         mCursor.unregisterDataSetObserver(observer);
+        mDataSetObservable.unregisterObserver(observer);
     }
 
     @Override
@@ -7,16 +7,23 @@ import android.net.Uri;
 
 import com.peppermint.app.R;
 import com.peppermint.app.cloud.MessagesMarkPlayedTask;
+import com.peppermint.app.cloud.apis.data.MessageListResponse;
+import com.peppermint.app.cloud.apis.data.MessagesResponse;
 import com.peppermint.app.tracking.TrackerManager;
 import com.peppermint.app.utils.DateContainer;
+import com.peppermint.app.utils.TimedLruCache;
 import com.peppermint.app.utils.Utils;
 
 import java.io.File;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by Nuno Luz on 15-03-2016.
@@ -25,19 +32,48 @@ import java.util.Map;
  */
 public class GlobalManager {
 
-    // faster contact lookup
-    // must be manually cleared to avoid unnecessary memory consumption
-    private static Map<String, ContactRaw> RAW_CONTACT_CACHE = new HashMap<>();
+    private static final int RAW_CONTACT_CACHE_MAX_SIZE = 200;
+    private static final long RAW_CONTACT_CACHE_TTL_MS = 10 * 60 * 1000;
+
+    // faster contact lookup (avoids querying the contacts provider for every message)
+    // shared by the message sync and by messages received through push notifications
+    // bounded and expiring, so that contact changes are eventually picked up
+    // keyed by the normalized contact email and account (see getRawContactKey)
+    private static final TimedLruCache<String, ContactRaw> RAW_CONTACT_CACHE = new TimedLruCache<>(RAW_CONTACT_CACHE_MAX_SIZE, RAW_CONTACT_CACHE_TTL_MS);
+    // serializes the lookup and insertion of android contacts (received and sent messages are synced concurrently)
+    // so that the same contact is never inserted twice
+    private static final Object RAW_CONTACT_LOCK = new Object();
+
+    private static String normalizeEmail(String email) {
+        return email.trim().toLowerCase();
+    }
+
+    private static String getRawContactKey(String email, String account) {
+        return normalizeEmail(email) + " " + normalizeEmail(account);
+    }
+
+    private static String getRawContactKey(MessagesResponse response, boolean received) {
+        return received ? getRawContactKey(response.getSenderEmail(), response.getRecipientEmail()) :
+                getRawContactKey(response.getRecipientEmail(), response.getSenderEmail());
+    }
 
     /**
-     * Clears the raw Android contact cache. <br />
-     * <strong>This should be invoked once all necessary operations have been performed.
-     *  Otherwise the cached contacts will be kept in memory.</strong>
+     * Clears the raw Android contact cache (e.g. if Android contacts were removed).
      */
     public static void clearCache() {
         RAW_CONTACT_CACHE.clear();
     }
 
+    /**
+     * Removes expired contacts from the raw Android contact cache and logs its usage statistics.
+     *
+     * @param context the context
+     */
+    public static void trimCache(final Context context) {
+        RAW_CONTACT_CACHE.trimExpired();
+        TrackerManager.getInstance(context.getApplicationContext()).log("Raw contact cache: " + RAW_CONTACT_CACHE);
+    }
+
     public static Message insertReceivedMessage(final Context context, final SQLiteDatabase db, String receiverEmail,
                                                 String senderName, String senderEmail, String audioUrl,
                                                 String serverId, String transcription, String createdTs,
@@ -53,40 +89,14 @@ public class GlobalManager {
         }
 
         // add contact if necessary
-        String rawContactKey = senderEmail + receiverEmail;
-        if(!RAW_CONTACT_CACHE.containsKey(rawContactKey)) {
-            String[] names = Utils.getFirstAndLastNames(senderName);
-            RAW_CONTACT_CACHE.put(rawContactKey, ContactManager.insertOrUpdate(context, 0, 0, names[0], names[1], null, senderEmail, null, receiverEmail, true));
-        }
-        ContactRaw contactRaw = RAW_CONTACT_CACHE.get(rawContactKey);
+        ContactRaw contactRaw = getOrInsertContactRaw(context, senderName, senderEmail, receiverEmail);
 
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         try {
             // insert chat and recipient
             Chat chat = insertOrUpdateTimestampChatAndRecipient(context, db, createdTs, contactRaw);
-
-            // insert recording
-            Recording recording = new Recording(null, durationSeconds * 1000L, 0, false, Recording.CONTENT_TYPE_AUDIO);
-            recording.setTranscription(transcription);
-            recording.setRecordedTimestamp(createdTs);
-            RecordingManager.insert(db, recording);
-
-            // insert message
-            Recipient recipient = null;
-            List<Recipient> recipientList = chat.getRecipientList();
-            int recipientAmount = recipientList.size();
-            for (int i = 0; i < recipientAmount && recipient == null; i++) {
-                if (recipientList.get(i).getVia().compareTo(senderEmail) == 0) {
-                    recipient = recipientList.get(i);
-                }
-            }
-
-            message = new Message(0, chat.getId(), recording.getId(), recipient.getId(), null, null,
-                    createdTs, true, false, readTimestamp != null, serverId, audioUrl, null);
-            message.setChatParameter(chat);
-            message.setRecordingParameter(recording);
-            MessageManager.insert(db, message);
+            message = insertReceivedMessage(db, chat, senderEmail, audioUrl, serverId, transcription, createdTs, durationSeconds, readTimestamp);
 
             db.setTransactionSuccessful();
         } finally {
@@ -111,45 +121,265 @@ public class GlobalManager {
         }
 
         // add contact if necessary
-        String rawContactKey = senderEmail + receiverEmail;
-        if(!RAW_CONTACT_CACHE.containsKey(rawContactKey)) {
-            String[] names = Utils.getFirstAndLastNames(receiverName);
-            RAW_CONTACT_CACHE.put(rawContactKey, ContactManager.insertOrUpdate(context, 0, 0, names[0], names[1], null, receiverEmail, null, senderEmail, true));
-        }
-        ContactRaw contactRaw = RAW_CONTACT_CACHE.get(rawContactKey);
+        ContactRaw contactRaw = getOrInsertContactRaw(context, receiverName, receiverEmail, senderEmail);
 
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         try {
             // insert chat and recipient
             Chat chat = insertOrUpdateTimestampChatAndRecipient(context, db, createdTs, contactRaw);
+            message = insertSentMessage(db, chat, audioUrl, serverId, transcription, createdTs, durationSeconds);
 
-            // insert recording
-            Recording recording = new Recording(null, durationSeconds * 1000L, 0, false, Recording.CONTENT_TYPE_AUDIO);
-            recording.setTranscription(transcription);
-            recording.setRecordedTimestamp(createdTs);
-            RecordingManager.insert(db, recording);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
-            // insert message
-            List<Long> recipientIds = new ArrayList<>();
-            List<Recipient> recipientList = chat.getRecipientList();
-            for (Recipient recipient : recipientList) {
-                recipientIds.add(recipient.getId());
+        return message;
+    }
+
+    /**
+     * Inserts a whole page of received or sent messages (as returned by the /messages endpoint).<br />
+     * <ol>
+     *     <li>Already existent messages are found with a single IN (...) query;</li>
+     *     <li>Android contacts are resolved before acquiring the database lock, and all unknown
+     *     contacts are inserted/updated in a single batch;</li>
+     *     <li>Chats are updated once per contact and all recordings and messages are written
+     *     in a single transaction. If it fails, messages are written one by one, each in its own
+     *     transaction, so that only the failing messages are lost.</li>
+     * </ol>
+     * Messages without an audio URL, sender or recipient are ignored, as well as messages whose
+     * Android contact could not be inserted.
+     *
+     * @param context the app context
+     * @param page the page of messages
+     * @param received true if the page contains received messages; false if it contains sent messages
+     * @return the list of inserted and already existent messages
+     * @throws SQLException if unable to look up already existent messages
+     */
+    public static List<Message> insertMessagePage(final Context context, final MessageListResponse page, final boolean received) throws SQLException {
+        final List<Message> messages = new ArrayList<>();
+        final List<MessagesResponse> responses = page.getMessages();
+        if(responses == null || responses.size() <= 0) {
+            return messages;
+        }
+
+        final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
+
+        // find already existent messages with a single query
+        final List<String> serverIds = new ArrayList<>();
+        for(MessagesResponse response : responses) {
+            if(response.getMessageId() != null) {
+                serverIds.add(response.getMessageId());
             }
+        }
+        final Map<String, Message> existingMessages = MessageManager.getMessagesByServerIds(databaseHelper.getReadableDatabase(), serverIds, received);
 
-            message = new Message(0, chat.getId(), recording.getId(), 0, null, null,
-                    createdTs, false, true, false, serverId, audioUrl, null);
-            message.setRecipientIds(recipientIds);
-            message.setConfirmedSentRecipientIds(recipientIds);
-            message.setChatParameter(chat);
-            message.setRecordingParameter(recording);
-            MessageManager.insert(db, message);
+        // resolve android contacts (outside the db lock)
+        final List<MessagesResponse> newResponses = new ArrayList<>();
+        final Set<String> newServerIds = new HashSet<>();
+        final Map<String, ContactRaw> contactRaws = new HashMap<>();
+        final Map<String, ContactManager.BatchContact> pageContacts = new HashMap<>();
+
+        for(MessagesResponse response : responses) {
+            if(response.getAudioUrl() == null || response.getSenderEmail() == null || response.getRecipientEmail() == null) {
+                continue;
+            }
+
+            final String serverId = response.getMessageId();
+            if(serverId != null) {
+                if(existingMessages.containsKey(serverId)) {
+                    messages.add(existingMessages.remove(serverId));
+                    continue;
+                }
+                if(newServerIds.contains(serverId)) {
+                    continue;
+                }
+            }
+
+            final String rawContactKey = getRawContactKey(response, received);
+            if(!pageContacts.containsKey(rawContactKey)) {
+                final String[] names = Utils.getFirstAndLastNames(received ? response.getSenderName() : null);
+                pageContacts.put(rawContactKey, received ?
+                        new ContactManager.BatchContact(names[0], names[1], response.getSenderEmail(), response.getRecipientEmail(), true) :
+                        new ContactManager.BatchContact(names[0], names[1], response.getRecipientEmail(), response.getSenderEmail(), true));
+            }
+
+            if(serverId != null) {
+                newServerIds.add(serverId);
+            }
+            newResponses.add(response);
+        }
+
+        synchronized (RAW_CONTACT_LOCK) {
+            final List<String> unknownContactKeys = new ArrayList<>();
+            final List<ContactManager.BatchContact> unknownContacts = new ArrayList<>();
+            for(Map.Entry<String, ContactManager.BatchContact> entry : pageContacts.entrySet()) {
+                final ContactRaw contactRaw = RAW_CONTACT_CACHE.get(entry.getKey());
+                if(contactRaw != null) {
+                    contactRaws.put(entry.getKey(), contactRaw);
+                } else {
+                    unknownContactKeys.add(entry.getKey());
+                    unknownContacts.add(entry.getValue());
+                }
+            }
+
+            // insert/update all unknown android contacts in a single batch
+            if(unknownContacts.size() > 0) {
+                final List<ContactRaw> insertedContactRaws = ContactManager.insertOrUpdate(context, unknownContacts);
+                for(int i=0; i<unknownContactKeys.size(); i++) {
+                    final ContactRaw contactRaw = insertedContactRaws.get(i);
+                    if(contactRaw != null) {
+                        RAW_CONTACT_CACHE.put(unknownContactKeys.get(i), contactRaw);
+                        contactRaws.put(unknownContactKeys.get(i), contactRaw);
+                    }
+                }
+            }
+        }
+
+        // ignore messages whose android contact could not be inserted
+        if(contactRaws.size() < pageContacts.size()) {
+            final Iterator<MessagesResponse> it = newResponses.iterator();
+            while(it.hasNext()) {
+                if(!contactRaws.containsKey(getRawContactKey(it.next(), received))) {
+                    it.remove();
+                }
+            }
+        }
+
+        if(newResponses.size() <= 0) {
+            return messages;
+        }
+
+        try {
+            messages.addAll(insertNewMessages(context, databaseHelper, newResponses, contactRaws, received));
+        } catch (SQLException | RuntimeException e) {
+            // a single bad message rolls back the whole page, so insert the messages one by one
+            // (each in its own transaction) to lose only the bad ones
+            final TrackerManager trackerManager = TrackerManager.getInstance(context.getApplicationContext());
+            trackerManager.log("Unable to insert message page in a single transaction. Inserting one by one...", e);
+            for(MessagesResponse response : newResponses) {
+                try {
+                    messages.addAll(insertNewMessages(context, databaseHelper, Collections.singletonList(response), contactRaws, received));
+                } catch (SQLException | RuntimeException e1) {
+                    trackerManager.log("Unable to insert message " + response.getMessageId(), e1);
+                }
+            }
+        }
+
+        return messages;
+    }
+
+    private static List<Message> insertNewMessages(final Context context, final DatabaseHelper databaseHelper, final List<MessagesResponse> responses,
+                                                   final Map<String, ContactRaw> contactRaws, final boolean received) throws SQLException {
+        final List<Message> messages = new ArrayList<>();
+
+        // the most recent timestamp of each chat, only from the messages being inserted
+        final Map<String, String> chatTimestamps = new HashMap<>();
+        for(MessagesResponse response : responses) {
+            final String rawContactKey = getRawContactKey(response, received);
+            final String chatTimestamp = chatTimestamps.get(rawContactKey);
+            if(chatTimestamp == null || (response.getCreatedTimestamp() != null && chatTimestamp.compareToIgnoreCase(response.getCreatedTimestamp()) < 0)) {
+                chatTimestamps.put(rawContactKey, response.getCreatedTimestamp());
+            }
+        }
+
+        final SQLiteDatabase db = databaseHelper.beginWriteTransaction();
+
+        try {
+            // insert/update chats and recipients only once per contact
+            final Map<String, Chat> chats = new HashMap<>();
+            for(MessagesResponse response : responses) {
+                final String rawContactKey = getRawContactKey(response, received);
+                if(!chats.containsKey(rawContactKey)) {
+                    chats.put(rawContactKey, insertOrUpdateTimestampChatAndRecipient(context, db, chatTimestamps.get(rawContactKey), contactRaws.get(rawContactKey)));
+                }
+            }
+
+            for(MessagesResponse response : responses) {
+                final Chat chat = chats.get(getRawContactKey(response, received));
+                messages.add(received ?
+                        insertReceivedMessage(db, chat, response.getSenderEmail(), response.getAudioUrl(), response.getMessageId(), response.getTranscription(),
+                                response.getCreatedTimestamp(), response.getDuration(), response.getReadTimestamp()) :
+                        insertSentMessage(db, chat, response.getAudioUrl(), response.getMessageId(), response.getTranscription(),
+                                response.getCreatedTimestamp(), response.getDuration()));
+            }
 
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
 
+        return messages;
+    }
+
+    private static ContactRaw getOrInsertContactRaw(Context context, String fullName, String email, String account) throws ContactManager.InvalidPhoneException, ContactManager.InvalidNameException, ContactManager.InvalidEmailException {
+        final String rawContactKey = getRawContactKey(email, account);
+        synchronized (RAW_CONTACT_LOCK) {
+            ContactRaw contactRaw = RAW_CONTACT_CACHE.get(rawContactKey);
+            if(contactRaw == null) {
+                String[] names = Utils.getFirstAndLastNames(fullName);
+                contactRaw = ContactManager.insertOrUpdate(context, 0, 0, names[0], names[1], null, email, null, account, true);
+                RAW_CONTACT_CACHE.put(rawContactKey, contactRaw);
+            }
+            return contactRaw;
+        }
+    }
+
+    private static Message insertReceivedMessage(SQLiteDatabase db, Chat chat, String senderEmail, String audioUrl,
+                                                 String serverId, String transcription, String createdTs,
+                                                 int durationSeconds, String readTimestamp) throws SQLException {
+        // insert recording
+        Recording recording = new Recording(null, durationSeconds * 1000L, 0, false, Recording.CONTENT_TYPE_AUDIO);
+        recording.setTranscription(transcription);
+        recording.setRecordedTimestamp(createdTs);
+        RecordingManager.insert(db, recording);
+
+        // insert message
+        Recipient recipient = null;
+        List<Recipient> recipientList = chat.getRecipientList();
+        int recipientAmount = recipientList.size();
+        // normalized as in getRawContactKey, since the recipient may come from a differently cased contact
+        final String normalizedSenderEmail = normalizeEmail(senderEmail);
+        for (int i = 0; i < recipientAmount && recipient == null; i++) {
+            if (normalizeEmail(recipientList.get(i).getVia()).equals(normalizedSenderEmail)) {
+                recipient = recipientList.get(i);
+            }
+        }
+
+        Message message = new Message(0, chat.getId(), recording.getId(), recipient.getId(), null, null,
+                createdTs, true, false, readTimestamp != null, serverId, audioUrl, null);
+        message.setChatParameter(chat);
+        message.setRecordingParameter(recording);
+        MessageManager.insert(db, message);
+
+        return message;
+    }
+
+    private static Message insertSentMessage(SQLiteDatabase db, Chat chat, String audioUrl,
+                                             String serverId, String transcription, String createdTs,
+                                             int durationSeconds) throws SQLException {
+        // insert recording
+        Recording recording = new Recording(null, durationSeconds * 1000L, 0, false, Recording.CONTENT_TYPE_AUDIO);
+        recording.setTranscription(transcription);
+        recording.setRecordedTimestamp(createdTs);
+        RecordingManager.insert(db, recording);
+
+        // insert message
+        List<Long> recipientIds = new ArrayList<>();
+        List<Recipient> recipientList = chat.getRecipientList();
+        for (Recipient recipient : recipientList) {
+            recipientIds.add(recipient.getId());
+        }
+
+        Message message = new Message(0, chat.getId(), recording.getId(), 0, null, null,
+                createdTs, false, true, false, serverId, audioUrl, null);
+        message.setRecipientIds(recipientIds);
+        message.setConfirmedSentRecipientIds(recipientIds);
+        message.setChatParameter(chat);
+        message.setRecordingParameter(recording);
+        MessageManager.insert(db, message);
+
         return message;
     }
 
@@ -158,9 +388,7 @@ public class GlobalManager {
         final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
         Message message = null;
 
-        final SQLiteDatabase db = databaseHelper.getWritableDatabase();
-        databaseHelper.lock();
-        db.beginTransaction();
+        final SQLiteDatabase db = databaseHelper.beginWriteTransaction();
 
         try {
             boolean sendingToPeppermintSupport = true;
@@ -192,7 +420,6 @@ public class GlobalManager {
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
-            databaseHelper.unlock();
         }
 
         return message;
@@ -213,7 +440,7 @@ public class GlobalManager {
     public static Chat insertOrUpdateTimestampChatAndRecipient(Context context, SQLiteDatabase db, String newTimestamp, ContactRaw... contactRaw) throws SQLException {
         Chat newChat;
 
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         try {
             StringBuilder chatTitleBuilder = new StringBuilder();
@@ -292,64 +519,52 @@ public class GlobalManager {
         }
         recipient.setPeppermint(true);
 
-        DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
-        databaseHelper.lock();
-        RecipientManager.update(databaseHelper.getWritableDatabase(), recipient);
-        databaseHelper.unlock();
+        RecipientManager.update(DatabaseHelper.getInstance(context).getWritableDatabase(), recipient);
     }
 
     public static void unmarkAsPeppermint(Context context, Recipient recipient) throws SQLException {
         ContactManager.deletePeppermint(context, recipient.getDroidContactRawId(), null);
         recipient.setPeppermint(false);
 
-        DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
-        databaseHelper.lock();
-        RecipientManager.update(databaseHelper.getWritableDatabase(), recipient);
-        databaseHelper.unlock();
+        RecipientManager.update(DatabaseHelper.getInstance(context).getWritableDatabase(), recipient);
     }
 
     public static void markAsPlayed(Context context, Message message) throws SQLException {
         boolean originalValue = message.isPlayed();
-        DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
-        SQLiteDatabase db = databaseHelper.getWritableDatabase();
-        databaseHelper.lock();
+        SQLiteDatabase db = DatabaseHelper.getInstance(context).beginWriteTransaction();
         try {
             message.setPlayed(true);
             MessageManager.update(db, message);
-
-            // tell the backend that the message has been played
-            MessagesMarkPlayedTask task = new MessagesMarkPlayedTask(context, new Message(message), null);
-            task.execute((Void) null);
-
+            db.setTransactionSuccessful();
         } catch (Throwable e) {
             message.setPlayed(originalValue);
-            databaseHelper.unlock();
             throw e;
+        } finally {
+            db.endTransaction();
         }
-        databaseHelper.unlock();
+
+        // tell the backend that the message has been played
+        MessagesMarkPlayedTask task = new MessagesMarkPlayedTask(context, new Message(message), null);
+        task.execute((Void) null);
     }
 
     public static void unmarkAsPlayed(Context context, Message message) throws SQLException {
         boolean originalValue = message.isPlayed();
-        DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
-        SQLiteDatabase db = databaseHelper.getWritableDatabase();
-        databaseHelper.lock();
+        SQLiteDatabase db = DatabaseHelper.getInstance(context).beginWriteTransaction();
         try {
             message.setPlayed(false);
             MessageManager.update(db, message);
+            db.setTransactionSuccessful();
         } catch (Throwable e) {
             message.setPlayed(originalValue);
-            databaseHelper.unlock();
             throw e;
+        } finally {
+            db.endTransaction();
         }
-        databaseHelper.unlock();
     }
 
     public static void deleteMessageAndRecording(final Context context, Message message) throws SQLException {
-        final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(context);
-        databaseHelper.lock();
-        SQLiteDatabase db = databaseHelper.getWritableDatabase();
-        db.beginTransaction();
+        SQLiteDatabase db = DatabaseHelper.getInstance(context).beginWriteTransaction();
         try {
             // delete the local file
             if(message.getRecordingParameter() != null) {
@@ -369,7 +584,6 @@ public class GlobalManager {
 
         } finally {
             db.endTransaction();
-            databaseHelper.unlock();
         }
     }
 
@@ -390,9 +604,7 @@ public class GlobalManager {
         if(tappedChat == null) {
             tappedChat = new Chat(recipientList, lastTimestamp);
 
-            databaseHelper.lock();
-            SQLiteDatabase db = databaseHelper.getWritableDatabase();
-            db.beginTransaction();
+            SQLiteDatabase db = databaseHelper.beginWriteTransaction();
             try {
                 // create the recipients if non-existent
                 for(Recipient recipient : recipientList) {
@@ -404,7 +616,6 @@ public class GlobalManager {
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
-                databaseHelper.unlock();
             }
         }
 
@@ -20,6 +20,7 @@ public class Message implements Serializable {
 
     private static final String PARAM_CHAT = "paramChat";
     private static final String PARAM_RECORDING = "paramRecording";
+    private static final String PARAM_AUTHOR = "paramAuthor";
 
     private UUID mUUID = UUID.randomUUID();
     private long mId;
@@ -274,6 +275,14 @@ public class Message implements Serializable {
         mParameters.put(PARAM_RECORDING, recording);
     }
 
+    public Recipient getAuthorParameter() {
+        return (Recipient) mParameters.get(PARAM_AUTHOR);
+    }
+
+    public void setAuthorParameter(Recipient author) {
+        mParameters.put(PARAM_AUTHOR, author);
+    }
+
     @Override
     public boolean equals(Object o) {
         if(o instanceof Message) {
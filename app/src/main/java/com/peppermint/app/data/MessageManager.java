@@ -1,6 +1,5 @@
 package com.peppermint.app.data;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
@@ -9,7 +8,9 @@ import com.peppermint.app.utils.Utils;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Nuno Luz on 18-02-2016.
@@ -20,6 +21,16 @@ public class MessageManager {
 
     private static final String TAG = MessageManager.class.getSimpleName();
 
+    // SQLite's default SQLITE_MAX_VARIABLE_NUMBER is 999
+    private static final int MAX_QUERY_ARGS = 500;
+
+    // single value queries (package-private so that their query plans can be tested)
+    // includes the messages of chats merged into this one
+    static final String SQL_UNOPENED_COUNT_BY_CHAT = "SELECT SUM(unopened_count) FROM tbl_chat_summary WHERE (chat_id = ?1 OR peppermint_chat_id = ?1) " +
+            "AND droid_contact_ids IS NOT NULL";
+    static final String SQL_UNOPENED_COUNT = "SELECT SUM(unopened_count) FROM tbl_chat_summary WHERE droid_contact_ids IS NOT NULL";
+    static final String SQL_CHAT_ID_BY_MESSAGE_ID = "SELECT chat_id FROM tbl_message WHERE message_id = ?";
+
     /**
      * Gets the message data inside the Cursor's current position and puts it in an instance
      * of the Message structure.<br />
@@ -55,7 +66,7 @@ public class MessageManager {
             message.setRecordingParameter(RecordingManager.getRecordingById(db, message.getRecordingId()));
             message.setChatParameter(ChatManager.getChatById(db, message.getChatId()));
 
-            Cursor recipientIdCursor = db.rawQuery("SELECT * FROM tbl_message_recipient WHERE message_id = " + message.getId() + ";", null);
+            Cursor recipientIdCursor = StatementCache.query(db, "SELECT * FROM tbl_message_recipient WHERE message_id = ?;", message.getId());
             while(recipientIdCursor.moveToNext()) {
                 long recipientId = recipientIdCursor.getLong(recipientIdCursor.getColumnIndex("recipient_id"));
                 boolean sent = recipientIdCursor.getInt(recipientIdCursor.getColumnIndex("sent")) > 0;
@@ -70,9 +81,76 @@ public class MessageManager {
         return message;
     }
 
+    /**
+     * Gets the message data inside the current position of a Cursor returned by
+     * {@link #getByChatId(SQLiteDatabase, long)}, which already contains the recording,
+     * author and recipient status columns. <strong>No further queries are executed.</strong><br />
+     * The recording will be available through {@link Message#getRecordingParameter()} and the
+     * author through {@link Message#getAuthorParameter()}.
+     *
+     * @param cursor the cursor returned by {@link #getByChatId(SQLiteDatabase, long)}
+     * @return the Message instance
+     */
+    public static Message getFromJoinedCursor(Cursor cursor) {
+        Message message = getFromCursor(null, cursor);
+
+        if(cursor.getInt(cursor.getColumnIndex("has_recording")) > 0) {
+            message.setRecordingParameter(RecordingManager.getRecordingFromCursor(cursor));
+        }
+
+        if(!cursor.isNull(cursor.getColumnIndex("author_recipient_id"))) {
+            message.setAuthorParameter(RecipientManager.getRecipientFromCursor(cursor, "author_"));
+        }
+
+        for(long recipientId : parseIdList(cursor.getString(cursor.getColumnIndex("recipient_ids")))) {
+            message.addRecipientId(recipientId);
+        }
+        for(long recipientId : parseIdList(cursor.getString(cursor.getColumnIndex("sent_recipient_ids")))) {
+            message.addConfirmedSentRecipientId(recipientId);
+        }
+
+        return message;
+    }
+
+    private static List<Long> parseIdList(String commaSeparatedIds) {
+        List<Long> ids = new ArrayList<>();
+        if(commaSeparatedIds == null || commaSeparatedIds.length() <= 0) {
+            return ids;
+        }
+        for(String id : commaSeparatedIds.split(",")) {
+            ids.add(Long.parseLong(id));
+        }
+        return ids;
+    }
+
+    /**
+     * Gets all messages of the specified chat (including the messages of chats merged into it).<br />
+     * Each row also contains the recording, author and recipient status data, so that it can be
+     * mapped through {@link #getFromJoinedCursor(Cursor)} without further queries.
+     *
+     * @param db the local database connection
+     * @param chatId the chat id
+     * @return the cursor
+     */
     public static Cursor getByChatId(SQLiteDatabase db, long chatId) {
-        return db.rawQuery("SELECT v_message.*, v_message.message_id AS _id FROM v_message WHERE v_message.merged_chat_id = " + chatId +
-                " ORDER BY registration_ts ASC", null);
+        // same as v_message.merged_chat_id = chatId, but able to use the tbl_chat_summary indexes
+        return StatementCache.query(db, "SELECT tbl_message.message_id AS _id, tbl_message.message_id, tbl_message.server_message_id, tbl_message.server_canonical_url, tbl_message.server_short_url, " +
+                "tbl_message.email_subject, tbl_message.email_body, tbl_message.chat_id, tbl_message.author_id, tbl_message.recording_id, " +
+                "tbl_message.sent, tbl_message.received, tbl_message.played, tbl_message.registration_ts, " +
+                "(CASE WHEN tbl_chat_summary.peppermint_chat_id <> 0 THEN tbl_chat_summary.peppermint_chat_id ELSE tbl_message.chat_id END) AS merged_chat_id, " +
+                "(tbl_recording.recording_id IS NOT NULL) AS has_recording, tbl_recording.file_path, tbl_recording.content_type, tbl_recording.duration_millis, " +
+                "tbl_recording.size_kb, tbl_recording.has_video, tbl_recording.recorded_ts, tbl_recording.transcription, tbl_recording.transcription_confidence, " +
+                "tbl_recording.transcription_lang, tbl_recording.transcription_url, " +
+                "author.recipient_id AS author_recipient_id, author.droid_contact_data_id AS author_droid_contact_data_id, author.droid_contact_raw_id AS author_droid_contact_raw_id, " +
+                "author.droid_contact_id AS author_droid_contact_id, author.display_name AS author_display_name, author.via AS author_via, author.mimetype AS author_mimetype, " +
+                "author.photo_uri AS author_photo_uri, author.added_ts AS author_added_ts, author.is_peppermint AS author_is_peppermint, " +
+                "(SELECT GROUP_CONCAT(recipient_id) FROM tbl_message_recipient WHERE tbl_message_recipient.message_id = tbl_message.message_id) AS recipient_ids, " +
+                "(SELECT GROUP_CONCAT(recipient_id) FROM tbl_message_recipient WHERE tbl_message_recipient.message_id = tbl_message.message_id AND tbl_message_recipient.sent > 0) AS sent_recipient_ids " +
+                "FROM tbl_chat_summary INNER JOIN tbl_message ON tbl_message.chat_id = tbl_chat_summary.chat_id " +
+                "LEFT JOIN tbl_recording ON tbl_recording.recording_id = tbl_message.recording_id " +
+                "LEFT JOIN tbl_recipient AS author ON author.recipient_id = tbl_message.author_id " +
+                "WHERE tbl_chat_summary.droid_contact_ids IS NOT NULL AND ((tbl_chat_summary.chat_id = ?1 AND tbl_chat_summary.peppermint_chat_id = 0) OR tbl_chat_summary.peppermint_chat_id = ?1) " +
+                "ORDER BY tbl_message.registration_ts ASC", chatId);
     }
 
     public static List<Message> getMessagesQueued(SQLiteDatabase db) {
@@ -91,9 +169,20 @@ public class MessageManager {
     public static Message getMessageByIdOrServerId(SQLiteDatabase db, long messageId, String serverId, Boolean isReceived) {
         Message message = null;
 
-        String where = Utils.joinString(" OR ", messageId > 0 ? "message_id = " + messageId : null, serverId != null ? "server_message_id = ?" : null);
-        where = Utils.joinString(" AND ", where, isReceived != null ? "received = " + (isReceived ? 1 : 0) : null);
-        Cursor cursor = db.rawQuery("SELECT * FROM tbl_message WHERE " + where + ";", serverId != null ? new String[]{serverId} : null);
+        List<Object> args = new ArrayList<>();
+        if(messageId > 0) {
+            args.add(messageId);
+        }
+        if(serverId != null) {
+            args.add(serverId);
+        }
+        if(isReceived != null) {
+            args.add(isReceived ? 1 : 0);
+        }
+
+        String where = Utils.joinString(" OR ", messageId > 0 ? "message_id = ?" : null, serverId != null ? "server_message_id = ?" : null);
+        where = Utils.joinString(" AND ", "(" + where + ")", isReceived != null ? "received = ?" : null);
+        Cursor cursor = StatementCache.query(db, "SELECT * FROM tbl_message WHERE " + where + ";", args.toArray());
         if(cursor.moveToFirst()) {
             message = getFromCursor(db, cursor);
         }
@@ -102,34 +191,56 @@ public class MessageManager {
         return message;
     }
 
-    public static int getUnopenedCountByChat(SQLiteDatabase db, long chatId) {
-        int count = 0;
+    /**
+     * Gets all messages with the specified server ids using a single IN (...) query
+     * (split in chunks if the amount of ids exceeds the SQLite bound argument limit).<br />
+     * <strong>Chat and recording parameters are not loaded.</strong>
+     *
+     * @param db the local database connection
+     * @param serverIds the server ids
+     * @param isReceived true to only get received messages; false to only get sent messages; null to get both
+     * @return a map of messages, indexed by server id
+     */
+    public static Map<String, Message> getMessagesByServerIds(SQLiteDatabase db, List<String> serverIds, Boolean isReceived) {
+        Map<String, Message> messages = new HashMap<>();
+
+        final int idAmount = serverIds.size();
+        for(int start = 0; start < idAmount; start += MAX_QUERY_ARGS) {
+            final int end = Math.min(idAmount, start + MAX_QUERY_ARGS);
+            final String[] args = serverIds.subList(start, end).toArray(new String[end - start]);
+
+            StringBuilder placeholders = new StringBuilder();
+            for(int i=0; i<args.length; i++) {
+                if(i > 0) {
+                    placeholders.append(",");
+                }
+                placeholders.append("?");
+            }
 
-        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM v_message WHERE (v_message.chat_id = " + chatId + " OR v_message.merged_chat_id = " + chatId +
-            ") AND played <= 0 AND received >= 1", null);
-        if(cursor.moveToFirst()) {
-            count = cursor.getInt(0);
+            Cursor cursor = db.rawQuery("SELECT * FROM tbl_message WHERE server_message_id IN (" + placeholders.toString() + ")" +
+                    (isReceived != null ? " AND received = " + (isReceived ? 1 : 0) : "") + ";", args);
+            while(cursor.moveToNext()) {
+                Message message = getFromCursor(null, cursor);
+                messages.put(message.getServerId(), message);
+            }
+            cursor.close();
         }
-        cursor.close();
-        return count;
+
+        return messages;
     }
 
-    public static int getUnopenedCount(SQLiteDatabase db) {
-        int count = 0;
+    public static int getUnopenedCountByChat(SQLiteDatabase db, long chatId) {
+        return (int) StatementCache.simpleQueryForLong(db, SQL_UNOPENED_COUNT_BY_CHAT, 0, chatId);
+    }
 
-        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM v_message WHERE " +
-                "played <= 0 AND received >= 1", null);
-        if(cursor.moveToFirst()) {
-            count = cursor.getInt(0);
-        }
-        cursor.close();
-        return count;
+    public static int getUnopenedCount(SQLiteDatabase db) {
+        return (int) StatementCache.simpleQueryForLong(db, SQL_UNOPENED_COUNT, 0);
     }
 
     public static long getLastAutoPlayMessageIdByChat(SQLiteDatabase db, long chatId) {
         long id = 0;
-        Cursor cursor = db.rawQuery("SELECT * FROM v_message WHERE v_message.chat_id = " + chatId +
-                " ORDER BY registration_ts DESC", null);
+        Cursor cursor = StatementCache.query(db, "SELECT * FROM v_message WHERE v_message.chat_id = ?" +
+                " ORDER BY registration_ts DESC LIMIT 1", chatId);
         if(cursor.moveToNext()) {
             boolean received = cursor.getInt(cursor.getColumnIndex("received")) > 0;
             boolean played = cursor.getInt(cursor.getColumnIndex("played")) > 0;
@@ -142,8 +253,28 @@ public class MessageManager {
     }
 
     // OPERATIONS
+
+    /**
+     * Refreshes the unopened message count of the chat in tbl_chat_summary.<br />
+     * <strong>Must be invoked whenever a message of the chat is inserted, updated or deleted.</strong>
+     *
+     * @param db the local database connection
+     * @param chatId the chat id
+     */
+    private static void refreshUnopenedCount(SQLiteDatabase db, long chatId) {
+        if(chatId <= 0) {
+            return;
+        }
+        StatementCache.executeUpdateDelete(db, "UPDATE tbl_chat_summary SET unopened_count = (SELECT COUNT(*) FROM tbl_message WHERE chat_id = ?1" +
+                " AND played <= 0 AND received >= 1) WHERE chat_id = ?1", chatId);
+    }
+
+    private static long getChatIdByMessageId(SQLiteDatabase db, long messageId) {
+        return StatementCache.simpleQueryForLong(db, SQL_CHAT_ID_BY_MESSAGE_ID, 0, messageId);
+    }
+
     private static void deassociateRecipients(SQLiteDatabase db, long messageId) {
-        db.delete("tbl_message_recipient", "message_id = " + messageId, null);
+        StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_message_recipient WHERE message_id = ?", messageId);
     }
 
     private static void associateRecipients(SQLiteDatabase db, long messageId, List<Long> recipientIds, List<Long> confirmedSentRecipientIds) throws SQLException {
@@ -151,22 +282,15 @@ public class MessageManager {
             return;
         }
 
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
         try {
             for (long recipientId : recipientIds) {
                 if(recipientId <= 0) {
                     throw new IllegalArgumentException("Recipient Id " + recipientId + " is not valid!");
                 }
 
-                ContentValues cv = new ContentValues();
-                cv.put("message_id", messageId);
-                cv.put("recipient_id", recipientId);
-                cv.put("sent", confirmedSentRecipientIds != null && confirmedSentRecipientIds.contains(recipientId) ? 1 : 0);
-
-                long id = db.insert("tbl_message_recipient", null, cv);
-                if (id < 0) {
-                    throw new SQLException("Unable to associate message with recipient!");
-                }
+                StatementCache.executeInsert(db, "INSERT INTO tbl_message_recipient (message_id, recipient_id, sent) VALUES (?, ?, ?)",
+                        messageId, recipientId, confirmedSentRecipientIds != null && confirmedSentRecipientIds.contains(recipientId) ? 1 : 0);
             }
             db.setTransactionSuccessful();
         } finally {
@@ -175,42 +299,19 @@ public class MessageManager {
     }
 
     public static Message insert(SQLiteDatabase db, Message message) throws SQLException {
-
-        // setup content values
-        ContentValues cv = new ContentValues();
-
-        cv.put("email_subject", message.getEmailSubject());
-        cv.put("email_body", message.getEmailBody());
-
-        if(message.getChatId() > 0) {
-            cv.put("chat_id", message.getChatId());
-        }
-        if(message.getAuthorId() > 0) {
-            cv.put("author_id", message.getAuthorId());
-        }
-        if(message.getRecordingId() > 0) {
-            cv.put("recording_id", message.getRecordingId());
-        }
-
-        cv.put("server_message_id", message.getServerId());
-        cv.put("server_short_url", message.getServerShortUrl());
-        cv.put("server_canonical_url", message.getServerCanonicalUrl());
-        cv.put("registration_ts", message.getRegistrationTimestamp());
-
-        cv.put("sent", message.isSent() ? 1 : 0);
-        cv.put("received", message.isReceived() ? 1 : 0);
-        cv.put("played", message.isPlayed() ? 1 : 0);
-
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         long id = -1;
         try {
-            id = db.insert("tbl_message", null, cv);
-            if (id < 0) {
-                throw new SQLException("Unable to insert message!");
-            }
+            id = StatementCache.executeInsert(db, "INSERT INTO tbl_message (email_subject, email_body, chat_id, author_id, recording_id, server_message_id, " +
+                            "server_short_url, server_canonical_url, registration_ts, sent, received, played) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    message.getEmailSubject(), message.getEmailBody(), message.getChatId() > 0 ? message.getChatId() : null,
+                    message.getAuthorId() > 0 ? message.getAuthorId() : null, message.getRecordingId() > 0 ? message.getRecordingId() : null,
+                    message.getServerId(), message.getServerShortUrl(), message.getServerCanonicalUrl(), message.getRegistrationTimestamp(),
+                    message.isSent() ? 1 : 0, message.isReceived() ? 1 : 0, message.isPlayed() ? 1 : 0);
 
             associateRecipients(db, id, message.getRecipientIds(), message.getConfirmedSentRecipientIds());
+            refreshUnopenedCount(db, message.getChatId());
 
             db.setTransactionSuccessful();
         } finally {
@@ -230,40 +331,27 @@ public class MessageManager {
             throw new IllegalArgumentException("Message Id must be supplied!");
         }
 
-        ContentValues cv = new ContentValues();
-
-        cv.put("email_subject", message.getEmailSubject());
-        cv.put("email_body", message.getEmailBody());
-
-        if(message.getChatId() > 0) {
-            cv.put("chat_id", message.getChatId());
-        }
-        if(message.getAuthorId() > 0) {
-            cv.put("author_id", message.getAuthorId());
-        }
-        if(message.getRecordingId() > 0) {
-            cv.put("recording_id", message.getRecordingId());
-        }
-
-        cv.put("server_message_id", message.getServerId());
-        cv.put("server_short_url", message.getServerShortUrl());
-        cv.put("server_canonical_url", message.getServerCanonicalUrl());
-        cv.put("registration_ts", message.getRegistrationTimestamp());
-
-        cv.put("sent", message.isSent() ? 1 : 0);
-        cv.put("received", message.isReceived() ? 1 : 0);
-        cv.put("played", message.isPlayed() ? 1 : 0);
-
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         try {
-            long id = db.update("tbl_message", cv, "message_id = " + message.getId(), null);
-            if(id < 0) {
-                throw new SQLException("Unable to update message!");
+            final long oldChatId = getChatIdByMessageId(db, message.getId());
+
+            // the chat, author and recording are only replaced if supplied
+            StatementCache.executeUpdateDelete(db, "UPDATE tbl_message SET email_subject = ?, email_body = ?, chat_id = IFNULL(?, chat_id), author_id = IFNULL(?, author_id), " +
+                            "recording_id = IFNULL(?, recording_id), server_message_id = ?, server_short_url = ?, server_canonical_url = ?, registration_ts = ?, " +
+                            "sent = ?, received = ?, played = ? WHERE message_id = ?",
+                    message.getEmailSubject(), message.getEmailBody(), message.getChatId() > 0 ? message.getChatId() : null,
+                    message.getAuthorId() > 0 ? message.getAuthorId() : null, message.getRecordingId() > 0 ? message.getRecordingId() : null,
+                    message.getServerId(), message.getServerShortUrl(), message.getServerCanonicalUrl(), message.getRegistrationTimestamp(),
+                    message.isSent() ? 1 : 0, message.isReceived() ? 1 : 0, message.isPlayed() ? 1 : 0, message.getId());
+
+            refreshUnopenedCount(db, oldChatId);
+            if(oldChatId != message.getChatId()) {
+                refreshUnopenedCount(db, message.getChatId());
             }
 
-            deassociateRecipients(db, id);
-            associateRecipients(db, id, message.getRecipientIds(), message.getConfirmedSentRecipientIds());
+            deassociateRecipients(db, message.getId());
+            associateRecipients(db, message.getId(), message.getRecipientIds(), message.getConfirmedSentRecipientIds());
 
             db.setTransactionSuccessful();
         } finally {
@@ -276,16 +364,16 @@ public class MessageManager {
     }
 
     public static long delete(SQLiteDatabase db, long messageId) throws SQLException {
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         long retId = -1;
         try {
-            retId = db.delete("tbl_message", "message_id = " + messageId, null);
-            if(retId < 0) {
-                throw new SQLException("Unable to delete message!");
-            }
+            final long chatId = getChatIdByMessageId(db, messageId);
+
+            retId = StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_message WHERE message_id = ?", messageId);
 
             deassociateRecipients(db, messageId);
+            refreshUnopenedCount(db, chatId);
 
             db.setTransactionSuccessful();
         } finally {
@@ -298,15 +386,13 @@ public class MessageManager {
     }
 
     public static void deleteByChat(SQLiteDatabase db, long chatId) throws SQLException {
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         try {
-            db.execSQL("DELETE FROM tbl_message_recipient WHERE message_id IN (SELECT message_id FROM tbl_message WHERE chat_id = " + chatId + ")");
+            StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_message_recipient WHERE message_id IN (SELECT message_id FROM tbl_message WHERE chat_id = ?)", chatId);
+            StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_message WHERE chat_id = ?", chatId);
 
-            long id = db.delete("tbl_message", "chat_id = " + chatId, null);
-            if(id < 0) {
-                throw new SQLException("Unable to delete messages!");
-            }
+            refreshUnopenedCount(db, chatId);
 
             db.setTransactionSuccessful();
         } finally {
@@ -1,6 +1,5 @@
 package com.peppermint.app.data;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
@@ -25,13 +24,7 @@ public class PendingLogoutManager {
     }
 
     public static int getPendingLogoutCount(SQLiteDatabase db) {
-        int count = 0;
-        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM tbl_pending_logout;", null);
-        if(cursor.moveToFirst()) {
-            count = cursor.getInt(0);
-        }
-        cursor.close();
-        return count;
+        return (int) StatementCache.simpleQueryForLong(db, "SELECT COUNT(*) FROM tbl_pending_logout;", 0);
     }
 
     public static Cursor getAll(SQLiteDatabase db) {
@@ -39,20 +32,13 @@ public class PendingLogoutManager {
     }
 
     public static PendingLogout insert(SQLiteDatabase db, PendingLogout pendingLogout) throws SQLException {
-        db.beginTransaction();
+        DatabaseHelper.beginWrite(db);
 
         long id = 0;
 
         try {
-            ContentValues cv = new ContentValues();
-            cv.put("account_server_id", pendingLogout.getAccountServerId());
-            cv.put("device_server_id", pendingLogout.getDeviceServerId());
-            cv.put("auth_token", pendingLogout.getAuthenticationToken());
-
-            id = db.insert("tbl_pending_logout", null, cv);
-            if (id < 0) {
-                throw new SQLException("Unable to insert pending logout!");
-            }
+            id = StatementCache.executeInsert(db, "INSERT INTO tbl_pending_logout (account_server_id, device_server_id, auth_token) VALUES (?, ?, ?)",
+                    pendingLogout.getAccountServerId(), pendingLogout.getDeviceServerId(), pendingLogout.getAuthenticationToken());
 
             pendingLogout.setId(id);
 
@@ -65,10 +51,7 @@ public class PendingLogoutManager {
     }
 
     public static void delete(SQLiteDatabase db, long pendingLogoutId) throws SQLException {
-        long resId = db.delete("tbl_pending_logout", "pending_logout_id = " + pendingLogoutId, null);
-        if (resId < 0) {
-            throw new SQLException("Unable to delete pending logout!");
-        }
+        StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_pending_logout WHERE pending_logout_id = ?", pendingLogoutId);
     }
 
 }
@@ -1,97 +1,259 @@
 package com.peppermint.app.data;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.provider.ContactsContract;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Created by Nuno Luz on 22-02-2016.
  *
- * Filters {@link ContactRaw} cursors to merge Peppermint contacts and avoid duplicate contacts.
+ * Filters {@link ContactRaw} cursors to merge Peppermint contacts and avoid duplicate contacts.<br />
+ * Duplicates are detected through the contact id and a hash of the normalized via and display name,
+ * kept in primitive hash sets. The data of filtered out rows is only read when the merged
+ * {@link ContactRaw} is requested through {@link #getContactRaw()}, which finds them through
+ * their raw contact id without going through all filtered out rows.
  */
 public class PeppermintFilteredCursor extends FilteredCursor {
 
-    private Set<String> mViaSet = new HashSet<>();
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Minimal open addressing hash set of longs.
+     */
+    private static class LongHashSet {
+        private long[] mKeys = new long[256];
+        private boolean[] mUsed = new boolean[256];
+        private int mSize = 0;
+
+        private static int index(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        /**
+         * @return true if the key was added; false if it was already in the set
+         */
+        boolean add(long key) {
+            if(mSize * 2 >= mKeys.length) {
+                grow();
+            }
+            final int mask = mKeys.length - 1;
+            int i = index(key, mask);
+            while(mUsed[i]) {
+                if(mKeys[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            mUsed[i] = true;
+            mKeys[i] = key;
+            mSize++;
+            return true;
+        }
+
+        private void grow() {
+            final long[] oldKeys = mKeys;
+            final boolean[] oldUsed = mUsed;
+            mKeys = new long[oldKeys.length * 2];
+            mUsed = new boolean[oldUsed.length * 2];
+            mSize = 0;
+            for(int i=0; i<oldKeys.length; i++) {
+                if(oldUsed[i]) {
+                    add(oldKeys[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Minimal open addressing hash map of longs to ints.
+     */
+    private static class LongIntHashMap {
+        private long[] mKeys = new long[256];
+        private int[] mValues = new int[256];
+        private boolean[] mUsed = new boolean[256];
+        private int mSize = 0;
+
+        int get(long key, int defaultValue) {
+            final int mask = mKeys.length - 1;
+            int i = LongHashSet.index(key, mask);
+            while(mUsed[i]) {
+                if(mKeys[i] == key) {
+                    return mValues[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return defaultValue;
+        }
+
+        void put(long key, int value) {
+            if(mSize * 2 >= mKeys.length) {
+                grow();
+            }
+            final int mask = mKeys.length - 1;
+            int i = LongHashSet.index(key, mask);
+            while(mUsed[i]) {
+                if(mKeys[i] == key) {
+                    mValues[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            mUsed[i] = true;
+            mKeys[i] = key;
+            mValues[i] = value;
+            mSize++;
+        }
+
+        private void grow() {
+            final long[] oldKeys = mKeys;
+            final int[] oldValues = mValues;
+            final boolean[] oldUsed = mUsed;
+            mKeys = new long[oldKeys.length * 2];
+            mValues = new int[oldValues.length * 2];
+            mUsed = new boolean[oldUsed.length * 2];
+            mSize = 0;
+            for(int i=0; i<oldKeys.length; i++) {
+                if(oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+
     private Map<Long, ContactData> mPeppermintContacts;
-    private Map<Long, List<ContactData>> mFilteredContacts = new HashMap<>();
 
-    private void addFilteredContact(Cursor cursor) {
-        ContactData contact = ContactManager.getContactFromCursor(cursor);
-        addFilteredContact(contact);
+    private LongHashSet mContactIdSet = new LongHashSet();
+    private LongHashSet mViaHashSet = new LongHashSet();
+    private final CharArrayBuffer mBuffer = new CharArrayBuffer(64);
+
+    // filtered out rows (merged into the accepted row with the same raw contact id)
+    // the rows of each raw contact id are linked in cursor order, starting at mFirstMergedByRawId
+    private LongIntHashMap mFirstMergedByRawId = new LongIntHashMap();
+    private int[] mMergedPositions = new int[64];
+    private int[] mMergedNext = new int[64];
+    private int[] mMergedLast = new int[64];
+    private int mMergedCount = 0;
+
+    private final int mContactIdIndex, mRawIdIndex, mViaIndex, mDisplayNameIndex;
+
+    private void addMergedRow(Cursor cursor) {
+        if(mMergedCount >= mMergedPositions.length) {
+            mMergedPositions = Arrays.copyOf(mMergedPositions, mMergedPositions.length * 2);
+            mMergedNext = Arrays.copyOf(mMergedNext, mMergedNext.length * 2);
+            mMergedLast = Arrays.copyOf(mMergedLast, mMergedLast.length * 2);
+        }
+
+        final int index = mMergedCount++;
+        mMergedPositions[index] = cursor.getPosition();
+        mMergedNext[index] = -1;
+
+        final long rawId = cursor.getLong(mRawIdIndex);
+        final int first = mFirstMergedByRawId.get(rawId, -1);
+        if(first < 0) {
+            mFirstMergedByRawId.put(rawId, index);
+            mMergedLast[index] = index;
+        } else {
+            mMergedNext[mMergedLast[first]] = index;
+            mMergedLast[first] = index;
+        }
     }
 
-    private void addFilteredContact(ContactData contact) {
-        List<ContactData> list = mFilteredContacts.get(contact.getRawId());
-        if(list == null) {
-            list = new ArrayList<>();
-            mFilteredContacts.put(contact.getRawId(), list);
+    /**
+     * Same as hashing the lower case, trimmed via followed by the lower case display name without
+     * whitespace, but without allocating any strings.
+     */
+    private long getViaHash(Cursor cursor) {
+        long hash = FNV_OFFSET_BASIS;
+
+        cursor.copyStringToBuffer(mViaIndex, mBuffer);
+        int start = 0, end = mBuffer.sizeCopied;
+        while(start < end && mBuffer.data[start] <= ' ') {
+            start++;
         }
-        list.add(contact);
+        while(end > start && mBuffer.data[end - 1] <= ' ') {
+            end--;
+        }
+        for(int i=start; i<end; i++) {
+            hash = (hash ^ Character.toLowerCase(mBuffer.data[i])) * FNV_PRIME;
+        }
+
+        cursor.copyStringToBuffer(mDisplayNameIndex, mBuffer);
+        for(int i=0; i<mBuffer.sizeCopied; i++) {
+            final char c = mBuffer.data[i];
+            if(!isWhitespace(c)) {
+                hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+            }
+        }
+
+        return hash;
+    }
+
+    // same as \s in regular expressions
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
 
     public PeppermintFilteredCursor(final Context mContext, Cursor cursor) {
         super(cursor);
         this.mPeppermintContacts = ContactManager.getPeppermintContacts(mContext);
 
+        this.mContactIdIndex = cursor.getColumnIndex(ContactsContract.Data.CONTACT_ID);
+        this.mRawIdIndex = cursor.getColumnIndex(ContactsContract.Data.RAW_CONTACT_ID);
+        this.mViaIndex = cursor.getColumnIndex(ContactsContract.Data.DATA1);
+        this.mDisplayNameIndex = cursor.getColumnIndex(ContactManager.FIELD_DISPLAY_NAME);
+
         setFilter(new Filter() {
             @Override
             public boolean isValid(Cursor cursor) {
                 // this algorithm assumes that contacts are ordered by mimetype with Peppermint first,
                 // followed by Email mimetype.
-
-                long contactId = cursor.getLong(cursor.getColumnIndex(ContactsContract.Data.CONTACT_ID));
-
-                // check if there's already a peppermint contact there
-                if(mPeppermintContacts.containsKey(contactId)) {
-                    final String peppermintVia = contactId + "_Peppermint";
-                    if (mViaSet.contains(peppermintVia)) {
-                        addFilteredContact(cursor);
-                        return false;
-                    }
-                    ContactData peppermintContact = mPeppermintContacts.get(contactId);
-                    addFilteredContact(peppermintContact);
-                    mViaSet.add(peppermintVia);
-                }
-
-                final String emailVia = contactId + "_" + ContactData.EMAIL_MIMETYPE;
-                if (mViaSet.contains(emailVia)) {
-                    addFilteredContact(cursor);
+                // only the first row of each contact is shown; the others are merged into it
+                if(!mContactIdSet.add(cursor.getLong(mContactIdIndex))) {
+                    addMergedRow(cursor);
                     return false;
                 }
-                mViaSet.add(emailVia);
 
                 // check for duplicates
-                String via = cursor.getString(cursor.getColumnIndex(ContactsContract.Data.DATA1)).trim().toLowerCase() +
-                        cursor.getString(cursor.getColumnIndex(ContactManager.FIELD_DISPLAY_NAME)).replaceAll("\\s+", "").toLowerCase();
-
-                if (!mViaSet.contains(via)) {
-                    mViaSet.add(via);
-                    return true;
+                if(!mViaHashSet.add(getViaHash(cursor))) {
+                    addMergedRow(cursor);
+                    return false;
                 }
 
-                addFilteredContact(cursor);
-                return false;
+                return true;
             }
         });
     }
 
     public ContactRaw getContactRaw() {
         ContactRaw contactRaw = ContactManager.getRawContactFromCursor(null, mCursor);
-        if(mFilteredContacts != null && mFilteredContacts.containsKey(contactRaw.getRawId())) {
-            List<ContactData> contactList = mFilteredContacts.get(contactRaw.getRawId());
-            if(contactList != null) {
-                for(ContactData contact : contactList) {
-                    contactRaw.setContactData(contact);
+        if(mPeppermintContacts == null) {
+            return contactRaw;
+        }
+
+        // the Peppermint data (if in the same raw contact)
+        ContactData peppermintContact = mPeppermintContacts.get(contactRaw.getContactId());
+        if(peppermintContact != null && peppermintContact.getRawId() == contactRaw.getRawId()) {
+            contactRaw.setContactData(peppermintContact);
+        }
+
+        // the data of the merged rows
+        final int position = mCursor.getPosition();
+        final int first = mFirstMergedByRawId.get(contactRaw.getRawId(), -1);
+        if(first >= 0) {
+            for(int i=first; i>=0; i=mMergedNext[i]) {
+                if(mCursor.moveToPosition(mMergedPositions[i])) {
+                    contactRaw.setContactData(ContactManager.getContactFromCursor(mCursor));
                 }
             }
+            mCursor.moveToPosition(position);
         }
+
         return contactRaw;
     }
 
@@ -99,15 +261,13 @@ public class PeppermintFilteredCursor extends FilteredCursor {
     public void close() {
         super.close();
 
-        if(mViaSet != null) {
-            mViaSet.clear();
-            mViaSet = null;
-        }
-
-        if(mFilteredContacts != null) {
-            mFilteredContacts.clear();
-            mFilteredContacts = null;
-        }
+        mContactIdSet = null;
+        mViaHashSet = null;
+        mFirstMergedByRawId = null;
+        mMergedPositions = null;
+        mMergedNext = null;
+        mMergedLast = null;
+        mMergedCount = 0;
 
         if(mPeppermintContacts != null) {
             mPeppermintContacts.clear();
@@ -1,9 +1,7 @@
 package com.peppermint.app.data;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.util.Log;
@@ -26,18 +24,30 @@ public class RecipientManager {
     private static final String TAG = RecipientManager.class.getSimpleName();
 
     public static Recipient getRecipientFromCursor(Cursor cursor) {
+        return getRecipientFromCursor(cursor, "");
+    }
+
+    /**
+     * Gets the recipient data inside the Cursor's current position, reading columns whose
+     * names start with the specified prefix (e.g. joined columns such as "author_via").
+     *
+     * @param cursor the cursor
+     * @param columnPrefix the column name prefix
+     * @return the Recipient instance
+     */
+    public static Recipient getRecipientFromCursor(Cursor cursor, String columnPrefix) {
         Recipient recipient = new Recipient();
 
-        recipient.setId(cursor.getLong(cursor.getColumnIndex("recipient_id")));
-        recipient.setDroidContactDataId(cursor.getLong(cursor.getColumnIndex("droid_contact_data_id")));
-        recipient.setDroidContactRawId(cursor.getLong(cursor.getColumnIndex("droid_contact_raw_id")));
-        recipient.setDroidContactId(cursor.getLong(cursor.getColumnIndex("droid_contact_id")));
-        recipient.setDisplayName(cursor.getString(cursor.getColumnIndex("display_name")));
-        recipient.setVia(cursor.getString(cursor.getColumnIndex("via")));
-        recipient.setMimeType(cursor.getString(cursor.getColumnIndex("mimetype")));
-        recipient.setPhotoUri(cursor.getString(cursor.getColumnIndex("photo_uri")));
-        recipient.setAddedTimestamp(cursor.getString(cursor.getColumnIndex("added_ts")));
-        recipient.setPeppermint(cursor.getInt(cursor.getColumnIndex("is_peppermint")) > 0);
+        recipient.setId(cursor.getLong(cursor.getColumnIndex(columnPrefix + "recipient_id")));
+        recipient.setDroidContactDataId(cursor.getLong(cursor.getColumnIndex(columnPrefix + "droid_contact_data_id")));
+        recipient.setDroidContactRawId(cursor.getLong(cursor.getColumnIndex(columnPrefix + "droid_contact_raw_id")));
+        recipient.setDroidContactId(cursor.getLong(cursor.getColumnIndex(columnPrefix + "droid_contact_id")));
+        recipient.setDisplayName(cursor.getString(cursor.getColumnIndex(columnPrefix + "display_name")));
+        recipient.setVia(cursor.getString(cursor.getColumnIndex(columnPrefix + "via")));
+        recipient.setMimeType(cursor.getString(cursor.getColumnIndex(columnPrefix + "mimetype")));
+        recipient.setPhotoUri(cursor.getString(cursor.getColumnIndex(columnPrefix + "photo_uri")));
+        recipient.setAddedTimestamp(cursor.getString(cursor.getColumnIndex(columnPrefix + "added_ts")));
+        recipient.setPeppermint(cursor.getInt(cursor.getColumnIndex(columnPrefix + "is_peppermint")) > 0);
 
         return recipient;
     }
@@ -45,7 +55,7 @@ public class RecipientManager {
     public static List<Recipient> getByChatId(SQLiteDatabase db, long chatId) {
         List<Recipient> recipients = new ArrayList<>();
 
-        Cursor cursor = db.rawQuery("SELECT tbl_recipient.* FROM tbl_chat_recipient, tbl_recipient WHERE tbl_chat_recipient.recipient_id = tbl_recipient.recipient_id AND tbl_chat_recipient.chat_id = " + chatId + ";", null);
+        Cursor cursor = StatementCache.query(db, "SELECT tbl_recipient.* FROM tbl_chat_recipient, tbl_recipient WHERE tbl_chat_recipient.recipient_id = tbl_recipient.recipient_id AND tbl_chat_recipient.chat_id = ?;", chatId);
         while(cursor.moveToNext()) {
             recipients.add(getRecipientFromCursor(cursor));
         }
@@ -59,11 +69,11 @@ public class RecipientManager {
     }
 
     public static Cursor getByViaAndMimetype(SQLiteDatabase db, String via, String mimetype) {
-        return db.rawQuery("SELECT * FROM tbl_recipient WHERE via = " + DatabaseUtils.sqlEscapeString(via) + " AND mimetype = " + DatabaseUtils.sqlEscapeString(mimetype) + ";", null);
+        return StatementCache.query(db, "SELECT * FROM tbl_recipient WHERE via = ? AND mimetype = ?;", via, mimetype);
     }
 
-    private static Cursor getByDroidIds(SQLiteDatabase db, long droidContactId, long droidContactRawId, long droidContactDataId) {
-        return db.rawQuery("SELECT * FROM tbl_recipient WHERE droid_contact_id = " + droidContactId + " AND droid_contact_raw_id = " + droidContactRawId + " AND droid_contact_data_id = " + droidContactDataId + ";", null);
+    static Cursor getByDroidIds(SQLiteDatabase db, long droidContactId, long droidContactRawId, long droidContactDataId) {
+        return StatementCache.query(db, "SELECT * FROM tbl_recipient WHERE droid_contact_id = ? AND droid_contact_raw_id = ? AND droid_contact_data_id = ?;", droidContactId, droidContactRawId, droidContactDataId);
     }
 
     // OPERATIONS
@@ -78,24 +88,14 @@ public class RecipientManager {
             photoUri = uri == null ? null : uri.toString();
         }
 
-        ContentValues cv = new ContentValues();
-        cv.put("droid_contact_data_id", recipient.getDroidContactDataId());
-        cv.put("droid_contact_raw_id", recipient.getDroidContactRawId());
-        cv.put("droid_contact_id", recipient.getDroidContactId());
-        cv.put("display_name", recipient.getDisplayName());
-        cv.put("via", recipient.getVia());
-        cv.put("mimetype", recipient.getMimeType());
-        cv.put("photo_uri", photoUri);
         if(recipient.getAddedTimestamp() == null) {
             recipient.setAddedTimestamp(DateContainer.getCurrentUTCTimestamp());
         }
-        cv.put("added_ts", recipient.getAddedTimestamp());
-        cv.put("is_peppermint", recipient.isPeppermint() ? 1 : 0);
 
-        long id = db.insert("tbl_recipient", null, cv);
-        if(id < 0) {
-            throw new SQLException("Unable to insert recipient!");
-        }
+        long id = StatementCache.executeInsert(db, "INSERT INTO tbl_recipient (droid_contact_data_id, droid_contact_raw_id, droid_contact_id, display_name, via, mimetype, photo_uri, added_ts, is_peppermint) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                recipient.getDroidContactDataId(), recipient.getDroidContactRawId(), recipient.getDroidContactId(), recipient.getDisplayName(),
+                recipient.getVia(), recipient.getMimeType(), photoUri, recipient.getAddedTimestamp(), recipient.isPeppermint() ? 1 : 0);
 
         recipient.setId(id);
 
@@ -109,22 +109,21 @@ public class RecipientManager {
             throw new IllegalArgumentException("Invalid recipient! " + recipient.toString());
         }
 
-        ContentValues cv = new ContentValues();
-        cv.put("droid_contact_data_id", recipient.getDroidContactDataId());
-        cv.put("droid_contact_raw_id", recipient.getDroidContactRawId());
-        cv.put("droid_contact_id", recipient.getDroidContactId());
-        cv.put("display_name", recipient.getDisplayName());
-        cv.put("via", recipient.getVia());
-        cv.put("mimetype", recipient.getMimeType());
-        cv.put("photo_uri", recipient.getPhotoUri());
-        if(recipient.getAddedTimestamp() != null) {
-            cv.put("added_ts", recipient.getAddedTimestamp());
-        }
-        cv.put("is_peppermint", recipient.isPeppermint() ? 1 : 0);
-
-        long id = db.update("tbl_recipient", cv, "recipient_id = " + recipient.getId(), null);
-        if(id < 0) {
-            throw new SQLException("Unable to update recipient!");
+        DatabaseHelper.beginWrite(db);
+        try {
+            // the added timestamp is only replaced if supplied
+            StatementCache.executeUpdateDelete(db, "UPDATE tbl_recipient SET droid_contact_data_id = ?, droid_contact_raw_id = ?, droid_contact_id = ?, display_name = ?, " +
+                            "via = ?, mimetype = ?, photo_uri = ?, added_ts = IFNULL(?, added_ts), is_peppermint = ? WHERE recipient_id = ?",
+                    recipient.getDroidContactDataId(), recipient.getDroidContactRawId(), recipient.getDroidContactId(), recipient.getDisplayName(),
+                    recipient.getVia(), recipient.getMimeType(), recipient.getPhotoUri(), recipient.getAddedTimestamp(), recipient.isPeppermint() ? 1 : 0,
+                    recipient.getId());
+
+            // the contact ids and peppermint flag are materialized in tbl_chat_summary
+            ChatManager.refreshSummaryByRecipient(db, recipient.getId());
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
 
         Log.d(TAG, "UPDATED " + recipient);
@@ -1,6 +1,5 @@
 package com.peppermint.app.data;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
@@ -39,7 +38,7 @@ public class RecordingManager {
 
     public static Recording getRecordingById(SQLiteDatabase db, long recordingId) {
         Recording recording = null;
-        Cursor cursor = db.rawQuery("SELECT * FROM tbl_recording WHERE recording_id = " + recordingId, null);
+        Cursor cursor = StatementCache.query(db, "SELECT * FROM tbl_recording WHERE recording_id = ?", recordingId);
         if(cursor.moveToFirst()) {
             recording = getRecordingFromCursor(cursor);
         }
@@ -50,26 +49,11 @@ public class RecordingManager {
     // OPERATIONS
 
     public static Recording insert(SQLiteDatabase db, Recording recording) throws SQLException {
-        ContentValues cv = new ContentValues();
-        cv.put("file_path", recording.getFilePath());
-        cv.put("duration_millis", recording.getDurationMillis());
-        cv.put("size_kb", recording.getSizeKb());
-        cv.put("has_video", recording.hasVideo() ? 1 : 0);
-        cv.put("recorded_ts", recording.getRecordedTimestamp());
-        cv.put("content_type", recording.getContentType());
-        cv.put("transcription", recording.getTranscription());
-        cv.put("transcription_lang", recording.getTranscriptionLanguage());
-        cv.put("transcription_url", recording.getTranscriptionUrl());
-        if(recording.getTranscriptionConfidence() >= 0) {
-            cv.put("transcription_confidence", recording.getTranscriptionConfidence());
-        } else {
-            cv.putNull("transcription_confidence");
-        }
-
-        long id = db.insert("tbl_recording", null, cv);
-        if(id < 0) {
-            throw new SQLException("Unable to insert recording!");
-        }
+        long id = StatementCache.executeInsert(db, "INSERT INTO tbl_recording (file_path, duration_millis, size_kb, has_video, recorded_ts, content_type, " +
+                        "transcription, transcription_lang, transcription_url, transcription_confidence) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                recording.getFilePath(), recording.getDurationMillis(), recording.getSizeKb(), recording.hasVideo() ? 1 : 0,
+                recording.getRecordedTimestamp(), recording.getContentType(), recording.getTranscription(), recording.getTranscriptionLanguage(),
+                recording.getTranscriptionUrl(), recording.getTranscriptionConfidence() >= 0 ? recording.getTranscriptionConfidence() : null);
 
         recording.setId(id);
         return recording;
@@ -80,32 +64,13 @@ public class RecordingManager {
             throw new IllegalArgumentException("Recording Id must be supplied!");
         }
 
-        ContentValues cv = new ContentValues();
-        cv.put("file_path", recording.getFilePath());
-        cv.put("duration_millis", recording.getDurationMillis());
-        cv.put("size_kb", recording.getSizeKb());
-        cv.put("has_video", recording.hasVideo() ? 1 : 0);
-        cv.put("recorded_ts", recording.getRecordedTimestamp());
-        cv.put("content_type", recording.getContentType());
-        if(recording.getTranscriptionConfidence() >= 0) {
-            cv.put("transcription_confidence", recording.getTranscriptionConfidence());
-        } else {
-            cv.putNull("transcription_confidence");
-        }
-        if(recording.getTranscription() != null) {
-            cv.put("transcription", recording.getTranscription());
-        }
-        if(recording.getTranscriptionLanguage() != null) {
-            cv.put("transcription_lang", recording.getTranscriptionLanguage());
-        }
-        if(recording.getTranscriptionUrl() != null) {
-            cv.put("transcription_url", recording.getTranscriptionUrl());
-        }
-
-        long id = db.update("tbl_recording", cv, "recording_id = " + recording.getId(), null);
-        if(id < 0) {
-            throw new SQLException("Unable to update recording!");
-        }
+        // transcription data is only replaced if supplied
+        StatementCache.executeUpdateDelete(db, "UPDATE tbl_recording SET file_path = ?, duration_millis = ?, size_kb = ?, has_video = ?, recorded_ts = ?, content_type = ?, " +
+                        "transcription_confidence = ?, transcription = IFNULL(?, transcription), transcription_lang = IFNULL(?, transcription_lang), " +
+                        "transcription_url = IFNULL(?, transcription_url) WHERE recording_id = ?",
+                recording.getFilePath(), recording.getDurationMillis(), recording.getSizeKb(), recording.hasVideo() ? 1 : 0,
+                recording.getRecordedTimestamp(), recording.getContentType(), recording.getTranscriptionConfidence() >= 0 ? recording.getTranscriptionConfidence() : null,
+                recording.getTranscription(), recording.getTranscriptionLanguage(), recording.getTranscriptionUrl(), recording.getId());
 
         return recording;
     }
@@ -118,10 +83,7 @@ public class RecordingManager {
     }
 
     public static void delete(SQLiteDatabase db, long recordingId) throws SQLException {
-        long id = db.delete("tbl_recording", "recording_id = " + recordingId, null);
-        if(id < 0) {
-            throw new SQLException("Unable to delete the recording!");
-        }
+        StatementCache.executeUpdateDelete(db, "DELETE FROM tbl_recording WHERE recording_id = ?", recordingId);
     }
 
 }
@@ -0,0 +1,224 @@
+package com.peppermint.app.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Query layer shared by the data managers.<br />
+ * Each distinct SQL statement is compiled into a {@link SQLiteStatement} once per database
+ * connection and reused with bound arguments, so SQLite does not have to re-parse and re-plan it.
+ * Queries that return rows go through {@link #query(SQLiteDatabase, String, Object...)}, which
+ * also binds the arguments, so that the connection's own prepared statement cache is hit.<br />
+ * <br />
+ * Statements are checked out of the cache while in use, so that concurrent threads never bind
+ * arguments to the same instance (and never wait on each other to do so).<br />
+ * <br />
+ * Writes executed outside a transaction go through {@link DatabaseHelper#beginWrite(SQLiteDatabase)},
+ * so that their wait for the write lock is measured as well.
+ */
+public class StatementCache {
+
+    private static final Map<SQLiteDatabase, Map<String, SQLiteStatement>> STATEMENTS = new HashMap<>();
+
+    // statements of closed connections can no longer be used (must hold the STATEMENTS lock)
+    private static void removeClosedConnections() {
+        Iterator<Map.Entry<SQLiteDatabase, Map<String, SQLiteStatement>>> it = STATEMENTS.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<SQLiteDatabase, Map<String, SQLiteStatement>> entry = it.next();
+            if(!entry.getKey().isOpen()) {
+                for(SQLiteStatement closedStatement : entry.getValue().values()) {
+                    closedStatement.close();
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private static SQLiteStatement acquire(SQLiteDatabase db, String sql, Object[] args) {
+        SQLiteStatement statement = null;
+
+        synchronized (STATEMENTS) {
+            Map<String, SQLiteStatement> statements = STATEMENTS.get(db);
+            if(statements != null) {
+                statement = statements.remove(sql);
+            }
+            // only look for closed connections on a miss, which is rare once the cache is warm
+            if(statement == null) {
+                removeClosedConnections();
+            }
+        }
+
+        if(statement == null) {
+            statement = db.compileStatement(sql);
+        }
+
+        statement.clearBindings();
+        if(args != null) {
+            for(int i=0; i<args.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+            }
+        }
+
+        return statement;
+    }
+
+    private static void release(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+
+        synchronized (STATEMENTS) {
+            if(db.isOpen()) {
+                Map<String, SQLiteStatement> statements = STATEMENTS.get(db);
+                if(statements == null) {
+                    statements = new HashMap<>();
+                    STATEMENTS.put(db, statements);
+                }
+                // another thread may have released an instance of the same statement in the meantime
+                if(!statements.containsKey(sql)) {
+                    statements.put(sql, statement);
+                    return;
+                }
+            }
+        }
+
+        statement.close();
+    }
+
+    // begins a write transaction for a single statement, unless it's already part of one
+    private static boolean beginWrite(SQLiteDatabase db) {
+        if(db.inTransaction()) {
+            return false;
+        }
+        DatabaseHelper.beginWrite(db);
+        return true;
+    }
+
+    /**
+     * Executes an INSERT statement.<br />
+     * Just like {@link SQLiteDatabase#insertOrThrow(String, String, android.content.ContentValues)},
+     * errors are thrown, so that the caller (and the enclosing transaction) can handle them.
+     *
+     * @param db the database connection
+     * @param sql the SQL statement, with a "?" for each argument
+     * @param args the arguments
+     * @return the row id of the inserted row; -1 if no row was inserted (e.g. INSERT OR IGNORE)
+     * @throws SQLException if the statement fails
+     */
+    public static long executeInsert(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = acquire(db, sql, args);
+        try {
+            final boolean ownTransaction = beginWrite(db);
+            try {
+                final long id = statement.executeInsert();
+                if(ownTransaction) {
+                    db.setTransactionSuccessful();
+                }
+                return id;
+            } finally {
+                if(ownTransaction) {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Executes an UPDATE or DELETE statement.
+     *
+     * @param db the database connection
+     * @param sql the SQL statement, with a "?" for each argument
+     * @param args the arguments
+     * @return the number of affected rows
+     */
+    public static int executeUpdateDelete(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = acquire(db, sql, args);
+        try {
+            final boolean ownTransaction = beginWrite(db);
+            try {
+                final int count = statement.executeUpdateDelete();
+                if(ownTransaction) {
+                    db.setTransactionSuccessful();
+                }
+                return count;
+            } finally {
+                if(ownTransaction) {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Executes a query that returns a single value (the first column of the first row).
+     *
+     * @param db the database connection
+     * @param sql the SQL query, with a "?" for each argument
+     * @param defaultValue the value to return if the query returns no rows
+     * @param args the arguments
+     * @return the value (0 if it is null); the default value if there are no rows
+     */
+    public static long simpleQueryForLong(SQLiteDatabase db, String sql, long defaultValue, Object... args) {
+        SQLiteStatement statement = acquire(db, sql, args);
+        try {
+            return statement.simpleQueryForLong();
+        } catch(SQLiteDoneException e) {
+            return defaultValue;
+        } finally {
+            release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Executes a query that returns a single value (the first column of the first row).
+     *
+     * @param db the database connection
+     * @param sql the SQL query, with a "?" for each argument
+     * @param args the arguments
+     * @return the value; null if it is null or if there are no rows
+     */
+    public static String simpleQueryForString(SQLiteDatabase db, String sql, Object... args) {
+        SQLiteStatement statement = acquire(db, sql, args);
+        try {
+            return statement.simpleQueryForString();
+        } catch(SQLiteDoneException e) {
+            return null;
+        } finally {
+            release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Executes a query that returns rows.<br />
+     * Arguments are bound as strings; comparisons with INTEGER columns still work (and are
+     * able to use indexes) due to SQLite's column affinity.
+     *
+     * @param db the database connection
+     * @param sql the SQL query, with a "?" for each argument
+     * @param args the arguments
+     * @return the cursor
+     */
+    public static Cursor query(SQLiteDatabase db, String sql, Object... args) {
+        String[] stringArgs = null;
+        if(args != null && args.length > 0) {
+            stringArgs = new String[args.length];
+            for(int i=0; i<args.length; i++) {
+                if(args[i] == null) {
+                    throw new IllegalArgumentException("Query argument " + (i + 1) + " is null! Use IS NULL instead.");
+                }
+                stringArgs[i] = args[i] instanceof Boolean ? (((Boolean) args[i]) ? "1" : "0") : String.valueOf(args[i]);
+            }
+        }
+        return db.rawQuery(sql, stringArgs);
+    }
+}
@@ -251,7 +251,7 @@ public abstract class CustomActionBarDrawerActivity extends CustomActionBarActiv
     protected boolean refreshProfileData() {
         String[] data = Utils.getUserData(this);
         if(data[1] != null) {
-            mImgUserAvatar.setImageDrawable(ResourceUtils.getDrawableFromUri(this, Uri.parse(data[1])));
+            mImgUserAvatar.setImageUri(Uri.parse(data[1]));
         } else {
             mImgUserAvatar.setImageDrawable(null);
         }
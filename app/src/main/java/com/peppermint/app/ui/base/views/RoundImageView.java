@@ -6,22 +6,31 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.Shader;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.ImageView;
 
 import com.peppermint.app.R;
+import com.peppermint.app.utils.PhotoLoader;
 import com.peppermint.app.utils.Utils;
 
 // Inspired on https://github.com/lopspower/CircularImageView/blob/master/CircularImageView/src/com/mikhaellopez/circularimageview/CircularImageView.java
 
 /**
- * {@link ImageView} that supports round corners.
- *
+ * {@link ImageView} that supports round corners.<br />
+ * Images can also be loaded asynchronously from a {@link Uri} through {@link #setImageUri(Uri)}.<br />
+ * <br />
+ * Bitmap images are drawn through a shader directly from the source bitmap, scaled with a matrix.
+ * Other drawables are drawn into a backing bitmap, which is reused while the size doesn't change.
+ * Thus, rebinding the view with a same-sized image does not allocate any bitmaps.
+ * See {@link #getBitmapAllocationCount()} and {@link #getShaderAllocationCount()}.
  */
 public class RoundImageView extends View {
 
@@ -29,6 +38,23 @@ public class RoundImageView extends View {
     private static final int DEF_BORDER_WIDTH_DP = 3;
     private static final int DEF_CORNER_RADIUS_DP = 10;
 
+    // allocations performed by all instances (only accessed on the main thread)
+    private static int sBitmapAllocationCount, sShaderAllocationCount;
+
+    /**
+     * @return the amount of backing bitmaps allocated by all {@link RoundImageView}s
+     */
+    public static int getBitmapAllocationCount() {
+        return sBitmapAllocationCount;
+    }
+
+    /**
+     * @return the amount of shaders allocated by all {@link RoundImageView}s
+     */
+    public static int getShaderAllocationCount() {
+        return sShaderAllocationCount;
+    }
+
     private int mBorderWidth, mCornerRadius;
     private Paint mPaint, mBorderPaint;
     private int mWidth, mHeight;
@@ -36,7 +62,29 @@ public class RoundImageView extends View {
     private Drawable mDrawable;
     private Drawable mFallbackDrawable;
 
-    protected Bitmap mBitmap;
+    // image loaded asynchronously through the PhotoLoader
+    private Uri mImageUri;
+    private int mImageUriSize;
+    private final PhotoLoader.Callback mPhotoCallback = new PhotoLoader.Callback() {
+        @Override
+        public void onPhotoLoaded(Uri uri, Bitmap bitmap) {
+            if(uri.equals(mImageUri)) {
+                mDrawable = bitmap == null ? null : new BitmapDrawable(getResources(), bitmap);
+                initShader();
+                invalidate();
+            }
+        }
+    };
+
+    // size of the drawn image (0 if there's no image)
+    private int mImageWidth, mImageHeight;
+    // the bitmap wrapped by the current shader (either the source bitmap or the backing bitmap)
+    private Bitmap mShaderBitmap;
+    private BitmapShader mShader;
+    private final Matrix mShaderMatrix = new Matrix();
+    private Bitmap mBackingBitmap;
+    private final Canvas mBackingCanvas = new Canvas();
+
     private RectF mBitmapBounds = new RectF(), mBorderBounds = new RectF();
 
     private boolean mKeepAspectRatio = false;
@@ -55,6 +103,7 @@ public class RoundImageView extends View {
         // init paints
         mPaint = new Paint();
         mPaint.setAntiAlias(true);
+        mPaint.setFilterBitmap(true);
 
         mBorderPaint = new Paint();
         mBorderPaint.setAntiAlias(true);
@@ -82,17 +131,17 @@ public class RoundImageView extends View {
 
     @Override
     public void onDraw(Canvas canvas) {
-        if (mBitmap != null && !mBitmap.isRecycled()) {
+        if (hasImage()) {
             int xOffset = 0;
             int yOffset = 0;
 
             if(isKeepAspectRatio()) {
-                xOffset = (int) (((float) mWidth - (float) mBitmap.getWidth()) / 2f);
-                yOffset = (int) (((float) mHeight - (float) mBitmap.getHeight()) / 2f);
+                xOffset = (int) (((float) mWidth - (float) mImageWidth) / 2f);
+                yOffset = (int) (((float) mHeight - (float) mImageHeight) / 2f);
             }
 
-            mBorderBounds.set(xOffset, yOffset, mBitmap.getWidth() + xOffset, mBitmap.getHeight() + yOffset);
-            mBitmapBounds.set(xOffset + mBorderWidth, yOffset + mBorderWidth, mBitmap.getWidth() + xOffset - mBorderWidth, mBitmap.getHeight() + yOffset - mBorderWidth);
+            mBorderBounds.set(xOffset, yOffset, mImageWidth + xOffset, mImageHeight + yOffset);
+            mBitmapBounds.set(xOffset + mBorderWidth, yOffset + mBorderWidth, mImageWidth + xOffset - mBorderWidth, mImageHeight + yOffset - mBorderWidth);
             canvas.drawRoundRect(mBorderBounds, mCornerRadius, mCornerRadius, mBorderPaint);
             canvas.drawRoundRect(mBitmapBounds, mCornerRadius - mBorderWidth, mCornerRadius - mBorderWidth, mPaint);
         }
@@ -109,6 +158,7 @@ public class RoundImageView extends View {
 
             // update the image bitmap
             initShader();
+            loadImageUri();
         }
 
         setMeasuredDimension(tmpWidth, tmpHeight);
@@ -122,9 +172,12 @@ public class RoundImageView extends View {
         Drawable drawable = mDrawable == null ? mFallbackDrawable : mDrawable;
 
         if(drawable == null) {
-            if(mBitmap != null && !mBitmap.isRecycled()) {
+            mImageWidth = mImageHeight = 0;
+            // release the source bitmap, but keep the backing bitmap for reuse
+            if(mShaderBitmap != null && mShaderBitmap != mBackingBitmap) {
                 mPaint.setShader(null);
-                mBitmap.recycle();
+                mShader = null;
+                mShaderBitmap = null;
             }
             return;
         }
@@ -145,20 +198,61 @@ public class RoundImageView extends View {
             bitmapHeight = Math.round((float) drawable.getIntrinsicHeight() * scale);
         }
 
-        if(mBitmap == null || (mBitmap.getHeight() != bitmapHeight || mBitmap.getWidth() != bitmapWidth)) {
-            if(mBitmap != null && !mBitmap.isRecycled()) {
+        if(bitmapWidth <= 0 || bitmapHeight <= 0) {
+            mImageWidth = mImageHeight = 0;
+            return;
+        }
+
+        Bitmap bitmap = drawable instanceof BitmapDrawable ? ((BitmapDrawable) drawable).getBitmap() : null;
+        if(bitmap == null || bitmap.isRecycled()) {
+            bitmap = drawToBackingBitmap(drawable, bitmapWidth, bitmapHeight);
+        }
+
+        if(mShader == null || mShaderBitmap != bitmap) {
+            mShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mShaderBitmap = bitmap;
+            mPaint.setShader(mShader);
+            sShaderAllocationCount++;
+        }
+
+        // scale the bitmap to the image size
+        mShaderMatrix.setScale((float) bitmapWidth / (float) bitmap.getWidth(), (float) bitmapHeight / (float) bitmap.getHeight());
+        mShader.setLocalMatrix(mShaderMatrix);
+
+        mImageWidth = bitmapWidth;
+        mImageHeight = bitmapHeight;
+    }
+
+    /**
+     * Draws the drawable into the backing bitmap, which is only re-allocated if the size changed.
+     */
+    private Bitmap drawToBackingBitmap(Drawable drawable, int width, int height) {
+        if(mBackingBitmap == null || mBackingBitmap.getWidth() != width || mBackingBitmap.getHeight() != height) {
+            if(mBackingBitmap != null && mShaderBitmap == mBackingBitmap) {
                 mPaint.setShader(null);
-                mBitmap.recycle();
+                mShader = null;
+                mShaderBitmap = null;
+                mBackingBitmap.recycle();
             }
-            mBitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-            mPaint.setShader(new BitmapShader(mBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+            mBackingBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            sBitmapAllocationCount++;
+        } else {
+            mBackingBitmap.eraseColor(Color.TRANSPARENT);
         }
 
-        // draw to bitmap
-        final Canvas canvas = new Canvas(mBitmap);
-        drawable.setBounds(0, 0, bitmapWidth, bitmapHeight);
-        drawable.draw(canvas);
-        canvas.setBitmap(null);
+        mBackingCanvas.setBitmap(mBackingBitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(mBackingCanvas);
+        mBackingCanvas.setBitmap(null);
+
+        return mBackingBitmap;
+    }
+
+    /**
+     * @return true if there's an image (or fallback image) to draw
+     */
+    protected boolean hasImage() {
+        return mShader != null && mImageWidth > 0 && mImageHeight > 0;
     }
 
     public void setFallbackImageDrawable(Drawable fallbackDrawable) {
@@ -168,11 +262,70 @@ public class RoundImageView extends View {
     }
 
     public void setImageDrawable(Drawable imageDrawable) {
+        if(mImageUri != null) {
+            PhotoLoader.getInstance(getContext()).cancel(this);
+            mImageUri = null;
+        }
         this.mDrawable = imageDrawable;
         initShader();
         invalidate();
     }
 
+    /**
+     * Loads the image in the specified {@link Uri} asynchronously, downsampled to the size of the view.<br />
+     * The fallback drawable is shown while loading or if unable to load the image.
+     *
+     * @param imageUri the image uri (null to remove the image)
+     */
+    public void setImageUri(Uri imageUri) {
+        if(imageUri == null) {
+            setImageDrawable(null);
+            return;
+        }
+        if(imageUri.equals(mImageUri)) {
+            return;
+        }
+
+        mImageUri = imageUri;
+        mImageUriSize = 0;
+        mDrawable = null;
+        loadImageUri();
+        initShader();
+        invalidate();
+    }
+
+    public Uri getImageUri() {
+        return mImageUri;
+    }
+
+    private void loadImageUri() {
+        // the image is always drawn in a square area
+        final int size = Math.min(mWidth, mHeight);
+        if(mImageUri == null || size <= 0 || size == mImageUriSize) {
+            return;
+        }
+        mImageUriSize = size;
+        PhotoLoader.getInstance(getContext()).loadPhoto(this, mImageUri, size, size, mPhotoCallback);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if(mImageUri != null && mDrawable == null) {
+            // the request was cancelled when detached
+            mImageUriSize = 0;
+            loadImageUri();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if(mImageUri != null) {
+            PhotoLoader.getInstance(getContext()).cancel(this);
+        }
+        super.onDetachedFromWindow();
+    }
+
     /**
      * See {@link #setKeepAspectRatio(boolean)} for more information.
      *
@@ -2,6 +2,7 @@ package com.peppermint.app.ui.canvas;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.view.View;
 import android.view.animation.Interpolator;
 
@@ -11,7 +12,9 @@ import java.util.List;
 /**
  * Created by Nuno Luz on 30-09-2015.
  *
- * Abstract implementation of an {@link AnimatedLayer}.
+ * Abstract implementation of an {@link AnimatedLayer}.<br />
+ * The layer is considered changed whenever its interpolated elapsed time changes
+ * (see {@link #hasOutputChanged()}).
  */
 public abstract class AnimatedLayerBase extends LayerBase implements AnimatedLayer {
 
@@ -21,6 +24,7 @@ public abstract class AnimatedLayerBase extends LayerBase implements AnimatedLay
     private double mStartTime = 0, mLastTime = 0, mElapsedTime = 0, mDuration;
     private boolean mReversed = false, mLooping = false;
     private boolean mRunning = false;
+    private long mLastDrawnElapsedTime = -1;
 
     public AnimatedLayerBase(Context context) {
         super(context);
@@ -50,10 +54,22 @@ public abstract class AnimatedLayerBase extends LayerBase implements AnimatedLay
         this.mStartTime = 0;
         this.mLastTime = 0;
         this.mElapsedTime = 0;
+        invalidate();
     }
 
     @Override
     public void draw(View view, Canvas canvas) {
+        updateElapsedTime();
+
+        final long interpolatedElapsedTime = getInterpolatedElapsedTime();
+        mLastDrawnElapsedTime = interpolatedElapsedTime;
+        onDraw(view, canvas, interpolatedElapsedTime);
+    }
+
+    /**
+     * Advances the elapsed time of the animation (if running) according to the current time.
+     */
+    protected void updateElapsedTime() {
         if(mRunning) {
             long now = android.os.SystemClock.uptimeMillis();
             if (mStartTime <= 0) {
@@ -68,8 +84,25 @@ public abstract class AnimatedLayerBase extends LayerBase implements AnimatedLay
 
             mLastTime = now;
         }
+    }
 
-        onDraw(view, canvas, getInterpolatedElapsedTime());
+    /**
+     * Checks if the output of the layer would change if drawn now. By default, this happens if
+     * the interpolated elapsed time changed since the last draw. Override for finer control.
+     *
+     * @return true if the output changed
+     */
+    protected boolean hasOutputChanged() {
+        return getInterpolatedElapsedTime() != mLastDrawnElapsedTime;
+    }
+
+    @Override
+    public boolean popDirtyBounds(Rect dirty) {
+        updateElapsedTime();
+        if(hasOutputChanged()) {
+            invalidate();
+        }
+        return super.popDirtyBounds(dirty);
     }
 
     protected void onDraw(View view, Canvas canvas, double interpolatedElapsedTime) {
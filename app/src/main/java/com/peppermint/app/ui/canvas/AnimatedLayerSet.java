@@ -2,6 +2,7 @@ package com.peppermint.app.ui.canvas;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.view.View;
 
 import java.util.Collection;
@@ -29,6 +30,33 @@ public class AnimatedLayerSet extends AnimatedLayerBase implements AnimatedLayer
         }
     }
 
+    @Override
+    public void invalidate() {
+        if(mAnimations == null) {
+            return;
+        }
+        for(AnimatedLayer animation : mAnimations) {
+            animation.invalidate();
+        }
+    }
+
+    /**
+     * The set changes if any of its animations changes.
+     * @param dirty the dirty rectangle (receives the union of the changed areas of all animations)
+     * @return true if any of the animations changed
+     */
+    @Override
+    public boolean popDirtyBounds(Rect dirty) {
+        boolean changed = false;
+        for(AnimatedLayer animation : mAnimations) {
+            // all animations must be checked (this resets their changed state)
+            if(animation.popDirtyBounds(dirty)) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
     @Override
     public void start() {
         super.start();
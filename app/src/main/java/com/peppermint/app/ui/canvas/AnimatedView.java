@@ -9,12 +9,16 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.Region;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.TextureView;
+import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.DecelerateInterpolator;
 import android.view.animation.Interpolator;
@@ -31,8 +35,10 @@ import java.util.Random;
  *
  * A {@link TextureView} that allows animations to be executed through {@link AnimatedLayer}s
  * at the specified frame rate. It can also contain static {@link Layer}s.<br />
- * Drawing operations are performed on a background thread through double buffering
- * to improve performance.<br />
+ * Drawing operations are performed on the shared render thread of the {@link FrameScheduler}
+ * through double buffering to improve performance. The view is unscheduled while it is
+ * off-screen or while none of its animations are running (and nothing else changed), and is
+ * scheduled again once it becomes visible, a frame is requested or the animations are started.<br />
  * The contents of view can be scaled.<br />
  * The view supports a content explosion animation through {@link #startExplosion()}.
  */
@@ -54,40 +60,37 @@ public class AnimatedView extends TextureView {
     private static final int SLICE_TRANSLATION_VARIABLE_DP = 20;
 
     // other values
+    private static final long FRAME_TOLERANCE_NANOS = 8000000L;
+    private static final int DIRTY_BOUNDS_MARGIN = 2;
     private static final int SCALE_INTERPOLATION_DURATION = 1000;
     private static final int DEF_DESIRED_SIZE_DP = 150;
 
     /**
-     * This thread draws each frame of the animation through double buffering.
+     * Draws each frame of the animation through double buffering, when ticked by the {@link FrameScheduler}.
      */
-    private class AnimationThread extends Thread {
-        private boolean mRunning = true;
-
+    private final FrameScheduler.Target mFrameTarget = new FrameScheduler.Target() {
         @Override
-        public void run() {
-            while(mRunning) {
-                doDraw();
-                try {
-                    sleep(mFrameInterval);
-                } catch (InterruptedException e) {
-                    // do nothing here
-                }
+        public boolean onFrame(long frameTimeNanos) {
+            if(!mSurfaceAvailable || !mVisibleOnScreen) {
+                // a pending frame is requested again once the surface/view becomes available/visible
+                return false;
             }
-        }
 
-        public boolean isRunning() {
-            return this.mRunning;
-        }
+            // frame rate of this view (tolerates half a vsync of jitter)
+            if(mLastFrameTimeNanos > 0 && frameTimeNanos - mLastFrameTimeNanos < (mFrameInterval * 1000000L) - FRAME_TOLERANCE_NANOS) {
+                return true;
+            }
 
-        public void setRunning(boolean running) {
-            synchronized (AnimatedView.this) {
-                this.mRunning = running;
-                if (!running) {
-                    interrupt();
-                }
+            if(mFrameRequested || isAnimating()) {
+                mFrameRequested = false;
+                mLastFrameTimeNanos = frameTimeNanos;
+                doDraw();
             }
+
+            // idle views are unscheduled; requestFrame() and startAnimations() schedule them again
+            return mFrameRequested || (mDrawingContinuously && isAnimating());
         }
-    }
+    };
 
     public interface ExplosionListener {
         void onExplosionFinished();
@@ -132,18 +135,23 @@ public class AnimatedView extends TextureView {
 
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+            mSurfaceAvailable = true;
             // draw at least once on initialization
-            doDraw();
+            requestFullFrame();
         }
 
         @Override
         public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
-            doDraw();
+            requestFullFrame();
         }
 
         @Override
         public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
             stopDrawingThread();
+            // wait for any frame being drawn
+            synchronized (AnimatedView.this) {
+                mSurfaceAvailable = false;
+            }
             return true;
         }
 
@@ -151,11 +159,37 @@ public class AnimatedView extends TextureView {
         public void onSurfaceTextureUpdated(SurfaceTexture surface) { /* nothing to do here */ }
     };
 
+    // keeps track of the visibility of the view (e.g. inside a scrolling list)
+    private final Rect mVisibleRect = new Rect();
+    private final ViewTreeObserver.OnScrollChangedListener mScrollChangedListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            updateVisibleOnScreen();
+        }
+    };
+    private final ViewTreeObserver.OnGlobalLayoutListener mGlobalLayoutListener = new ViewTreeObserver.OnGlobalLayoutListener() {
+        @Override
+        public void onGlobalLayout() {
+            updateVisibleOnScreen();
+        }
+    };
+
     private AnimatedViewListener mDrawingListener;
 
     private long mFrameInterval = 30;   // ~33 fps
     private List<Layer> mAnimatedLayerList = new ArrayList<>();
-    private AnimationThread mAnimationThread;
+
+    // drawing state (accessed by the render thread)
+    private volatile boolean mDrawingContinuously = false;
+    private volatile boolean mFrameRequested = false;
+    private volatile boolean mFullFrameRequested = true;
+    private volatile boolean mSurfaceAvailable = false;
+    private volatile boolean mVisibleOnScreen = false;
+    private long mLastFrameTimeNanos = 0;
+
+    // area changed since the last frame
+    private final Rect mDirtyBounds = new Rect();
+    private final RectF mDirtyBoundsF = new RectF();
 
     // view size
     private float mWidth, mHeight;
@@ -272,6 +306,7 @@ public class AnimatedView extends TextureView {
 
             mExplosionStatus = STATUS_EXPLODING;
             mExplosionStartTime = -1;
+            requestFullFrame();
         }
     }
 
@@ -308,6 +343,7 @@ public class AnimatedView extends TextureView {
         }
 
         this.setMeasuredDimension((int) mWidth, (int) mHeight);
+        requestFullFrame();
     }
 
     private synchronized void doDrawLayers(Canvas canvas) {
@@ -322,18 +358,87 @@ public class AnimatedView extends TextureView {
         canvas.restore();
     }
 
-    protected synchronized void doDraw() {
-        Canvas canvas = lockCanvas();
-        if (canvas != null) {
-            if (mDrawingListener != null) {
-                mDrawingListener.onPrepareToDraw(AnimatedView.this);
+    /**
+     * @return true if there is any running animation (layers, scale or explosion)
+     */
+    protected synchronized boolean isAnimating() {
+        if(mScaleFrames > 0 || mExplosionStatus == STATUS_EXPLODING) {
+            return true;
+        }
+        for(int i=0; i<mAnimatedLayerList.size(); i++) {
+            final Layer layer = mAnimatedLayerList.get(i);
+            if(layer instanceof AnimatedLayer && ((AnimatedLayer) layer).isRunning()) {
+                return true;
             }
+        }
+        return false;
+    }
+
+    /**
+     * Maps the dirty bounds of the layers to the (scaled) canvas coordinates.
+     */
+    private void scaleDirtyBounds() {
+        if(mScaleFactor != 1f) {
+            final float pivotX = mWidth / 2f, pivotY = mHeight / 2f;
+            mDirtyBoundsF.set(mDirtyBounds);
+            mDirtyBoundsF.left = pivotX + ((mDirtyBoundsF.left - pivotX) * mScaleFactor);
+            mDirtyBoundsF.top = pivotY + ((mDirtyBoundsF.top - pivotY) * mScaleFactor);
+            mDirtyBoundsF.right = pivotX + ((mDirtyBoundsF.right - pivotX) * mScaleFactor);
+            mDirtyBoundsF.bottom = pivotY + ((mDirtyBoundsF.bottom - pivotY) * mScaleFactor);
+            mDirtyBoundsF.roundOut(mDirtyBounds);
+        }
+        // anti-aliased edges may slightly exceed the bounds of the layers
+        mDirtyBounds.inset(-DIRTY_BOUNDS_MARGIN, -DIRTY_BOUNDS_MARGIN);
+    }
+
+    /**
+     * Draws a frame if anything changed since the last one.<br />
+     * Only the changed area of the layers is locked and redrawn, unless a full frame was
+     * requested (e.g. layers were added/removed, the view was resized or it is scaling/exploding).
+     */
+    protected synchronized void doDraw() {
+        if(!mSurfaceAvailable) {
+            return;
+        }
+
+        if (mDrawingListener != null) {
+            mDrawingListener.onPrepareToDraw(AnimatedView.this);
+        }
+
+        boolean fullFrame = mFullFrameRequested || mExplosionStatus == STATUS_EXPLODING;
+        mFullFrameRequested = false;
+
+        if (mScaleFrames > 0) {
+            float factor = mScaleInterpolator.getInterpolation((float) mScaleFrames / (float) (SCALE_INTERPOLATION_DURATION / mFrameInterval));
+            mScaleFactor = mOldScaleFactor + (mScaleDiff * factor);
+            mScaleFrames--;
+            fullFrame = true;
+        }
 
-            if (mScaleFrames > 0) {
-                float factor = mScaleInterpolator.getInterpolation((float) mScaleFrames / (float) (SCALE_INTERPOLATION_DURATION / mFrameInterval));
-                mScaleFactor = mOldScaleFactor + (mScaleDiff * factor);
-                mScaleFrames--;
+        // collect the changed area of all layers (this also advances their animations)
+        mDirtyBounds.setEmpty();
+        boolean changed = false;
+        for(int i=0; i<mAnimatedLayerList.size(); i++) {
+            if(mAnimatedLayerList.get(i).popDirtyBounds(mDirtyBounds)) {
+                changed = true;
             }
+        }
+
+        if(!fullFrame && !changed) {
+            // nothing to draw
+            return;
+        }
+
+        final Canvas canvas;
+        if(fullFrame || mDirtyBounds.isEmpty()) {
+            canvas = lockCanvas();
+        } else {
+            scaleDirtyBounds();
+            // the canvas is clipped to the dirty area; the rest of the previous frame is kept
+            canvas = lockCanvas(mDirtyBounds);
+        }
+
+        if (canvas != null) {
 
             if(mExplosionStatus != STATUS_EXPLODED) {
 
@@ -399,6 +504,8 @@ public class AnimatedView extends TextureView {
                     // check if the explosion has finished
                     if(delayedTime >= mExplosionDuration) {
                         mExplosionStatus = STATUS_EXPLODED;
+                        // clear the last explosion frame
+                        requestFullFrame();
                         if(mExplosionListener != null) {
                             mExplosionListener.onExplosionFinished();
                         }
@@ -413,6 +520,9 @@ public class AnimatedView extends TextureView {
             }
 
             unlockCanvasAndPost(canvas);
+        } else {
+            // the changed area was not drawn
+            mFullFrameRequested = true;
         }
     }
 
@@ -428,6 +538,7 @@ public class AnimatedView extends TextureView {
                 ((AnimatedLayer) layer).reset();
             }
         }
+        requestFullFrame();
     }
 
     /**
@@ -441,6 +552,7 @@ public class AnimatedView extends TextureView {
                 ((AnimatedLayer) layer).start();
             }
         }
+        requestFrame();
     }
 
     /**
@@ -455,29 +567,78 @@ public class AnimatedView extends TextureView {
     }
 
     /**
-     * Start the thread that draws all layers at the specified frame rate.
+     * Requests a new frame to be drawn (e.g. after changing static content), even if no animation is running.
+     * Can be invoked from any thread.
      */
-    public void startDrawingThread() {
-        if(mAnimationThread != null && mAnimationThread.isRunning()) {
-            return;
-        }
+    public void requestFrame() {
+        mFrameRequested = true;
+        FrameScheduler.getInstance().schedule(mFrameTarget);
+    }
 
-        mAnimationThread = new AnimationThread();
-        mAnimationThread.start();
+    /**
+     * Requests a new frame in which the whole view is redrawn (not just the changed area of the layers).
+     * Can be invoked from any thread.
+     */
+    public void requestFullFrame() {
+        mFullFrameRequested = true;
+        requestFrame();
     }
 
     /**
-     * Stop the thread that draws all layers.
+     * Start drawing all layers at the specified frame rate.<br />
+     * The view is ticked by the shared {@link FrameScheduler} instead of a dedicated thread,
+     * and frames are skipped while it is off-screen or idle.
+     */
+    public void startDrawingThread() {
+        mDrawingContinuously = true;
+        requestFrame();
+    }
+
+    /**
+     * Stop drawing all layers (except for explicitly requested frames).
      */
     public void stopDrawingThread() {
-        if(mAnimationThread != null) {
-            mAnimationThread.setRunning(false);
-            mAnimationThread = null;
+        mDrawingContinuously = false;
+        if(!mFrameRequested) {
+            FrameScheduler.getInstance().unschedule(mFrameTarget);
         }
     }
 
     public boolean isDrawingThreadRunning() {
-        return mAnimationThread != null && mAnimationThread.isRunning();
+        return mDrawingContinuously;
+    }
+
+    private void updateVisibleOnScreen() {
+        final boolean visible = isShown() && getGlobalVisibleRect(mVisibleRect);
+        if(visible != mVisibleOnScreen) {
+            mVisibleOnScreen = visible;
+            if(visible) {
+                requestFrame();
+            } else {
+                FrameScheduler.getInstance().unschedule(mFrameTarget);
+            }
+        }
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateVisibleOnScreen();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateVisibleOnScreen();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        final ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnScrollChangedListener(mScrollChangedListener);
+        observer.addOnGlobalLayoutListener(mGlobalLayoutListener);
+        updateVisibleOnScreen();
     }
 
     public List<Layer> getLayers() {
@@ -486,18 +647,22 @@ public class AnimatedView extends TextureView {
 
     public synchronized void setLayers(List<Layer> mAnimatedLayerList) {
         this.mAnimatedLayerList = mAnimatedLayerList;
+        requestFullFrame();
     }
 
     public synchronized void addLayer(Layer layer) {
         this.mAnimatedLayerList.add(layer);
+        requestFullFrame();
     }
 
     public synchronized boolean removeLayer(Layer layer) {
+        requestFullFrame();
         return this.mAnimatedLayerList.remove(layer);
     }
 
     public synchronized void removeLayers() {
         this.mAnimatedLayerList.clear();
+        requestFullFrame();
     }
 
     public AnimatedViewListener getDrawingListener() {
@@ -516,6 +681,7 @@ public class AnimatedView extends TextureView {
         this.mOldScaleFactor = this.mScaleFactor;
         this.mScaleDiff = mScaleFactor - this.mScaleFactor;
         this.mScaleFrames = SCALE_INTERPOLATION_DURATION / mFrameInterval;
+        requestFullFrame();
     }
 
     public float getLocalHeight() {
@@ -557,6 +723,16 @@ public class AnimatedView extends TextureView {
     protected void onDetachedFromWindow() {
         try {
             stopDrawingThread();
+            FrameScheduler.getInstance().unschedule(mFrameTarget);
+            final ViewTreeObserver observer = getViewTreeObserver();
+            observer.removeOnScrollChangedListener(mScrollChangedListener);
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                observer.removeOnGlobalLayoutListener(mGlobalLayoutListener);
+            } else {
+                //noinspection deprecation
+                observer.removeGlobalOnLayoutListener(mGlobalLayoutListener);
+            }
+            mVisibleOnScreen = false;
             super.onDetachedFromWindow();
         } catch (Throwable e) {
             TrackerManager.getInstance(getContext().getApplicationContext()).log("Error detaching view! Probable bug of Android 4", e);
@@ -0,0 +1,273 @@
+package com.peppermint.app.ui.canvas;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Shader;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide cache of bitmap frames (e.g. of {@link BitmapSequenceAnimatedLayer}s), decoded from
+ * image resources at a specific size.<br />
+ * Each frame is decoded once per size and shared by all layers that show it, along with a
+ * {@link BitmapShader} to draw it. The cache is an LRU with a budget in bytes.<br />
+ * <br />
+ * Intermediate bitmaps (decoded with {@link BitmapFactory.Options#inSampleSize} before being
+ * scaled to the exact size) are reused through {@link BitmapFactory.Options#inBitmap}.
+ * Cached frames are never recycled or reused, since evicted frames may still be in use.
+ */
+public class BitmapFrameCache {
+
+    private static final String TAG = BitmapFrameCache.class.getSimpleName();
+
+    // fraction of the max. heap used by the cache
+    private static final int MAX_MEMORY_DIVIDER = 8;
+    private static final int MAX_POOLED_BITMAPS = 4;
+
+    /**
+     * A decoded frame.
+     */
+    public static class Frame {
+        private final Bitmap mBitmap;
+        private final BitmapShader mShader;
+
+        private Frame(Bitmap bitmap) {
+            this.mBitmap = bitmap;
+            this.mShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+
+        /**
+         * @return the shader; shared by all users of the frame, so its local matrix must not be changed
+         */
+        public BitmapShader getShader() {
+            return mShader;
+        }
+    }
+
+    private static BitmapFrameCache INSTANCE;
+
+    public static synchronized BitmapFrameCache getInstance() {
+        if(INSTANCE == null) {
+            INSTANCE = new BitmapFrameCache((int) (Runtime.getRuntime().maxMemory() / MAX_MEMORY_DIVIDER));
+        }
+        return INSTANCE;
+    }
+
+    private final LruCache<Long, Frame> mFrames;
+
+    // decoding state (only accessed while holding the lock)
+    private final List<Bitmap> mBitmapPool = new ArrayList<>();
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final Canvas mScaleCanvas = new Canvas();
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final Rect mScaleRect = new Rect();
+
+    private int mHitCount, mMissCount;
+
+    BitmapFrameCache(int maxSizeBytes) {
+        mFrames = new LruCache<Long, Frame>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(Long key, Frame frame) {
+                return frame.getBitmap().getRowBytes() * frame.getBitmap().getHeight();
+            }
+        };
+    }
+
+    private static long getKey(int resId, int width, int height) {
+        return ((long) resId << 32) | ((long) (width & 0xFFFF) << 16) | (height & 0xFFFF);
+    }
+
+    /**
+     * Obtains the frame for the specified image resource and size, decoding it if necessary.
+     *
+     * @param context the context
+     * @param resId the image resource id
+     * @param width the width of the frame
+     * @param height the height of the frame
+     * @return the frame; null if unable to decode the image
+     */
+    public synchronized Frame get(Context context, int resId, int width, int height) {
+        if(width <= 0 || height <= 0) {
+            return null;
+        }
+
+        final Long key = getKey(resId, width, height);
+        Frame frame = mFrames.get(key);
+        if(frame != null) {
+            mHitCount++;
+            return frame;
+        }
+
+        mMissCount++;
+        final Bitmap bitmap = decode(context, resId, width, height);
+        if(bitmap == null) {
+            return null;
+        }
+
+        frame = new Frame(bitmap);
+        mFrames.put(key, frame);
+        return frame;
+    }
+
+    /**
+     * Decodes the frames of all specified image resources (if not cached yet).
+     *
+     * @param context the context
+     * @param resIds the image resource ids
+     * @param width the width of the frames
+     * @param height the height of the frames
+     */
+    public void prefetch(Context context, int[] resIds, int width, int height) {
+        for(int resId : resIds) {
+            get(context, resId, width, height);
+        }
+    }
+
+    private Bitmap decode(Context context, int resId, int width, int height) {
+        // read the size of the image
+        mOptions.inJustDecodeBounds = true;
+        mOptions.inSampleSize = 1;
+        mOptions.inBitmap = null;
+        mOptions.outWidth = mOptions.outHeight = -1;
+        decodeResource(context, resId);
+        final int imageWidth = mOptions.outWidth;
+        final int imageHeight = mOptions.outHeight;
+        if(imageWidth <= 0 || imageHeight <= 0) {
+            return null;
+        }
+
+        // largest power of two that keeps the decoded image larger than the frame
+        int sampleSize = 1;
+        while(imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+
+        mOptions.inJustDecodeBounds = false;
+        mOptions.inSampleSize = sampleSize;
+        mOptions.inMutable = true;
+        mOptions.inBitmap = getPooledBitmap(imageWidth, imageHeight, sampleSize);
+        Bitmap decoded = decodeResource(context, resId);
+        if(decoded == null && mOptions.inBitmap != null) {
+            // the pooled bitmap was not compatible after all
+            mBitmapPool.remove(mOptions.inBitmap);
+            mOptions.inBitmap = null;
+            decoded = decodeResource(context, resId);
+        }
+        mOptions.inBitmap = null;
+
+        if(decoded == null) {
+            return null;
+        }
+
+        if(decoded.getWidth() == width && decoded.getHeight() == height) {
+            // no need to scale
+            mBitmapPool.remove(decoded);
+            return decoded;
+        }
+
+        // scale the decoded image to the exact size of the frame
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mScaleRect.set(0, 0, width, height);
+        mScaleCanvas.setBitmap(bitmap);
+        mScaleCanvas.drawBitmap(decoded, null, mScaleRect, mScalePaint);
+        mScaleCanvas.setBitmap(null);
+
+        // the decoded image can be reused for the next decode
+        if(!mBitmapPool.contains(decoded)) {
+            if(mBitmapPool.size() >= MAX_POOLED_BITMAPS) {
+                mBitmapPool.remove(0);
+            }
+            mBitmapPool.add(decoded);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Reads the image resource using {@link #mOptions}.
+     * @return the decoded bitmap; null if unsuccessful (or if only decoding bounds)
+     */
+    private Bitmap decodeResource(Context context, int resId) {
+        InputStream stream = null;
+        try {
+            stream = context.getResources().openRawResource(resId);
+            return BitmapFactory.decodeStream(stream, null, mOptions);
+        } catch(IllegalArgumentException e) {
+            // incompatible inBitmap
+            Log.w(TAG, "Unable to reuse bitmap to decode resource " + resId, e);
+            return null;
+        } finally {
+            if(stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Obtains a pooled bitmap that can be used as {@link BitmapFactory.Options#inBitmap}.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap getPooledBitmap(int imageWidth, int imageHeight, int sampleSize) {
+        final int decodedWidth = (int) Math.ceil((double) imageWidth / sampleSize);
+        final int decodedHeight = (int) Math.ceil((double) imageHeight / sampleSize);
+
+        for(int i=0; i<mBitmapPool.size(); i++) {
+            final Bitmap bitmap = mBitmapPool.get(i);
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // any bitmap that is large enough
+                if(bitmap.getAllocationByteCount() >= decodedWidth * decodedHeight * 4) {
+                    return bitmap;
+                }
+            } else if(sampleSize == 1 && bitmap.getWidth() == imageWidth && bitmap.getHeight() == imageHeight) {
+                // older versions require the exact size
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes all frames from the cache (e.g. on low memory).
+     */
+    public synchronized void clear() {
+        mFrames.evictAll();
+        mBitmapPool.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public int getSize() {
+        return mFrames.size();
+    }
+
+    public int getMaxSize() {
+        return mFrames.maxSize();
+    }
+}
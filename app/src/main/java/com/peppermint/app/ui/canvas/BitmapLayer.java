@@ -114,6 +114,7 @@ public class BitmapLayer extends LayerBase implements Layer {
     public void setBitmapResourceId(int mBitmapRes) {
         this.mBitmapRes = mBitmapRes;
         initDrawable();
+        invalidate();
     }
 
     public BitmapDrawable getBitmapDrawable() {
@@ -124,6 +125,7 @@ public class BitmapLayer extends LayerBase implements Layer {
         this.mDrawable = mDrawable;
         mPrevBounds = null;
         initShader();
+        invalidate();
     }
 
     public Paint getBorderPaint() {
@@ -132,6 +134,7 @@ public class BitmapLayer extends LayerBase implements Layer {
 
     public void setBorderPaint(Paint mBorderPaint) {
         this.mBorderPaint = mBorderPaint;
+        invalidate();
     }
 
     public int getBorderWidth() {
@@ -140,6 +143,7 @@ public class BitmapLayer extends LayerBase implements Layer {
 
     public void setBorderWidth(int mBorderWidth) {
         this.mBorderWidth = mBorderWidth;
+        invalidate();
     }
 
     public int getCornerRadius() {
@@ -148,5 +152,6 @@ public class BitmapLayer extends LayerBase implements Layer {
 
     public void setCornerRadius(int mCornerRadius) {
         this.mCornerRadius = mCornerRadius;
+        invalidate();
     }
 }
@@ -1,17 +1,12 @@
 package com.peppermint.app.ui.canvas;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Shader;
-import android.graphics.drawable.BitmapDrawable;
 import android.view.View;
 
-import com.peppermint.app.utils.ResourceUtils;
-
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,17 +14,19 @@ import java.util.List;
  * Created by Nuno Luz on 24-09-2015.
  *
  * An {@link AnimatedLayer} filled with an animated sequence of bitmap images.<br />
- * It supports borders and round corners.
+ * It supports borders and round corners.<br />
+ * Frames are decoded at the size of the layer and shared with other layers through the
+ * {@link BitmapFrameCache}, so switching frames does not decode or allocate anything once cached.
  */
 public class BitmapSequenceAnimatedLayer extends AnimatedLayerBase implements AnimatedLayer {
 
     private int[] mBitmapSequenceRes;
-    private Bitmap[] mBitmapSequence;
+    private boolean mDecodeAsYouGo = true;
 
     private Paint mPaint, mBorderPaint;
     private int mBorderWidth, mCornerRadius;
     private int mLastFrame = -1;
-    private Bitmap mLastBitmap;
+    private final RectF mBorderRect = new RectF(), mBitmapRect = new RectF();
 
     public BitmapSequenceAnimatedLayer(Context context, long duration, Paint paint) {
         super(context);
@@ -51,18 +48,39 @@ public class BitmapSequenceAnimatedLayer extends AnimatedLayerBase implements An
         setBitmapSequenceResourceIds(false, bitmapSequenceRes);
     }
 
+    private int getFrame(double interpolatedElapsedTime) {
+        return (int) Math.round(interpolatedElapsedTime / getDuration() * (mBitmapSequenceRes.length - 1));
+    }
+
+    /**
+     * The output only changes when the bitmap of the current frame changes
+     * (consecutive frames often repeat the same bitmap).
+     */
+    @Override
+    protected synchronized boolean hasOutputChanged() {
+        if(mBitmapSequenceRes == null || mBitmapSequenceRes.length <= 0) {
+            return false;
+        }
+        if(mLastFrame < 0) {
+            return true;
+        }
+        return mBitmapSequenceRes[getFrame(getInterpolatedElapsedTime())] != mBitmapSequenceRes[mLastFrame];
+    }
+
     @Override
     public synchronized void onDraw(View view, Canvas canvas, double interpolatedElapsedTime) {
-        int currentFrame = (int) Math.round(interpolatedElapsedTime / getDuration() * (mBitmapSequenceRes.length - 1));
+        int currentFrame = getFrame(interpolatedElapsedTime);
         initShader(currentFrame);
 
         if(canvas != null) {
             canvas.save();
             canvas.translate(getBounds().left, getBounds().top);
             if (mBorderWidth > 0 && mBorderPaint != null) {
-                canvas.drawRoundRect(new RectF(0, 0, getBounds().width(), getBounds().height()), mCornerRadius, mCornerRadius, mBorderPaint);
+                mBorderRect.set(0, 0, getBounds().width(), getBounds().height());
+                canvas.drawRoundRect(mBorderRect, mCornerRadius, mCornerRadius, mBorderPaint);
             }
-            canvas.drawRoundRect(new RectF(mBorderWidth, mBorderWidth, getBounds().width() - mBorderWidth, getBounds().height() - mBorderWidth), mCornerRadius - mBorderWidth, mCornerRadius - mBorderWidth, mPaint);
+            mBitmapRect.set(mBorderWidth, mBorderWidth, getBounds().width() - mBorderWidth, getBounds().height() - mBorderWidth);
+            canvas.drawRoundRect(mBitmapRect, mCornerRadius - mBorderWidth, mCornerRadius - mBorderWidth, mPaint);
             canvas.restore();
         }
     }
@@ -76,49 +94,55 @@ public class BitmapSequenceAnimatedLayer extends AnimatedLayerBase implements An
             return;
         }
 
-        Bitmap bitmap = null;
-        if(mBitmapSequence != null && mBitmapSequence.length > frame) {
-            bitmap = mBitmapSequence[frame];
-        } else if(mBitmapSequenceRes.length > frame) {
-            bitmap = ResourceUtils.getScaledResizedBitmap(getContext(), mBitmapSequenceRes[frame], getBounds().width() - mBorderWidth, getBounds().height() - mBorderWidth, false);
-            if(mLastBitmap != null && !mLastBitmap.isRecycled()) {
-                mPaint.setShader(null);
-                mLastBitmap.recycle();
-                mLastBitmap = bitmap;
-            }
-        }
-
-        if(bitmap != null) {
-            BitmapShader shader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-            mPaint.setShader(shader);
-        } else {
-            mPaint.setShader(null);
-        }
+        final BitmapFrameCache.Frame bitmapFrame = mBitmapSequenceRes.length > frame
+                ? BitmapFrameCache.getInstance().get(getContext(), mBitmapSequenceRes[frame], getFrameWidth(), getFrameHeight())
+                : null;
+        mPaint.setShader(bitmapFrame != null ? bitmapFrame.getShader() : null);
 
         mLastFrame = frame;
     }
 
-    public int[] getBitmapSequenceResourceIds() {
-        return mBitmapSequenceRes;
+    private int getFrameWidth() {
+        return getBounds().width() - mBorderWidth;
     }
 
-    public synchronized void setBitmapSequenceResourceIds(boolean decodeAsYouGo, int... mBitmapSequenceRes) {
-        if(!decodeAsYouGo) {
-            if(mBitmapSequence != null) {
-                for(int i=0; i<mBitmapSequence.length; i++) {
-                    if(!mBitmapSequence[i].isRecycled()) {
-                        mBitmapSequence[i].recycle();
-                    }
-                }
-            }
+    private int getFrameHeight() {
+        return getBounds().height() - mBorderWidth;
+    }
 
-            mBitmapSequence = new Bitmap[mBitmapSequenceRes.length];
-            for (int i = 0; i < mBitmapSequenceRes.length; i++) {
-                mBitmapSequence[i] = ((BitmapDrawable) ResourceUtils.getDrawable(getContext(), mBitmapSequenceRes[i])).getBitmap();
-            }
+    @Override
+    protected synchronized void onMeasure(Rect bounds) {
+        // frames must be obtained for the new size
+        mLastFrame = -1;
+        prefetch();
+    }
+
+    /**
+     * Decodes all frames, unless they are to be decoded as they are drawn.
+     */
+    private void prefetch() {
+        if(!mDecodeAsYouGo && mBitmapSequenceRes != null && getBounds() != null && getFrameWidth() > 0 && getFrameHeight() > 0) {
+            BitmapFrameCache.getInstance().prefetch(getContext(), mBitmapSequenceRes, getFrameWidth(), getFrameHeight());
         }
+    }
+
+    public int[] getBitmapSequenceResourceIds() {
+        return mBitmapSequenceRes;
+    }
 
+    /**
+     * Sets the sequence of image resources (one per frame).
+     *
+     * @param decodeAsYouGo if false, all frames are decoded as soon as the size of the layer is known;
+     *                      otherwise, each frame is decoded when first drawn (frames are cached in both cases)
+     * @param mBitmapSequenceRes the image resource ids
+     */
+    public synchronized void setBitmapSequenceResourceIds(boolean decodeAsYouGo, int... mBitmapSequenceRes) {
+        this.mDecodeAsYouGo = decodeAsYouGo;
         this.mBitmapSequenceRes = mBitmapSequenceRes;
+        this.mLastFrame = -1;
+        prefetch();
+        invalidate();
     }
 
     public synchronized void setBitmapSequenceResourceIds(boolean decodeAsYouGo, int[]... mBitmapSequenceRes) {
@@ -136,6 +160,7 @@ public class BitmapSequenceAnimatedLayer extends AnimatedLayerBase implements An
         }
 
         setBitmapSequenceResourceIds(decodeAsYouGo, bitmapSequenceRes);
+        invalidate();
     }
 
     public Paint getPaint() {
@@ -148,14 +173,17 @@ public class BitmapSequenceAnimatedLayer extends AnimatedLayerBase implements An
 
     public void setBorderPaint(Paint mBorderPaint) {
         this.mBorderPaint = mBorderPaint;
+        invalidate();
     }
 
     public int getBorderWidth() {
         return mBorderWidth;
     }
 
-    public void setBorderWidth(int mBorderWidth) {
+    public synchronized void setBorderWidth(int mBorderWidth) {
         this.mBorderWidth = mBorderWidth;
+        this.mLastFrame = -1;
+        invalidate();
     }
 
     public int getCornerRadius() {
@@ -164,5 +192,6 @@ public class BitmapSequenceAnimatedLayer extends AnimatedLayerBase implements An
 
     public void setCornerRadius(int mCornerRadius) {
         this.mCornerRadius = mCornerRadius;
+        invalidate();
     }
 }
@@ -0,0 +1,181 @@
+package com.peppermint.app.ui.canvas;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process-wide frame scheduler for views that draw on a background thread (e.g. {@link AnimatedView}).<br />
+ * All scheduled {@link Target}s are ticked on a single render thread, aligned with the display's
+ * vsync through {@link Choreographer} (or every {@link #FALLBACK_FRAME_INTERVAL_MS} on older
+ * devices). Each target decides on each tick if it actually draws, according to its own frame rate.<br />
+ * <br />
+ * Frame callbacks are only posted while there are scheduled targets, so an idle UI causes no wakeups.
+ */
+public class FrameScheduler {
+
+    private static final String TAG = FrameScheduler.class.getSimpleName();
+
+    private static final long FALLBACK_FRAME_INTERVAL_MS = 16;
+
+    /**
+     * A drawing target ticked by the {@link FrameScheduler}.
+     */
+    public interface Target {
+        /**
+         * Invoked on the render thread on each frame while scheduled.
+         *
+         * @param frameTimeNanos the frame time (in the {@link System#nanoTime()} time base)
+         * @return true to keep being scheduled for the next frame; false otherwise
+         */
+        boolean onFrame(long frameTimeNanos);
+    }
+
+    private static FrameScheduler INSTANCE;
+
+    public static synchronized FrameScheduler getInstance() {
+        if(INSTANCE == null) {
+            INSTANCE = new FrameScheduler();
+        }
+        return INSTANCE;
+    }
+
+    private final Handler mHandler;
+    private Object mFrameCallback;
+
+    // targets are only modified while holding the lock; the render thread iterates over a copy
+    private final List<Target> mTargets = new ArrayList<>();
+    // targets scheduled again while the current frame is being processed
+    private final List<Target> mRescheduledTargets = new ArrayList<>();
+    private Target[] mFrameTargets = new Target[0];
+    private boolean mFramePosted = false;
+
+    private final Runnable mFallbackFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doFrame(System.nanoTime());
+        }
+    };
+
+    private final Runnable mPostFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            postFrame();
+        }
+    };
+
+    private FrameScheduler() {
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Schedules the target to be ticked on the next frame (and on all subsequent frames,
+     * until it returns false in {@link Target#onFrame(long)} or is {@link #unschedule(Target)}d).<br />
+     * Can be invoked from any thread. Scheduling a target that is already scheduled ensures that it
+     * is ticked at least once more.
+     *
+     * @param target the target
+     */
+    public void schedule(Target target) {
+        synchronized (mTargets) {
+            if(!mTargets.contains(target)) {
+                mTargets.add(target);
+            } else if(!mRescheduledTargets.contains(target)) {
+                mRescheduledTargets.add(target);
+            }
+            if(!mFramePosted) {
+                mFramePosted = true;
+                // the choreographer must be accessed on the render thread
+                mHandler.post(mPostFrameRunnable);
+            }
+        }
+    }
+
+    /**
+     * Stops ticking the target. Can be invoked from any thread.<br />
+     * <strong>The target may still be ticked if the current frame is already being processed.</strong>
+     *
+     * @param target the target
+     */
+    public void unschedule(Target target) {
+        synchronized (mTargets) {
+            mTargets.remove(target);
+            mRescheduledTargets.remove(target);
+        }
+    }
+
+    public boolean isScheduled(Target target) {
+        synchronized (mTargets) {
+            return mTargets.contains(target);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrame() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if(mFrameCallback == null) {
+                mFrameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        FrameScheduler.this.doFrame(frameTimeNanos);
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        } else {
+            mHandler.postDelayed(mFallbackFrameRunnable, FALLBACK_FRAME_INTERVAL_MS);
+        }
+    }
+
+    private void doFrame(long frameTimeNanos) {
+        final Target[] targets;
+        final int targetCount;
+        synchronized (mTargets) {
+            targetCount = mTargets.size();
+            if(mFrameTargets.length < targetCount) {
+                mFrameTargets = new Target[targetCount];
+            }
+            targets = mTargets.toArray(mFrameTargets);
+            mRescheduledTargets.clear();
+        }
+
+        for(int i=0; i<targetCount; i++) {
+            final Target target = targets[i];
+            targets[i] = null;
+
+            boolean keepScheduled;
+            try {
+                keepScheduled = target.onFrame(frameTimeNanos);
+            } catch(Throwable t) {
+                Log.e(TAG, "Error drawing frame!", t);
+                keepScheduled = false;
+            }
+
+            if(!keepScheduled) {
+                synchronized (mTargets) {
+                    // keep it if it was scheduled again during the frame
+                    if(!mRescheduledTargets.remove(target)) {
+                        mTargets.remove(target);
+                    }
+                }
+            }
+        }
+
+        synchronized (mTargets) {
+            if(mTargets.size() > 0) {
+                postFrame();
+            } else {
+                mFramePosted = false;
+            }
+        }
+    }
+}
@@ -7,11 +7,27 @@ import android.view.View;
 /**
  * Created by Nuno Luz on 06-10-2015.
  *
- * A drawing layer on an {@link AnimatedView}.
+ * A drawing layer on an {@link AnimatedView}.<br />
+ * Layers keep track of changes to their output, so that the view only redraws
+ * the area that changed (and nothing at all if no layer changed).
  */
 public interface Layer {
     void draw(View view, Canvas canvas);
 
     Rect getBounds();
     void setBounds(Rect bounds);
+
+    /**
+     * Marks the whole layer as changed, so that it gets redrawn on the next frame.
+     */
+    void invalidate();
+
+    /**
+     * Adds the area that changed since the last call (to this method) to the dirty rectangle,
+     * and resets the changed state of the layer. The caller must redraw that area.
+     *
+     * @param dirty the dirty rectangle (the changed area is added through {@link Rect#union(Rect)})
+     * @return true if the layer changed (even if the changed area is unknown/empty); false otherwise
+     */
+    boolean popDirtyBounds(Rect dirty);
 }
@@ -14,6 +14,10 @@ public abstract class LayerBase implements Layer {
     private Context mContext;
     private float mHalfBoundsWidth, mHalfBoundsHeight;
 
+    // changed state
+    private final Rect mDirtyBounds = new Rect();
+    private boolean mDirty = true;
+
     public LayerBase(Context context) {
         this.mContext = context;
     }
@@ -29,10 +33,40 @@ public abstract class LayerBase implements Layer {
      */
     @Override
     public void setBounds(Rect bounds) {
-        this.mBounds = bounds;
+        synchronized (mDirtyBounds) {
+            // the previous area must also be redrawn
+            if(mBounds != null) {
+                mDirtyBounds.union(mBounds);
+            }
+            this.mBounds = bounds;
+        }
         this.mHalfBoundsHeight = bounds.height() / 2f;
         this.mHalfBoundsWidth = bounds.width() / 2f;
         onMeasure(bounds);
+        invalidate();
+    }
+
+    @Override
+    public void invalidate() {
+        synchronized (mDirtyBounds) {
+            mDirty = true;
+        }
+    }
+
+    @Override
+    public boolean popDirtyBounds(Rect dirty) {
+        synchronized (mDirtyBounds) {
+            if(!mDirty) {
+                return false;
+            }
+            if(mBounds != null) {
+                mDirtyBounds.union(mBounds);
+            }
+            dirty.union(mDirtyBounds);
+            mDirtyBounds.setEmpty();
+            mDirty = false;
+            return true;
+        }
     }
 
     protected void onMeasure(Rect bounds) {
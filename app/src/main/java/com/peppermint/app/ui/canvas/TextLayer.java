@@ -44,6 +44,7 @@ public class TextLayer extends LayerBase implements Layer {
 
     public synchronized void setTextSize(float mTextSize) {
         this.mTextSize = mTextSize;
+        invalidate();
     }
 
     /**
@@ -60,6 +61,7 @@ public class TextLayer extends LayerBase implements Layer {
      */
     public synchronized void setTextSpacing(float mTextSpacing) {
         this.mTextSpacing = mTextSpacing;
+        invalidate();
     }
 
     public String getText() {
@@ -68,5 +70,6 @@ public class TextLayer extends LayerBase implements Layer {
 
     public synchronized void setText(String mText) {
         this.mText = mText;
+        invalidate();
     }
 }
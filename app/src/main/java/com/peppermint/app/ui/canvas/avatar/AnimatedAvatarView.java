@@ -17,7 +17,7 @@ import com.peppermint.app.data.ContactRaw;
 import com.peppermint.app.ui.canvas.AnimatedView;
 import com.peppermint.app.ui.canvas.BitmapLayer;
 import com.peppermint.app.ui.canvas.BitmapSequenceAnimatedLayer;
-import com.peppermint.app.utils.ResourceUtils;
+import com.peppermint.app.utils.PhotoLoader;
 import com.peppermint.app.utils.Utils;
 
 import java.util.ArrayList;
@@ -48,6 +48,8 @@ public class AnimatedAvatarView extends AnimatedView {
 
     private int mHeight = -1, mWidth = -1;
 
+    private Uri mStaticAvatarUri;
+
     public AnimatedAvatarView(Context context) {
         super(context);
         init(null);
@@ -196,28 +198,54 @@ public class AnimatedAvatarView extends AnimatedView {
         mStaticAvatar.setBounds(mFullBounds);
     }
 
-    public synchronized boolean setStaticDrawable(Uri drawableUri) {
+    /**
+     * Loads the static avatar picture asynchronously through the {@link PhotoLoader}.<br />
+     * Any previous request of this view is cancelled (e.g. when rebinding a recycled list item).
+     *
+     * @param drawableUri the picture uri
+     * @param fallbackDrawableRes the drawable shown if unable to load the picture (0 for none)
+     */
+    public synchronized void setStaticDrawable(final Uri drawableUri, final int fallbackDrawableRes) {
         // scale bitmap to avoid black images to show up some times
         int width = getMeasuredWidth();
         int height = getMeasuredHeight();
         final int fixedSize = Utils.dpToPx(getContext(), 50);
-        final Bitmap scaledBitmap = ResourceUtils.getScaledBitmap(getContext(), drawableUri, width > 0 ? width : fixedSize, height > 0 ? height : fixedSize);
-        if(scaledBitmap != null) {
-            final BitmapDrawable bitmapDrawable = new BitmapDrawable(getContext().getResources(), scaledBitmap);
-            mStaticAvatar.setBitmapDrawable(bitmapDrawable);
-        } else {
-            mStaticAvatar.setBitmapDrawable(null);
-        }
-        doDraw();
-        return mStaticAvatar.getBitmapDrawable() != null;
+
+        mStaticAvatarUri = drawableUri;
+        mStaticAvatar.setBitmapDrawable(null);
+        PhotoLoader.getInstance(getContext()).loadPhoto(this, drawableUri, width > 0 ? width : fixedSize, height > 0 ? height : fixedSize, new PhotoLoader.Callback() {
+            @Override
+            public void onPhotoLoaded(Uri uri, Bitmap bitmap) {
+                synchronized (AnimatedAvatarView.this) {
+                    if(!uri.equals(mStaticAvatarUri)) {
+                        return;
+                    }
+                    if(bitmap != null) {
+                        mStaticAvatar.setBitmapDrawable(new BitmapDrawable(getContext().getResources(), bitmap));
+                    } else if(fallbackDrawableRes != 0) {
+                        mStaticAvatar.setBitmapResourceId(fallbackDrawableRes);
+                    }
+                }
+                requestFrame();
+            }
+        });
+        requestFrame();
     }
 
     public synchronized boolean setStaticDrawable(int drawableRes) {
+        cancelStaticDrawableLoad();
         mStaticAvatar.setBitmapResourceId(drawableRes);
-        doDraw();
+        requestFrame();
         return true;
     }
 
+    private void cancelStaticDrawableLoad() {
+        if(mStaticAvatarUri != null) {
+            PhotoLoader.getInstance(getContext()).cancel(this);
+            mStaticAvatarUri = null;
+        }
+    }
+
     public boolean isShowStaticAvatar() {
         return getLayers().get(0).equals(mStaticAvatar);
     }
@@ -227,11 +255,12 @@ public class AnimatedAvatarView extends AnimatedView {
             removeLayers();
             addLayer(mStaticAvatar);
         } else {
+            cancelStaticDrawableLoad();
             mCurrentAvatar = getRandomAnimatedAvatar();
             removeLayers();
             addLayer(mCurrentAvatar);
         }
-        doDraw();
+        requestFrame();
     }
 
     public BitmapSequenceAnimatedLayer getCurrentAvatar() {
@@ -308,6 +308,7 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
     public synchronized void setCornerRadius(float mCornerRadius) {
         this.mCornerRadius = mCornerRadius;
         this.mCornerLength = (float) (mCornerRadius * Math.PI / 2f);    // 1/4 of perimeter
+        invalidate();
     }
 
     public float getCornerLength() {
@@ -320,6 +321,7 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
 
     public synchronized void setProgressWidth(float mProgressWidth) {
         this.mProgressWidth = mProgressWidth;
+        invalidate();
     }
 
     public Paint getProgressPaint() {
@@ -328,6 +330,7 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
 
     public synchronized void setProgressPaint(Paint mProgressPaint) {
         this.mProgressPaint = mProgressPaint;
+        invalidate();
     }
 
     public Paint getEmptyProgressPaint() {
@@ -336,6 +339,7 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
 
     public synchronized void setEmptyProgressPaint(Paint mEmptyProgressPaint) {
         this.mEmptyProgressPaint = mEmptyProgressPaint;
+        invalidate();
     }
 
     public Paint getBackgroundPaint() {
@@ -344,6 +348,7 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
 
     public synchronized void setBackgroundPaint(Paint mBackgroundPaint) {
         this.mBackgroundPaint = mBackgroundPaint;
+        invalidate();
     }
 
     public int getProgressType() {
@@ -352,6 +357,7 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
 
     public synchronized void setProgressType(int mProgressType) {
         this.mProgressType = mProgressType;
+        invalidate();
     }
 
     public Paint getBackgroundPressedPaint() {
@@ -360,6 +366,7 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
 
     public synchronized void setBackgroundPressedPaint(Paint mBackgroundPressedPaint) {
         this.mBackgroundPressedPaint = mBackgroundPressedPaint;
+        invalidate();
     }
 
     public boolean isFirstPartOnly() {
@@ -368,5 +375,6 @@ public class LoadingBoxAnimatedLayer extends AnimatedLayerBase {
 
     public synchronized void setFirstPartOnly(boolean mFirstPartOnly) {
         this.mFirstPartOnly = mFirstPartOnly;
+        invalidate();
     }
 }
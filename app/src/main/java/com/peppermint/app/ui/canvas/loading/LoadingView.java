@@ -185,6 +185,7 @@ public class LoadingView extends AnimatedView {
 
     public synchronized void setProgress(float mProgress) {
         this.mProgress = mProgress % (float) (Math.PI * 2f);
+        requestFrame();
     }
 
     public String getProgressText() {
@@ -193,5 +194,6 @@ public class LoadingView extends AnimatedView {
 
     public synchronized void setProgressText(String mProgressText) {
         this.mProgressText = mProgressText;
+        requestFrame();
     }
 }
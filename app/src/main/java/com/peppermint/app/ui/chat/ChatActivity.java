@@ -108,7 +108,7 @@ public class ChatActivity extends CustomActionBarActivity implements RecipientDa
         mTxtChatVia.setText(recipientVia);
 
         if(recipientPhotoUri != null) {
-            mImgAvatar.setImageDrawable(ResourceUtils.getDrawableFromUri(this, Uri.parse(recipientPhotoUri)));
+            mImgAvatar.setImageUri(Uri.parse(recipientPhotoUri));
         } else {
             mImgAvatar.setImageDrawable(null);
         }
@@ -77,8 +77,10 @@ public class ChatController extends ChatRecordOverlayController implements View.
                         showErrorDialog(messageId);
                     }
                 });
+                mAdapter.setChat(mChat);
                 mListView.setAdapter(mAdapter);
             } else {
+                mAdapter.setChat(mChat);
                 mAdapter.changeCursor(cursor);
             }
         }
@@ -8,17 +8,22 @@ import android.widget.CursorAdapter;
 
 import com.peppermint.app.PlayerServiceManager;
 import com.peppermint.app.cloud.MessagesServiceManager;
+import com.peppermint.app.data.Chat;
+import com.peppermint.app.data.ChatManager;
 import com.peppermint.app.data.DatabaseHelper;
 import com.peppermint.app.data.Message;
 import com.peppermint.app.data.MessageManager;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Created by Nuno Luz on 27/08/2015.
  *
  * ArrayAdapter to show chat messages in a ListView.<br />
+ * Expects a cursor returned by {@link MessageManager#getByChatId(android.database.sqlite.SQLiteDatabase, long)}.
  */
 public class ChatMessageCursorAdapter extends CursorAdapter {
 
@@ -28,6 +33,9 @@ public class ChatMessageCursorAdapter extends CursorAdapter {
     private MessagesServiceManager mMessagesServiceManager;
     private PlayerServiceManager mPlayerServiceManager;
     private MessageView.ExclamationClickListener mExclamationClickListener;
+    private Chat mChat;
+    // other chats whose messages are shown (e.g. chats merged into the main chat)
+    private Map<Long, Chat> mOtherChats = new HashMap<>();
 
     public ChatMessageCursorAdapter(final Context mContext, MessagesServiceManager mMessagesServiceManager, PlayerServiceManager mPlayerServiceManager, Cursor cursor) {
         super(mContext, cursor, 0);
@@ -72,7 +80,32 @@ public class ChatMessageCursorAdapter extends CursorAdapter {
     }
 
     public Message getMessage(Cursor cursor) {
-        return MessageManager.getFromCursor(DatabaseHelper.getInstance(mContext).getReadableDatabase(), cursor);
+        // the cursor already contains all data; no queries while binding views
+        Message message = MessageManager.getFromJoinedCursor(cursor);
+        message.setChatParameter(getChat(message.getChatId()));
+        return message;
+    }
+
+    private Chat getChat(long chatId) {
+        if(mChat != null && mChat.getId() == chatId) {
+            return mChat;
+        }
+
+        Chat chat = mOtherChats.get(chatId);
+        if(chat == null) {
+            chat = ChatManager.getChatById(DatabaseHelper.getInstance(mContext).getReadableDatabase(), chatId);
+            if(chat != null) {
+                mOtherChats.put(chatId, chat);
+            }
+        }
+        return chat;
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        // the chats may have changed as well
+        mOtherChats.clear();
+        return super.swapCursor(newCursor);
     }
 
     public Message getMessage(int position) {
@@ -80,6 +113,15 @@ public class ChatMessageCursorAdapter extends CursorAdapter {
         return getMessage(cursor);
     }
 
+    public Chat getChat() {
+        return mChat;
+    }
+
+    public void setChat(Chat mChat) {
+        this.mChat = mChat;
+        this.mOtherChats.clear();
+    }
+
     public void setExclamationClickListener(MessageView.ExclamationClickListener mExclamationClickListener) {
         this.mExclamationClickListener = mExclamationClickListener;
     }
@@ -231,7 +231,7 @@ public class ChatHeadView extends RoundImageView {
 
     @Override
     public synchronized void onDraw(Canvas canvas) {
-        if(mBitmap == null || mBitmap.isRecycled()) {
+        if(!hasImage()) {
             return;
         }
 
@@ -318,7 +318,7 @@ public class ChatHeadView extends RoundImageView {
             if (!samePhotoUri) {
                 // setup avatar
                 if (newRecipientPhotoUri != null) {
-                    setImageDrawable(ResourceUtils.getDrawableFromUri(getContext(), Uri.parse(newRecipientPhotoUri)));
+                    setImageUri(Uri.parse(newRecipientPhotoUri));
                 } else {
                     setImageDrawable(null);
                 }
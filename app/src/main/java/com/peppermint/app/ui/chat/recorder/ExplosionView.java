@@ -12,7 +12,6 @@ import android.graphics.PorterDuff;
 import android.graphics.Region;
 import android.graphics.SurfaceTexture;
 import android.os.Build;
-import android.os.Process;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.TextureView;
@@ -21,6 +20,7 @@ import android.view.animation.DecelerateInterpolator;
 import android.view.animation.Interpolator;
 
 import com.peppermint.app.tracking.TrackerManager;
+import com.peppermint.app.ui.canvas.FrameScheduler;
 import com.peppermint.app.utils.Utils;
 
 import java.util.ArrayList;
@@ -51,45 +51,29 @@ public class ExplosionView extends TextureView {
     private static final int SLICE_TRANSLATION_VARIABLE_DP = 20;
 
     // other values
+    private static final long FRAME_TOLERANCE_NANOS = 8000000L;
     private static final int DEF_DESIRED_SIZE_DP = 150;
 
     /**
-     * This thread draws each frame of the animation through double buffering.
+     * Draws each frame of the animation through double buffering, when ticked by the {@link FrameScheduler}.
      */
-    private class AnimationThread extends Thread {
-        private boolean mRunning = true;
-
+    private final FrameScheduler.Target mFrameTarget = new FrameScheduler.Target() {
         @Override
-        public void run() {
-            try {
-                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
-            } catch(Throwable t) {
-                TrackerManager.getInstance(getContext()).logException(t);
+        public boolean onFrame(long frameTimeNanos) {
+            if(!mDrawingContinuously) {
+                return false;
             }
 
-            while(mRunning) {
-                doDraw();
-                try {
-                    sleep(mFrameInterval);
-                } catch (InterruptedException e) {
-                    // do nothing here
-                }
+            // frame rate of this view (tolerates half a vsync of jitter)
+            if(mLastFrameTimeNanos > 0 && frameTimeNanos - mLastFrameTimeNanos < (mFrameInterval * 1000000L) - FRAME_TOLERANCE_NANOS) {
+                return true;
             }
-        }
 
-        public boolean isRunning() {
-            return this.mRunning;
-        }
-
-        public void setRunning(boolean running) {
-            synchronized (ExplosionView.this) {
-                this.mRunning = running;
-                if (!running) {
-                    interrupt();
-                }
-            }
+            mLastFrameTimeNanos = frameTimeNanos;
+            doDraw();
+            return mDrawingContinuously;
         }
-    }
+    };
 
     public interface ExplosionListener {
         void onExplosionFinished();
@@ -154,7 +138,8 @@ public class ExplosionView extends TextureView {
     };
 
     private long mFrameInterval = 15;   // ~66 fps
-    private AnimationThread mAnimationThread;
+    private volatile boolean mDrawingContinuously = false;
+    private long mLastFrameTimeNanos = 0;
 
     // view size
     private float mWidth, mHeight;
@@ -383,29 +368,23 @@ public class ExplosionView extends TextureView {
     }
 
     /**
-     * Start the thread that draws all layers at the specified frame rate.
+     * Start drawing at the specified frame rate, ticked by the shared {@link FrameScheduler}.
      */
     public void startDrawingThread() {
-        if(mAnimationThread != null && mAnimationThread.isRunning()) {
-            return;
-        }
-
-        mAnimationThread = new AnimationThread();
-        mAnimationThread.start();
+        mDrawingContinuously = true;
+        FrameScheduler.getInstance().schedule(mFrameTarget);
     }
 
     /**
-     * Stop the thread that draws all layers.
+     * Stop drawing.
      */
     public void stopDrawingThread() {
-        if(mAnimationThread != null) {
-            mAnimationThread.setRunning(false);
-            mAnimationThread = null;
-        }
+        mDrawingContinuously = false;
+        FrameScheduler.getInstance().unschedule(mFrameTarget);
     }
 
     public boolean isDrawingThreadRunning() {
-        return mAnimationThread != null && mAnimationThread.isRunning();
+        return mDrawingContinuously;
     }
 
     public float getLocalHeight() {
@@ -145,13 +145,11 @@ public class FeedbackActivity extends CustomActionBarActivity implements View.On
 
         if(!mChatRecordOverlayController.triggerRecording(mRecordView, tappedChat)) {
             final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(this);
-            databaseHelper.lock();
             try {
                 ChatManager.delete(databaseHelper.getWritableDatabase(), tappedChat.getId());
             } catch (SQLException e) {
                 TrackerManager.getInstance(this.getApplicationContext()).logException(e);
             }
-            databaseHelper.unlock();
         }
 
         return true;
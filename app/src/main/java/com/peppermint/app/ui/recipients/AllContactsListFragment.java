@@ -11,6 +11,7 @@ import android.os.Handler;
 import android.provider.ContactsContract;
 import android.support.v4.content.ContextCompat;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.Toast;
 
@@ -39,6 +40,13 @@ public class AllContactsListFragment extends ContactListFragment {
 
     private static final String SAVED_DIALOG_STATE_KEY = TAG + "_AddEmailDialogState";
 
+    // rows filtered before showing the list (enough for the first screen)
+    // the rest is filtered in chunks on the shown cursor, as the list is scrolled towards its end
+    private static final int FIRST_FILTER_CHUNK_ROWS = 100;
+    private static final int FILTER_CHUNK_ROWS = 100;
+    // filter the next chunk when the last visible row is this close to the last filtered row
+    private static final int FILTER_AHEAD_ROWS = 20;
+
     private static final List<String> MIMETYPES = new ArrayList<>();
     static {
         MIMETYPES.add(ContactData.EMAIL_MIMETYPE);
@@ -65,6 +73,37 @@ public class AllContactsListFragment extends ContactListFragment {
     private ContactCursorAdapter mAdapter;
     private PeppermintFilteredCursor mCursor;
 
+    // filters the next chunk of the shown cursor (posted, so that it never runs while the list is binding)
+    private final Handler mFilterHandler = new Handler();
+    private final Runnable mFilterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mCursor != null && !mCursor.isClosed() && mAdapter != null && mCursor == mAdapter.getCursor()) {
+                // notifies the adapter if more rows were accepted (which triggers onScroll again)
+                final int prevCount = mCursor.getCount();
+                if(!mCursor.filter(FILTER_CHUNK_ROWS) && mCursor.getCount() == prevCount) {
+                    mFilterHandler.post(this);
+                }
+            }
+        }
+    };
+
+    private final AbsListView.OnScrollListener mScrollListener = new AbsListView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            /* nothing to do */
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+            if(mCursor != null && !mCursor.isClosed() && !mCursor.isFiltered() &&
+                    firstVisibleItem + visibleItemCount + FILTER_AHEAD_ROWS >= mCursor.getCount()) {
+                mFilterHandler.removeCallbacks(mFilterRunnable);
+                mFilterHandler.post(mFilterRunnable);
+            }
+        }
+    };
+
     @Override
     protected Object onAsyncRefresh(Context context, String searchName, String searchVia) {
         if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS) == PackageManager.PERMISSION_GRANTED) {
@@ -74,7 +113,7 @@ public class AllContactsListFragment extends ContactListFragment {
                 cursor.close();
                 cursor = (FilteredCursor) ContactManager.get(context, null, null, MIMETYPES, searchVia);
             }
-            cursor.filter();
+            cursor.filter(FIRST_FILTER_CHUNK_ROWS);
             return cursor;
         }
 
@@ -91,6 +130,7 @@ public class AllContactsListFragment extends ContactListFragment {
 
     @Override
     protected void onAsyncRefreshFinished(Context context, Object data) {
+        mFilterHandler.removeCallbacks(mFilterRunnable);
         mCursor = (PeppermintFilteredCursor) data;
 
         if (ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS) == PackageManager.PERMISSION_GRANTED) {
@@ -131,6 +171,7 @@ public class AllContactsListFragment extends ContactListFragment {
 
         mAdapter = new ContactCursorAdapter(mActivity, null);
         getListView().setAdapter(mAdapter);
+        getListView().setOnScrollListener(mScrollListener);
     }
 
     @Override
@@ -180,6 +221,7 @@ public class AllContactsListFragment extends ContactListFragment {
         }
 
         // close adapter cursors
+        mFilterHandler.removeCallbacks(mFilterRunnable);
         mCursor = null;
         mAdapter.changeCursor(null);
         mAdapter = null;
@@ -222,13 +264,11 @@ public class AllContactsListFragment extends ContactListFragment {
 
         if(!mChatRecordOverlayController.triggerRecording(view, tappedChat)) {
             final DatabaseHelper databaseHelper = DatabaseHelper.getInstance(mActivity);
-            databaseHelper.lock();
             try {
                 ChatManager.delete(databaseHelper.getWritableDatabase(), tappedChat.getId());
             } catch (SQLException e) {
                 TrackerManager.getInstance(mActivity.getApplicationContext()).logException(e);
             }
-            databaseHelper.unlock();
         }
 
         return true;
@@ -63,7 +63,7 @@ public class ContactCursorAdapter extends CursorAdapter {
         TextView txtVia = (TextView) v.findViewById(R.id.txtVia);
 
         if(rawContact != null && rawContact.getPhotoUri() != null) {
-            imgPhoto.setStaticDrawable(Uri.parse(rawContact.getPhotoUri()));
+            imgPhoto.setStaticDrawable(Uri.parse(rawContact.getPhotoUri()), 0);
             imgPhoto.setShowStaticAvatar(true);
         } else {
             imgPhoto.setShowStaticAvatar(false);
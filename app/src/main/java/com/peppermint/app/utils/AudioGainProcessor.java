@@ -0,0 +1,153 @@
+package com.peppermint.app.utils;
+
+/**
+ * Per-frame DSP stage of the {@link ExtendedAudioRecorder}.<br />
+ * Computes the RMS and peak amplitude of each frame of 16 bit PCM samples (in a single pass),
+ * applies a progressive gain (to increase the volume of devices with low microphone gain)
+ * and writes the resulting little-endian bytes straight into the encoder buffer.<br />
+ * <br />
+ * The gain follows an attack/release envelope: it drops quickly when the signal gets louder
+ * (avoiding clipping) and recovers slowly when it gets quieter (avoiding pumping noise).
+ * A light low-pass filter smooths discontinuities between samples.<br />
+ * <br />
+ * All state is preallocated, so {@link #process(short[], int, byte[])} performs no allocations.
+ * <strong>Not thread-safe. Use one instance per recorder thread.</strong>
+ */
+public class AudioGainProcessor {
+
+    private static final float DEFAULT_MAX_GAIN = 5f;
+    private static final float DEFAULT_TARGET_PEAK = Short.MAX_VALUE / 2f;
+    private static final float DEFAULT_ATTACK_MS = 5f;
+    private static final float DEFAULT_RELEASE_MS = 300f;
+    private static final float SMOOTHING_FACTOR = .25f;
+
+    private final float mMaxGain;
+    private final float mTargetPeak;
+    private final float mAttackCoefficient;
+    private final float mReleaseCoefficient;
+
+    // state kept between frames
+    private float mGain;
+    private float mLastSample;
+
+    // results of the last processed frame
+    private int mRms;
+    private int mPeak;
+
+    public AudioGainProcessor(int sampleRate) {
+        this(sampleRate, DEFAULT_MAX_GAIN, DEFAULT_TARGET_PEAK, DEFAULT_ATTACK_MS, DEFAULT_RELEASE_MS);
+    }
+
+    /**
+     * @param sampleRate the sample rate of the audio
+     * @param maxGain the maximum gain applied to the audio (min. gain is always 1)
+     * @param targetPeak the peak amplitude that the gain tries to reach
+     * @param attackMs the time it takes for the gain to (mostly) adapt to a louder signal
+     * @param releaseMs the time it takes for the gain to (mostly) adapt to a quieter signal
+     */
+    public AudioGainProcessor(int sampleRate, float maxGain, float targetPeak, float attackMs, float releaseMs) {
+        this.mMaxGain = maxGain;
+        this.mTargetPeak = targetPeak;
+        this.mAttackCoefficient = getEnvelopeCoefficient(sampleRate, attackMs);
+        this.mReleaseCoefficient = getEnvelopeCoefficient(sampleRate, releaseMs);
+        reset();
+    }
+
+    private static float getEnvelopeCoefficient(int sampleRate, float timeMs) {
+        final double samples = sampleRate * (timeMs / 1000d);
+        return samples <= 1 ? 1f : (float) (1d - Math.exp(-1d / samples));
+    }
+
+    /**
+     * Resets the state kept between frames. Must be invoked before processing a new recording.
+     */
+    public void reset() {
+        mGain = 1f;
+        mLastSample = 0;
+        mRms = 0;
+        mPeak = 0;
+    }
+
+    /**
+     * Processes a frame of samples.
+     *
+     * @param samples the PCM samples (not modified)
+     * @param length the amount of samples in the frame; if smaller than the output buffer, the rest is filled with silence
+     * @param output the output buffer, which receives the processed samples as 16 bit little-endian PCM
+     */
+    public void process(short[] samples, int length, byte[] output) {
+        if(length < 0) {
+            length = 0;
+        }
+        if(length * 2 > output.length) {
+            throw new IllegalArgumentException("Output buffer too small for " + length + " samples!");
+        }
+
+        // RMS and peak in a single pass
+        long sumSquares = 0;
+        int peak = 0;
+        for(int i=0; i<length; i++) {
+            final int sample = samples[i];
+            sumSquares += sample * sample;
+            final int abs = sample < 0 ? -sample : sample;
+            if(abs > peak) {
+                peak = abs;
+            }
+        }
+        mRms = length > 0 ? (int) Math.sqrt((double) sumSquares / length) : 0;
+        mPeak = peak;
+
+        float targetGain = peak > 0 ? mTargetPeak / peak : mMaxGain;
+        if(targetGain < 1f) {
+            targetGain = 1f;
+        } else if(targetGain > mMaxGain) {
+            targetGain = mMaxGain;
+        }
+        final float coefficient = targetGain < mGain ? mAttackCoefficient : mReleaseCoefficient;
+
+        float gain = mGain;
+        float lastSample = mLastSample;
+        for(int i=0, j=0; i<length; i++, j+=2) {
+            gain += coefficient * (targetGain - gain);
+
+            float value = lastSample + SMOOTHING_FACTOR * ((samples[i] * gain) - lastSample);
+            if(value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if(value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            lastSample = value;
+
+            final int outSample = (int) value;
+            output[j] = (byte) outSample;
+            output[j + 1] = (byte) (outSample >> 8);
+        }
+        mGain = gain;
+        mLastSample = lastSample;
+
+        for(int j=length * 2; j<output.length; j++) {
+            output[j] = 0;
+        }
+    }
+
+    /**
+     * @return the RMS amplitude of the last processed frame (before gain)
+     */
+    public int getRms() {
+        return mRms;
+    }
+
+    /**
+     * @return the peak amplitude of the last processed frame (before gain)
+     */
+    public int getPeak() {
+        return mPeak;
+    }
+
+    /**
+     * @return the current gain
+     */
+    public float getGain() {
+        return mGain;
+    }
+}
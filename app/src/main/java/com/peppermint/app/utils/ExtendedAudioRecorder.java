@@ -7,19 +7,11 @@ import android.media.MediaRecorder;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
-import com.coremedia.iso.boxes.Container;
-import com.googlecode.mp4parser.DataSource;
-import com.googlecode.mp4parser.FileDataSourceImpl;
-import com.googlecode.mp4parser.authoring.Movie;
-import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
-import com.googlecode.mp4parser.authoring.tracks.AACTrackImpl;
 import com.peppermint.app.tracking.TrackerManager;
 import com.todoroo.aacenc.AACEncoder;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
@@ -27,7 +19,8 @@ import java.util.Calendar;
  * Created by Nuno Luz on 14-09-2015.
  *
  * Extended {@link MediaRecorder} that allows to pause/resume audio recordings ({@link MediaRecorder} only allows start/stop).<br />
- * Uses an external library in C through NDK + the isoparser/mp4parser library to merge and encode the final mp4/aac file.<br />
+ * Uses an external library in C through NDK to encode the audio, and appends each encoded AAC frame to the final mp4/aac
+ * file through a {@link Mp4AacMuxer} while recording (so stopping only has to write the sample tables).<br />
  * It also employs a progressive gain algorithm to increase the recorded sound volume. This increases the volume for devices that
  * have low gain values for their microphones.
  */
@@ -40,7 +33,11 @@ public class ExtendedAudioRecorder {
         void onResume(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp);
         void onStop(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp);
         void onError(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp, Throwable t);
-        void onRecorderData(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp, byte[] bytes);
+        /**
+         * Invoked for each recorded PCM frame. The frame is only valid during the call, unless
+         * the listener {@link PcmFrameRingBuffer.Frame#retain()}s it (and releases it later).
+         */
+        void onRecorderData(String filePath, long durationInMillis, float sizeKbs, int amplitude, String startTimestamp, PcmFrameRingBuffer.Frame frame);
     }
 
     private static final String TAG = ExtendedAudioRecorder.class.getSimpleName();
@@ -49,15 +46,17 @@ public class ExtendedAudioRecorder {
     private static final int SAMPLE_SIZE = 1024;
     private static final int RECORDER_CHANNELS = AudioFormat.CHANNEL_IN_MONO;
     private static final int RECORDER_AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-    private static final float MAX_GAIN = 5f;
     private static final int MAX_EMPTY_ITERATIONS = 10;
+    // PCM frames shared with listeners, allocated upfront (~2 secs of 16kHz audio)
+    // the ring grows on demand up to the frames that listeners may hold (see setMaxListenerFrames)
+    private static final int FRAME_BUFFER_COUNT = 32;
+    private static final int CHANNELS = 1;
 
     // current recording context variables
     private static final String DEFAULT_FILE_PREFIX = "Record";
     private String mFilePrefix = DEFAULT_FILE_PREFIX;
 
     private String mFilePath;           // final AAC file with encoded audio
-    private String mTempFilePath;       // temporary PCM file with raw audio
     private long mFullDuration = 0;
     private float mFullSize = 0;
     private int mAmplitude = 0;
@@ -68,6 +67,17 @@ public class ExtendedAudioRecorder {
 
     // native AAC encoder
     private AACEncoder mEncoder = new AACEncoder();
+    private final byte[] mEncodedData = new byte[SAMPLE_SIZE * CHANNELS * 2 * 2];
+
+    // incremental mp4 muxer, kept open while paused
+    private Mp4AacMuxer mMuxer;
+
+    // gain/amplitude DSP stage
+    private AudioGainProcessor mGainProcessor;
+    private int mGainProcessorSampleRate;
+
+    // pooled PCM frames handed to the listener
+    private final PcmFrameRingBuffer mFrameBuffer = new PcmFrameRingBuffer(FRAME_BUFFER_COUNT, FRAME_BUFFER_COUNT, SAMPLE_SIZE * 2);
 
     // state related
     private boolean mRecording = false;
@@ -83,11 +93,17 @@ public class ExtendedAudioRecorder {
         @Override
         public void run() {
             Throwable error = null;
-            try {
-                encodeFile();
-            } catch (Throwable t) {
-                error = t;
-                Log.e(TAG, t.getMessage(), t);
+            if(mDiscard) {
+                if (!discardAll()) {
+                    Log.w(TAG, "Unable to discard all created audio files!");
+                }
+            } else {
+                try {
+                    finishFile();
+                } catch (Throwable t) {
+                    error = t;
+                    Log.e(TAG, t.getMessage(), t);
+                }
             }
 
             // thread is finishing...
@@ -168,9 +184,9 @@ public class ExtendedAudioRecorder {
                         Log.w(TAG, "Unable to discard all created audio files!");
                     }
                 } else if (!mPaused) {
-                    // if the recording was stopped/finished, encode the PCM file to AAC
+                    // if the recording was stopped/finished, write the sample tables to the file
                     try {
-                        encodeFile();
+                        finishFile();
                     } catch (Throwable t) {
                         error = t;
                         Log.e(TAG, t.getMessage(), t);
@@ -235,13 +251,14 @@ public class ExtendedAudioRecorder {
             Calendar now = Calendar.getInstance();
             mFilePath = directory.getAbsolutePath() + "/" + mFilePrefix + "_" +
                     DATETIME_FORMAT.format(now.getTime()) + ".m4a";
-            mTempFilePath = directory.getAbsolutePath() + "/" + mFilePrefix + "_" +
-                    DATETIME_FORMAT.format(now.getTime()) + ".aac";
             mPaused = false;
             mFullDuration = 0;
             mFullSize = 0;
             mAmplitude = 0;
             mDiscard = false;
+            if(mGainProcessor != null) {
+                mGainProcessor.reset();
+            }
             mMaxDuration = maxDurationMillis;
 
             startRecording(false);
@@ -279,70 +296,50 @@ public class ExtendedAudioRecorder {
         }
     }
 
-    private boolean discardTemp() {
-        if(mTempFilePath != null) {
-            File file = new File(mTempFilePath);
-            if(file.exists()) {
-                return file.delete();
-            }
-        }
-        return false;
-    }
-
     private boolean discardAll() {
-        boolean tmp = discardTemp();
+        if(mMuxer != null) {
+            mMuxer.close();
+            mMuxer = null;
+        }
         if(mFilePath != null) {
             File file = new File(mFilePath);
             if(file.exists()) {
-                tmp = file.delete() && tmp;
+                return file.delete();
             }
         }
-        return tmp;
+        return true;
     }
 
-    private double[] getBufferData(short[] data, int indexFrom, int length) {
-        double[] result = new double[3];    // 0 mean amplitude; 1 max amplitude abs
-        if(length <= 0) {
-            return result;
-        }
-
-        double sum = 0, maxAbs = 0;
-        for(int i=indexFrom; i<indexFrom + length; i++) {
-            sum += data[i] * data[i];
-            double abs = Math.abs(data[i]);
-            if(abs > maxAbs) {
-                maxAbs = abs;
-            }
-        }
-
-        result[0] = (int) Math.sqrt(sum/(double)length);
-        result[1] = maxAbs;
-        result[2] = ((float) Short.MAX_VALUE / 2f) / (float) maxAbs;
-
-        if (result[2] < 1) {
-            result[2] = 1;
+    private void finishFile() throws IOException {
+        if(mMuxer == null) {
+            throw new IOException("No audio was recorded to " + mFilePath);
         }
-        if (result[2] > MAX_GAIN) {
-            result[2] = MAX_GAIN;
+        try {
+            mMuxer.finish();
+        } finally {
+            mMuxer = null;
         }
-
-        return result;
     }
 
     private void writeAudioDataToFile(AudioRecord recorder, int sampleRate) throws IOException {
-        // check if the output file exists
-        File file = new File(mTempFilePath);
-        if(!file.exists()) {
-            file.createNewFile();
+        // create the output file (on resume, keep appending to it)
+        if(mMuxer == null) {
+            mMuxer = new Mp4AacMuxer(new File(mFilePath), sampleRate, CHANNELS);
+        } else if(mMuxer.getSampleRate() != sampleRate) {
+            throw new IOException("Sample rate changed from " + mMuxer.getSampleRate() + " to " + sampleRate + " while paused");
         }
 
         // initialize native AAC encoder
         float bitrate = 16 * sampleRate;
-        short dataOld = 0;
-        mEncoder.init((int) bitrate, 1, sampleRate, 16, mTempFilePath);
+        mEncoder.initRaw((int) bitrate, CHANNELS, sampleRate, 16);
+
+        // gain state is kept between recording resumes
+        if(mGainProcessor == null || mGainProcessorSampleRate != sampleRate) {
+            mGainProcessor = new AudioGainProcessor(sampleRate);
+            mGainProcessorSampleRate = sampleRate;
+        }
 
         short sData[] = new short[SAMPLE_SIZE];
-        byte bData[] = new byte[SAMPLE_SIZE * 2];
 
         // bo code to ignore the first 350ms to avoid noises and button sounds
         final int ignoreTimeMs = 350;
@@ -363,31 +360,24 @@ public class ExtendedAudioRecorder {
         while (mRecording && !(totalRead <= 0 && emptyIts >= MAX_EMPTY_ITERATIONS) && !(totalMax <= 0 && emptyIts >= MAX_EMPTY_ITERATIONS)) {
             // gets the voice output from microphone to short format
             int numRead = recorder.read(sData, 0, SAMPLE_SIZE);
-            double[] bufferData = getBufferData(sData, 0, SAMPLE_SIZE);
-            totalMax += bufferData[1];
-            totalRead += numRead;
 
-            mAmplitude = (int) bufferData[0];
-            float gain = (float) bufferData[2];
+            // apply gain and write the PCM bytes straight into the pooled frame
+            final PcmFrameRingBuffer.Frame frame = mFrameBuffer.acquire();
+            final byte[] bData = frame.getData();
+            mGainProcessor.process(sData, numRead, bData);
 
-            //Log.d(TAG, "Amplitude = " + mAmplitude + "; Max = " + maxAbs + "; Gain = " + gainNew + "; NumRead = " + numRead);
-            for (int i = 0; i < numRead; i++) {
-                sData[i] = (short) Math.min((int) (sData[i] * gain), (int) Short.MAX_VALUE);
-
-                // filter discontinuity if new gain is lower than the old one
-                float prevData = i > 0 ? sData[i - 1] : (dataOld != 1 ? dataOld : sData[i]);
-                sData[i] = (short) (prevData + (.25f * (sData[i] - prevData)));
-            }
+            final int peak = mGainProcessor.getPeak();
+            totalMax += peak;
+            totalRead += numRead;
+            mAmplitude = mGainProcessor.getRms();
 
-            if(numRead > 0 && bufferData[1] > 0) {
-                dataOld = sData[numRead - 1];
-            } else {
+            if(numRead <= 0 || peak <= 0) {
                 emptyIts++;
             }
 
-            // encode in AAC using the native encoder
-            Utils.short2Byte(sData, bData);
-            mEncoder.encode(bData);
+            // encode in AAC using the native encoder and append the access unit to the file
+            final int encodedLength = mEncoder.encodeFrame(bData, mEncodedData);
+            mMuxer.writeSample(mEncodedData, encodedLength);
 
             // calculate duration
             long cicleNow = android.os.SystemClock.uptimeMillis();
@@ -395,7 +385,11 @@ public class ExtendedAudioRecorder {
             mFullSize = bitrate / 8f * (mFullDuration / 1000f);
             now = cicleNow;
 
-            mListener.onRecorderData(mFilePath, mFullDuration, mFullSize, mAmplitude, mStartTimestamp, bData);
+            try {
+                mListener.onRecorderData(mFilePath, mFullDuration, mFullSize, mAmplitude, mStartTimestamp, frame);
+            } finally {
+                frame.release();
+            }
 
             // exit if max duration has been exceeded
             if(mMaxDuration > 0 && mFullDuration > mMaxDuration) {
@@ -404,7 +398,7 @@ public class ExtendedAudioRecorder {
             }
         }
 
-        // close the output file stream present in the native encoder
+        // release the native encoder (the muxer is kept open until the recording is stopped)
         mEncoder.uninit();
 
         // either no data is received, or the data received contains no sound (not even noise)
@@ -439,26 +433,6 @@ public class ExtendedAudioRecorder {
         mRecording = false;
     }
 
-    // http://stackoverflow.com/questions/11291942/audiorecord-with-gain-adjustment-not-working-on-samsung-device
-    // https://github.com/timsu/android-aac-enc
-    // https://stackoverflow.com/questions/23129561/how-to-concat-mp4-files/23144266#23144266
-    // https://github.com/sannies/mp4parser
-    private void encodeFile() throws Exception {
-        Movie movie = new Movie();
-
-        DataSource dataSource = new FileDataSourceImpl(mTempFilePath);
-        AACTrackImpl aacTrack = new AACTrackImpl(dataSource);
-        movie.addTrack(aacTrack);
-
-        Container mp4file = new DefaultMp4Builder().build(movie);
-        FileChannel fc = new FileOutputStream(new File(mFilePath)).getChannel();
-        mp4file.writeContainer(fc);
-        fc.close();
-        dataSource.close();
-
-        discardTemp();
-    }
-
     public boolean isRecording() {
         return mRecording;
     }
@@ -495,6 +469,17 @@ public class ExtendedAudioRecorder {
         return mListener;
     }
 
+    /**
+     * Sets the max. amount of PCM frames that the listener may hold at once (e.g. the sum of the
+     * queue limits of its consumers), so that the frame ring never has to allocate a temporary
+     * frame for each chunk of audio while a consumer is behind.
+     *
+     * @param maxListenerFrames the max. amount of frames
+     */
+    public void setMaxListenerFrames(int maxListenerFrames) {
+        mFrameBuffer.setMaxFrameCount(Math.max(FRAME_BUFFER_COUNT, maxListenerFrames + 1));
+    }
+
     public void setListener(Listener mListener) {
         this.mListener = mListener;
     }
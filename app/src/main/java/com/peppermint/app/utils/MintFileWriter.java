@@ -0,0 +1,255 @@
+package com.peppermint.app.utils;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the .mint file of a recording (the raw PCM audio used for speech recognition) on a
+ * dedicated thread, so that storage stalls never delay the recorder thread.<br />
+ * <br />
+ * Frames are {@link PcmFrameRingBuffer.Frame#retain()}ed and handed over through a bounded
+ * queue, so {@link #write(PcmFrameRingBuffer.Frame)} is a constant-time, non-blocking enqueue.
+ * The writer thread copies queued frames into a direct buffer and writes them through a
+ * {@link FileChannel} in large chunks.<br />
+ * <br />
+ * The file is written to a temporary file and only renamed to its final path by {@link #close()}
+ * once all audio has been written, so readers never see an incomplete .mint file. If any frame
+ * was dropped, the file is discarded, since audio with gaps produces wrong transcriptions.<br />
+ * <strong>The format is: sample rate (int) + language code length (int) + language code (UTF-8) + 16 bit PCM samples.</strong>
+ */
+public class MintFileWriter {
+
+    private static final String TAG = MintFileWriter.class.getSimpleName();
+
+    public static final String EXTENSION = ".mint";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    // about one minute of 16KHz audio, in 2KB frames
+    private static final int MAX_QUEUED_FRAMES = 960;
+    /** Max. amount of frames held at once (queued plus the ones being written). **/
+    public static final int MAX_HELD_FRAMES = MAX_QUEUED_FRAMES * 2;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private final File mFile, mTempFile;
+    private final BlockingQueue<PcmFrameRingBuffer.Frame> mQueue = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+    private FileOutputStream mOutputStream;
+    private FileChannel mChannel;
+    private Thread mThread;
+
+    private volatile boolean mClosed = false;
+    private volatile IOException mError;
+    private int mDroppedFrameCount = 0;
+    private long mWrittenBytes = 0;
+
+    private final Runnable mWriterRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final List<PcmFrameRingBuffer.Frame> frames = new ArrayList<>(MAX_QUEUED_FRAMES);
+            try {
+                while(!mClosed || mQueue.size() > 0) {
+                    final PcmFrameRingBuffer.Frame first = mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if(first == null) {
+                        continue;
+                    }
+
+                    // coalesce everything that is queued into as few writes as possible
+                    frames.add(first);
+                    mQueue.drainTo(frames);
+                    try {
+                        for(int i=0; i<frames.size(); i++) {
+                            final byte[] data = frames.get(i).getData();
+                            if(mBuffer.remaining() < data.length) {
+                                flushBuffer();
+                            }
+                            mBuffer.put(data);
+                        }
+                    } finally {
+                        for(int i=0; i<frames.size(); i++) {
+                            frames.get(i).release();
+                        }
+                        frames.clear();
+                    }
+
+                    if(mQueue.size() <= 0 && mBuffer.position() >= WRITE_BUFFER_SIZE / 2) {
+                        flushBuffer();
+                    }
+                }
+                flushBuffer();
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing " + mTempFile, e);
+                mError = e;
+            } catch (InterruptedException e) {
+                mError = new IOException("Interrupted while writing " + mTempFile);
+            }
+
+            // return all pending frames to the recorder
+            PcmFrameRingBuffer.Frame frame;
+            while((frame = mQueue.poll()) != null) {
+                frame.release();
+            }
+        }
+    };
+
+    /**
+     * @param audioFilePath the path of the recorded audio file (the .mint extension is appended)
+     */
+    public MintFileWriter(String audioFilePath) {
+        this.mFile = new File(audioFilePath + EXTENSION);
+        this.mTempFile = new File(audioFilePath + EXTENSION + TEMP_EXTENSION);
+    }
+
+    /**
+     * Writes the header and starts the writer thread.
+     *
+     * @param sampleRate the sample rate of the audio
+     * @param languageCode the transcription language code
+     * @throws IOException if unable to create the file
+     */
+    public void start(int sampleRate, String languageCode) throws IOException {
+        if(mThread != null) {
+            throw new IllegalStateException("Writer already started!");
+        }
+
+        deleteTempFiles(mTempFile.getParentFile());
+
+        final byte[] language = languageCode.getBytes("UTF-8");
+        mOutputStream = new FileOutputStream(mTempFile);
+        mChannel = mOutputStream.getChannel();
+
+        // the header is written as before: the language code length is the amount of chars
+        mBuffer.putInt(sampleRate);
+        mBuffer.putInt(languageCode.length());
+        mBuffer.put(language);
+
+        mThread = new Thread(mWriterRunnable, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Deletes temporary files left behind by writers that never finished (e.g. if the app crashed).
+     */
+    private static void deleteTempFiles(File directory) {
+        final File[] tempFiles = directory == null ? null : directory.listFiles();
+        if(tempFiles == null) {
+            return;
+        }
+
+        for(File tempFile : tempFiles) {
+            if(tempFile.getName().endsWith(EXTENSION + TEMP_EXTENSION) && !tempFile.delete()) {
+                Log.w(TAG, "Unable to delete " + tempFile);
+            }
+        }
+    }
+
+    /**
+     * Queues the frame to be written. The frame is retained until it is written.<br />
+     * <strong>Never blocks.</strong> If the writer is falling behind, the frame is dropped.
+     *
+     * @param frame the PCM audio frame
+     * @return true if the frame was queued; false if it was dropped
+     */
+    public boolean write(PcmFrameRingBuffer.Frame frame) {
+        if(mThread == null || mClosed || mError != null) {
+            return false;
+        }
+
+        frame.retain();
+        if(mQueue.offer(frame)) {
+            return true;
+        }
+
+        frame.release();
+        mDroppedFrameCount++;
+        return false;
+    }
+
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        while(mBuffer.hasRemaining()) {
+            mWrittenBytes += mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * Writes all queued frames, waiting for the writer thread to finish, and moves the file to its final path.
+     *
+     * @throws IOException if unable to write the file or if frames were dropped (the file is discarded)
+     */
+    public void close() throws IOException {
+        if(mThread == null || mClosed) {
+            return;
+        }
+
+        mClosed = true;
+        boolean interrupted = false;
+        while(mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            mChannel.close();
+            mOutputStream.close();
+        } catch (IOException e) {
+            if(mError == null) {
+                mError = e;
+            }
+        }
+
+        if(mError == null && mDroppedFrameCount > 0) {
+            mError = new IOException("Dropped " + mDroppedFrameCount + " frames while writing " + mTempFile);
+        }
+
+        if(mError == null && !mTempFile.renameTo(mFile)) {
+            mError = new IOException("Unable to rename " + mTempFile + " to " + mFile);
+        }
+
+        if(mError != null) {
+            if(!mTempFile.delete()) {
+                Log.w(TAG, "Unable to delete " + mTempFile);
+            }
+            throw mError;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the amount of frames dropped because the writer was falling behind
+     */
+    public int getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * @return the amount of bytes written so far (including the header)
+     */
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+}
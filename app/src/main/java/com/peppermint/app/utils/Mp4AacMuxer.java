@@ -0,0 +1,400 @@
+package com.peppermint.app.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Incremental MP4 (M4A) muxer for a single AAC-LC audio track.<br />
+ * Raw AAC access units are appended to the <strong>mdat</strong> box of the final file while
+ * recording, and only their sizes are kept in memory. {@link #finish()} writes the
+ * <strong>moov</strong> box from these sample tables at the end of the file, so finishing
+ * a recording does not depend on the amount of audio already written, and no temporary
+ * file (nor a second pass through the audio) is required.<br />
+ * <br />
+ * The file is not playable until {@link #finish()} is invoked.
+ * <strong>Not thread-safe.</strong>
+ */
+public class Mp4AacMuxer {
+
+    public static final int SAMPLES_PER_ACCESS_UNIT = 1024;
+
+    private static final int[] SAMPLE_RATES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    private static final int AUDIO_OBJECT_TYPE_AAC_LC = 2;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int INITIAL_SAMPLE_CAPACITY = 1024;
+
+    // fixed part of the moov box (everything except the sample size table)
+    private static final int MOOV_FIXED_SIZE = 1024;
+
+    private static final int[] MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private final File mFile;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mSampleRateIndex;
+
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private long mMdatOffset;
+    private ByteBuffer mSampleBuffer;
+
+    // sample table
+    private int[] mSampleSizes = new int[INITIAL_SAMPLE_CAPACITY];
+    private int mSampleCount = 0;
+    private long mDataSize = 0;
+    private int mMaxSampleSize = 0;
+
+    /**
+     * Creates the file and writes its header.
+     *
+     * @param file the output file (truncated if it exists)
+     * @param sampleRate the sample rate of the encoded audio
+     * @param channels the number of channels of the encoded audio
+     * @throws IOException if unable to write the file
+     */
+    public Mp4AacMuxer(File file, int sampleRate, int channels) throws IOException {
+        int sampleRateIndex = -1;
+        for(int i=0; i<SAMPLE_RATES.length && sampleRateIndex < 0; i++) {
+            if(SAMPLE_RATES[i] == sampleRate) {
+                sampleRateIndex = i;
+            }
+        }
+        if(sampleRateIndex < 0) {
+            throw new IllegalArgumentException("Unsupported AAC sample rate " + sampleRate);
+        }
+
+        this.mFile = file;
+        this.mSampleRate = sampleRate;
+        this.mChannels = channels;
+        this.mSampleRateIndex = sampleRateIndex;
+
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+
+        final ByteBuffer header = ByteBuffer.allocate(64);
+        // ftyp
+        int start = startBox(header, "ftyp");
+        putType(header, "M4A ");
+        header.putInt(0);
+        putType(header, "M4A ");
+        putType(header, "mp42");
+        putType(header, "isom");
+        endBox(header, start);
+        // mdat (size is written by finish)
+        header.putInt(0);
+        putType(header, "mdat");
+        header.flip();
+        writeFully(header);
+
+        mMdatOffset = mChannel.position() - 8;
+    }
+
+    /**
+     * Appends an encoded access unit to the file.
+     *
+     * @param data the buffer with the access unit
+     * @param length the size of the access unit
+     * @throws IOException if unable to write the file
+     */
+    public void writeSample(byte[] data, int length) throws IOException {
+        if(mChannel == null) {
+            throw new IllegalStateException("Muxer already finished!");
+        }
+        if(length <= 0) {
+            return;
+        }
+
+        // the buffer wraps the caller's array, which is usually reused for every access unit
+        if(mSampleBuffer == null || mSampleBuffer.array() != data) {
+            mSampleBuffer = ByteBuffer.wrap(data);
+        }
+        mSampleBuffer.clear();
+        mSampleBuffer.limit(length);
+        writeFully(mSampleBuffer);
+
+        if(mSampleCount >= mSampleSizes.length) {
+            final int[] sampleSizes = new int[mSampleSizes.length * 2];
+            System.arraycopy(mSampleSizes, 0, sampleSizes, 0, mSampleCount);
+            mSampleSizes = sampleSizes;
+        }
+        mSampleSizes[mSampleCount++] = length;
+        mDataSize += length;
+        if(length > mMaxSampleSize) {
+            mMaxSampleSize = length;
+        }
+    }
+
+    /**
+     * Writes the moov box, updates the size of the mdat box and closes the file.
+     *
+     * @throws IOException if unable to write the file
+     */
+    public void finish() throws IOException {
+        if(mChannel == null) {
+            throw new IllegalStateException("Muxer already finished!");
+        }
+
+        try {
+            final long mdatSize = mDataSize + 8;
+            if(mdatSize > 0xFFFFFFFFL) {
+                throw new IOException("Recording is too large (" + mdatSize + " bytes)");
+            }
+
+            final ByteBuffer moov = buildMoov();
+            moov.flip();
+            writeFully(moov);
+
+            final ByteBuffer mdatHeader = ByteBuffer.allocate(4);
+            mdatHeader.putInt((int) mdatSize);
+            mdatHeader.flip();
+            mChannel.position(mMdatOffset);
+            writeFully(mdatHeader);
+
+            mChannel.force(false);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the file without finishing it (i.e. the file is not playable).
+     */
+    public void close() {
+        if(mChannel == null) {
+            return;
+        }
+        try {
+            mRandomAccessFile.close();
+        } catch(IOException e) {
+            // nothing to do
+        }
+        mChannel = null;
+        mRandomAccessFile = null;
+        mSampleBuffer = null;
+    }
+
+    private ByteBuffer buildMoov() {
+        final long mediaDuration = (long) mSampleCount * SAMPLES_PER_ACCESS_UNIT;
+        final long movieDuration = mediaDuration * MOVIE_TIMESCALE / mSampleRate;
+        final long avgBitrate = mediaDuration > 0 ? mDataSize * 8 * mSampleRate / mediaDuration : 0;
+        final long maxBitrate = Math.max(avgBitrate, (long) mMaxSampleSize * 8 * mSampleRate / SAMPLES_PER_ACCESS_UNIT);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(MOOV_FIXED_SIZE + (mSampleCount * 4));
+        final int moov = startBox(buffer, "moov");
+
+        int start = startFullBox(buffer, "mvhd", 0);
+        buffer.putInt(0);                       // creation time
+        buffer.putInt(0);                       // modification time
+        buffer.putInt(MOVIE_TIMESCALE);
+        buffer.putInt((int) movieDuration);
+        buffer.putInt(0x00010000);              // rate (1.0)
+        buffer.putShort((short) 0x0100);        // volume (1.0)
+        buffer.putShort((short) 0);
+        buffer.putLong(0);
+        putMatrix(buffer);
+        for(int i=0; i<6; i++) {
+            buffer.putInt(0);                   // pre-defined
+        }
+        buffer.putInt(2);                       // next track id
+        endBox(buffer, start);
+
+        final int trak = startBox(buffer, "trak");
+
+        start = startFullBox(buffer, "tkhd", 0x000007); // enabled, in movie and in preview
+        buffer.putInt(0);                       // creation time
+        buffer.putInt(0);                       // modification time
+        buffer.putInt(1);                       // track id
+        buffer.putInt(0);
+        buffer.putInt((int) movieDuration);
+        buffer.putLong(0);
+        buffer.putShort((short) 0);             // layer
+        buffer.putShort((short) 0);             // alternate group
+        buffer.putShort((short) 0x0100);        // volume (1.0)
+        buffer.putShort((short) 0);
+        putMatrix(buffer);
+        buffer.putInt(0);                       // width
+        buffer.putInt(0);                       // height
+        endBox(buffer, start);
+
+        final int mdia = startBox(buffer, "mdia");
+
+        start = startFullBox(buffer, "mdhd", 0);
+        buffer.putInt(0);                       // creation time
+        buffer.putInt(0);                       // modification time
+        buffer.putInt(mSampleRate);
+        buffer.putInt((int) mediaDuration);
+        buffer.putShort((short) 0x55C4);        // language ("und")
+        buffer.putShort((short) 0);
+        endBox(buffer, start);
+
+        start = startFullBox(buffer, "hdlr", 0);
+        buffer.putInt(0);
+        putType(buffer, "soun");
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        putString(buffer, "SoundHandler");
+        endBox(buffer, start);
+
+        final int minf = startBox(buffer, "minf");
+
+        start = startFullBox(buffer, "smhd", 0);
+        buffer.putShort((short) 0);             // balance
+        buffer.putShort((short) 0);
+        endBox(buffer, start);
+
+        final int dinf = startBox(buffer, "dinf");
+        start = startFullBox(buffer, "dref", 0);
+        buffer.putInt(1);
+        endBox(buffer, startFullBox(buffer, "url ", 1)); // media data is in the same file
+        endBox(buffer, start);
+        endBox(buffer, dinf);
+
+        final int stbl = startBox(buffer, "stbl");
+
+        start = startFullBox(buffer, "stsd", 0);
+        buffer.putInt(1);
+        final int mp4a = startBox(buffer, "mp4a");
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 1);             // data reference index
+        buffer.putLong(0);
+        buffer.putShort((short) mChannels);
+        buffer.putShort((short) 16);            // sample size
+        buffer.putInt(0);
+        buffer.putInt(mSampleRate << 16);
+        final int esds = startFullBox(buffer, "esds", 0);
+        // ES descriptor
+        buffer.put((byte) 0x03);
+        buffer.put((byte) 25);
+        buffer.putShort((short) 1);             // ES id
+        buffer.put((byte) 0);
+        // decoder config descriptor
+        buffer.put((byte) 0x04);
+        buffer.put((byte) 17);
+        buffer.put((byte) 0x40);                // MPEG-4 audio
+        buffer.put((byte) 0x15);                // audio stream
+        buffer.put((byte) (mMaxSampleSize >> 16));
+        buffer.putShort((short) mMaxSampleSize);
+        buffer.putInt((int) maxBitrate);
+        buffer.putInt((int) avgBitrate);
+        // decoder specific info (audio specific config)
+        buffer.put((byte) 0x05);
+        buffer.put((byte) 2);
+        buffer.putShort((short) ((AUDIO_OBJECT_TYPE_AAC_LC << 11) | (mSampleRateIndex << 7) | (mChannels << 3)));
+        // SL config descriptor
+        buffer.put((byte) 0x06);
+        buffer.put((byte) 1);
+        buffer.put((byte) 0x02);
+        endBox(buffer, esds);
+        endBox(buffer, mp4a);
+        endBox(buffer, start);
+
+        // all access units have the same duration
+        start = startFullBox(buffer, "stts", 0);
+        buffer.putInt(mSampleCount > 0 ? 1 : 0);
+        if(mSampleCount > 0) {
+            buffer.putInt(mSampleCount);
+            buffer.putInt(SAMPLES_PER_ACCESS_UNIT);
+        }
+        endBox(buffer, start);
+
+        // all access units are contiguous in a single chunk
+        start = startFullBox(buffer, "stsc", 0);
+        buffer.putInt(mSampleCount > 0 ? 1 : 0);
+        if(mSampleCount > 0) {
+            buffer.putInt(1);
+            buffer.putInt(mSampleCount);
+            buffer.putInt(1);
+        }
+        endBox(buffer, start);
+
+        start = startFullBox(buffer, "stsz", 0);
+        buffer.putInt(0);
+        buffer.putInt(mSampleCount);
+        for(int i=0; i<mSampleCount; i++) {
+            buffer.putInt(mSampleSizes[i]);
+        }
+        endBox(buffer, start);
+
+        start = startFullBox(buffer, "stco", 0);
+        buffer.putInt(mSampleCount > 0 ? 1 : 0);
+        if(mSampleCount > 0) {
+            buffer.putInt((int) (mMdatOffset + 8));
+        }
+        endBox(buffer, start);
+
+        endBox(buffer, stbl);
+        endBox(buffer, minf);
+        endBox(buffer, mdia);
+        endBox(buffer, trak);
+        endBox(buffer, moov);
+
+        return buffer;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    private static int startBox(ByteBuffer buffer, String type) {
+        final int start = buffer.position();
+        buffer.putInt(0);
+        putType(buffer, type);
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer buffer, String type, int flags) {
+        final int start = startBox(buffer, type);
+        buffer.putInt(flags & 0x00FFFFFF);     // version 0 + flags
+        return start;
+    }
+
+    private static void endBox(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start);
+    }
+
+    private static void putType(ByteBuffer buffer, String type) {
+        for(int i=0; i<4; i++) {
+            buffer.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        for(int i=0; i<value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+        buffer.put((byte) 0);
+    }
+
+    private static void putMatrix(ByteBuffer buffer) {
+        for(int value : MATRIX) {
+            buffer.putInt(value);
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return the duration of the muxed audio in milliseconds
+     */
+    public long getDurationMillis() {
+        return (long) mSampleCount * SAMPLES_PER_ACCESS_UNIT * 1000 / mSampleRate;
+    }
+}
@@ -0,0 +1,149 @@
+package com.peppermint.app.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ring of preallocated, fixed-size PCM frames shared between the thread that records audio
+ * and the threads that consume it (e.g. the speech recognition sender), without copying or
+ * allocating a new array for each chunk of audio.<br />
+ * <br />
+ * The producer obtains a frame through {@link #acquire()}, fills it and hands it to consumers.
+ * Each consumer that keeps the frame after the hand-off must {@link Frame#retain()} it and
+ * {@link Frame#release()} it once done. The frame returns to the ring when the last
+ * reference is released, so the producer must also release its own reference.<br />
+ * <br />
+ * If all frames are held by consumers, the ring grows (up to {@link #getMaxFrameCount()} frames),
+ * so that the recorder thread never blocks. Grown frames also return to the ring, so the max.
+ * frame count should cover all frames that consumers may hold at once (e.g. their queue limits).
+ * Past it, {@link #acquire()} falls back to a temporary frame, which is counted in
+ * {@link #getOverflowCount()}.
+ */
+public class PcmFrameRingBuffer {
+
+    public static class Frame {
+        private final PcmFrameRingBuffer mOwner;
+        private final byte[] mData;
+        private final AtomicInteger mReferences = new AtomicInteger();
+
+        private Frame(PcmFrameRingBuffer owner, int frameSize) {
+            this.mOwner = owner;
+            this.mData = new byte[frameSize];
+        }
+
+        /**
+         * @return the PCM data (16 bit little-endian samples); the array always has the frame size
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * Adds a reference to the frame. Must be matched by a {@link #release()}.
+         * @return this frame
+         */
+        public Frame retain() {
+            mReferences.incrementAndGet();
+            return this;
+        }
+
+        /**
+         * Removes a reference to the frame. The frame returns to the ring once there are no
+         * references left, so its data must no longer be accessed.
+         */
+        public void release() {
+            final int references = mReferences.decrementAndGet();
+            if(references == 0) {
+                if(mOwner != null) {
+                    mOwner.mFreeFrames.offer(this);
+                }
+            } else if(references < 0) {
+                throw new IllegalStateException("Frame released more times than it was retained!");
+            }
+        }
+    }
+
+    private final int mFrameSize;
+    private final Queue<Frame> mFreeFrames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mFrameCount = new AtomicInteger();
+    private volatile int mMaxFrameCount;
+    private final AtomicInteger mOverflowCount = new AtomicInteger();
+
+    /**
+     * @param frameCount the amount of frames allocated upfront
+     * @param maxFrameCount the max. amount of frames in the ring (allocated on demand)
+     * @param frameSize the size of each frame in bytes
+     */
+    public PcmFrameRingBuffer(int frameCount, int maxFrameCount, int frameSize) {
+        if(maxFrameCount < frameCount) {
+            throw new IllegalArgumentException("maxFrameCount must be >= frameCount");
+        }
+        this.mFrameSize = frameSize;
+        this.mMaxFrameCount = maxFrameCount;
+        for(int i=0; i<frameCount; i++) {
+            mFreeFrames.offer(new Frame(this, frameSize));
+        }
+        mFrameCount.set(frameCount);
+    }
+
+    /**
+     * Obtains a free frame, with a single reference (owned by the caller).<br />
+     * <strong>Never blocks.</strong>
+     *
+     * @return the frame
+     */
+    public Frame acquire() {
+        Frame frame = mFreeFrames.poll();
+        if(frame == null) {
+            // all frames are in use by slow consumers
+            if(mFrameCount.incrementAndGet() <= mMaxFrameCount) {
+                frame = new Frame(this, mFrameSize);
+            } else {
+                mFrameCount.decrementAndGet();
+                mOverflowCount.incrementAndGet();
+                frame = new Frame(null, mFrameSize);
+            }
+        }
+        frame.mReferences.set(1);
+        return frame;
+    }
+
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * @return the amount of frames allocated for the ring so far
+     */
+    public int getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    public int getMaxFrameCount() {
+        return mMaxFrameCount;
+    }
+
+    /**
+     * Sets the max. amount of frames in the ring. Frames already allocated are kept.
+     *
+     * @param maxFrameCount the max. amount of frames
+     */
+    public void setMaxFrameCount(int maxFrameCount) {
+        this.mMaxFrameCount = maxFrameCount;
+    }
+
+    /**
+     * @return the amount of frames currently available in the ring
+     */
+    public int getFreeFrameCount() {
+        return mFreeFrames.size();
+    }
+
+    /**
+     * @return the amount of times a temporary frame had to be allocated
+     */
+    public int getOverflowCount() {
+        return mOverflowCount.get();
+    }
+}
@@ -0,0 +1,412 @@
+package com.peppermint.app.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.peppermint.app.tracking.TrackerManager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous loader of (contact) photos, keyed by photo {@link Uri} and target size.<br />
+ * Photos are decoded in the background, downsampled with {@link BitmapFactory.Options#inSampleSize}
+ * and scaled to cover the target size (keeping the aspect ratio). Loaded photos are kept in an
+ * in-memory LRU cache bounded by bytes, and in a thumbnail cache on disk.<br />
+ * <br />
+ * Simultaneous requests for the same photo and size share the same decoding job. Each request
+ * belongs to a target (usually a view); a new request for the same target cancels the previous one,
+ * so recycled views never receive photos that belong to an old binding.<br />
+ * <br />
+ * <strong>Requests must be made and cancelled on the main thread; callbacks are invoked on the
+ * main thread. Loaded bitmaps are shared and must never be recycled by their users.</strong>
+ */
+public class PhotoLoader {
+
+    private static final String TAG = PhotoLoader.class.getSimpleName();
+
+    // fraction of the max. heap used by the memory cache
+    private static final int MAX_MEMORY_DIVIDER = 16;
+
+    private static final String DISK_CACHE_DIR = "photo_thumbnails";
+    private static final long MAX_DISK_CACHE_BYTES = 10 * 1024 * 1024;
+    // contact photos may change while keeping the same uri
+    private static final long DISK_CACHE_TTL_MS = 24 * 3600 * 1000;
+    private static final int DISK_CACHE_JPEG_QUALITY = 90;
+
+    private static final int THREAD_COUNT = 2;
+
+    /**
+     * Receives the result of a photo request.
+     */
+    public interface Callback {
+        /**
+         * Invoked on the main thread once the photo is loaded.
+         *
+         * @param uri the photo uri
+         * @param bitmap the photo; null if unable to load it
+         */
+        void onPhotoLoaded(Uri uri, Bitmap bitmap);
+    }
+
+    private static class Request {
+        private final Object mTarget;
+        private final Callback mCallback;
+        private final Job mJob;
+
+        private Request(Object target, Callback callback, Job job) {
+            this.mTarget = target;
+            this.mCallback = callback;
+            this.mJob = job;
+        }
+    }
+
+    private class Job implements Runnable {
+        private final String mKey;
+        private final Uri mUri;
+        private final int mWidth, mHeight;
+        private final List<Request> mRequests = new ArrayList<>();
+        private Future<?> mFuture;
+        private boolean mStarted = false;
+
+        private Job(String key, Uri uri, int width, int height) {
+            this.mKey = key;
+            this.mUri = uri;
+            this.mWidth = width;
+            this.mHeight = height;
+        }
+
+        @Override
+        public void run() {
+            synchronized (PhotoLoader.this) {
+                if(mRequests.size() <= 0) {
+                    // all requests were cancelled in the meantime
+                    return;
+                }
+                mStarted = true;
+            }
+
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final File cacheFile = getDiskCacheFile(mKey);
+            Bitmap bitmap = readFromDiskCache(cacheFile);
+            if(bitmap == null) {
+                bitmap = decode(mUri, mWidth, mHeight);
+                if(bitmap != null) {
+                    writeToDiskCache(cacheFile, bitmap);
+                }
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onJobFinished(Job.this, result);
+                }
+            });
+        }
+    }
+
+    private static PhotoLoader INSTANCE;
+
+    public static synchronized PhotoLoader getInstance(Context context) {
+        if(INSTANCE == null) {
+            INSTANCE = new PhotoLoader(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final File mDiskCacheDir;
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    // in-flight jobs and the current request of each target
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final Map<Object, Request> mTargetRequests = new HashMap<>();
+
+    private PhotoLoader(Context context) {
+        this.mContext = context;
+        this.mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        this.mMemoryCache = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / MAX_MEMORY_DIVIDER)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+        this.mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static String getKey(Uri uri, int width, int height) {
+        return uri.toString() + "#" + width + "x" + height;
+    }
+
+    /**
+     * Obtains the photo from the memory cache.
+     *
+     * @param uri the photo uri
+     * @param width the target width
+     * @param height the target height
+     * @return the photo or null if not cached in memory
+     */
+    public Bitmap getCachedPhoto(Uri uri, int width, int height) {
+        return mMemoryCache.get(getKey(uri, width, height));
+    }
+
+    /**
+     * Requests the photo in the specified {@link Uri}, scaled to cover the target size.<br />
+     * Cancels any previous request of the target. If the photo is cached in memory, the callback
+     * is invoked immediately (before this method returns).
+     *
+     * @param target the target of the request (e.g. a view); referenced until the request finishes or is cancelled
+     * @param uri the photo uri
+     * @param width the target width
+     * @param height the target height
+     * @param callback the callback that receives the photo
+     */
+    public synchronized void loadPhoto(Object target, Uri uri, int width, int height, Callback callback) {
+        cancel(target);
+
+        final String key = getKey(uri, width, height);
+        final Bitmap cached = mMemoryCache.get(key);
+        if(cached != null) {
+            callback.onPhotoLoaded(uri, cached);
+            return;
+        }
+
+        Job job = mJobs.get(key);
+        if(job == null) {
+            job = new Job(key, uri, width, height);
+            mJobs.put(key, job);
+            job.mFuture = mExecutor.submit(job);
+        }
+
+        final Request request = new Request(target, callback, job);
+        job.mRequests.add(request);
+        mTargetRequests.put(target, request);
+    }
+
+    /**
+     * Cancels the current request of the target (if any).<br />
+     * The decoding job is also cancelled if no other target is waiting for it and it hasn't started yet.
+     *
+     * @param target the target
+     */
+    public synchronized void cancel(Object target) {
+        final Request request = mTargetRequests.remove(target);
+        if(request == null) {
+            return;
+        }
+
+        final Job job = request.mJob;
+        job.mRequests.remove(request);
+        if(job.mRequests.size() <= 0 && !job.mStarted) {
+            job.mFuture.cancel(false);
+            mJobs.remove(job.mKey);
+        }
+    }
+
+    private synchronized void onJobFinished(Job job, Bitmap bitmap) {
+        if(mJobs.get(job.mKey) == job) {
+            mJobs.remove(job.mKey);
+        }
+
+        if(bitmap != null) {
+            mMemoryCache.put(job.mKey, bitmap);
+        }
+
+        // callbacks may issue new requests
+        final List<Request> requests = new ArrayList<>(job.mRequests);
+        job.mRequests.clear();
+        for(Request request : requests) {
+            mTargetRequests.remove(request.mTarget);
+        }
+        for(Request request : requests) {
+            request.mCallback.onPhotoLoaded(job.mUri, bitmap);
+        }
+    }
+
+    /**
+     * Removes all photos from the memory cache (e.g. on low memory).
+     */
+    public void clearMemoryCache() {
+        mMemoryCache.evictAll();
+    }
+
+    private Bitmap decode(Uri uri, int width, int height) {
+        try {
+            // read the size of the image
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            InputStream stream = ResourceUtils.openInputStream(mContext, uri);
+            if(stream == null) {
+                return null;
+            }
+            try {
+                BitmapFactory.decodeStream(stream, null, options);
+            } finally {
+                stream.close();
+            }
+            if(options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            // largest power of two that keeps the decoded image covering the target size
+            int sampleSize = 1;
+            while(options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+                sampleSize *= 2;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            stream = ResourceUtils.openInputStream(mContext, uri);
+            if(stream == null) {
+                return null;
+            }
+            final Bitmap decoded;
+            try {
+                decoded = BitmapFactory.decodeStream(stream, null, options);
+            } finally {
+                stream.close();
+            }
+            if(decoded == null) {
+                return null;
+            }
+
+            // scale down to the smallest size that covers the target size
+            final float scale = Math.max((float) width / decoded.getWidth(), (float) height / decoded.getHeight());
+            if(scale >= 1f) {
+                return decoded;
+            }
+            final Bitmap scaled = Bitmap.createScaledBitmap(decoded,
+                    Math.max(1, Math.round(decoded.getWidth() * scale)),
+                    Math.max(1, Math.round(decoded.getHeight() * scale)), true);
+            if(scaled != decoded) {
+                decoded.recycle();
+            }
+            return scaled;
+        } catch(IOException | SecurityException e) {
+            TrackerManager.getInstance(mContext).log("Unable to load photo " + uri, e);
+        } catch(OutOfMemoryError e) {
+            TrackerManager.getInstance(mContext).log("Out of memory while loading photo " + uri, e);
+            clearMemoryCache();
+        }
+        return null;
+    }
+
+    private File getDiskCacheFile(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            final StringBuilder builder = new StringBuilder(digest.length * 2);
+            for(byte b : digest) {
+                builder.append(String.format("%02x", b));
+            }
+            return new File(mDiskCacheDir, builder.toString());
+        } catch(NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Bitmap readFromDiskCache(File file) {
+        if(!file.exists()) {
+            return null;
+        }
+        if(System.currentTimeMillis() - file.lastModified() > DISK_CACHE_TTL_MS) {
+            if(!file.delete()) {
+                Log.w(TAG, "Unable to delete expired thumbnail " + file);
+            }
+            return null;
+        }
+        return BitmapFactory.decodeFile(file.getAbsolutePath());
+    }
+
+    private void writeToDiskCache(File file, Bitmap bitmap) {
+        synchronized (mDiskCacheDir) {
+            if(!mDiskCacheDir.exists() && !mDiskCacheDir.mkdirs()) {
+                Log.w(TAG, "Unable to create thumbnail cache dir " + mDiskCacheDir);
+                return;
+            }
+
+            OutputStream stream = null;
+            try {
+                stream = new FileOutputStream(file);
+                // keep transparency (e.g. of user avatars)
+                bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, DISK_CACHE_JPEG_QUALITY, stream);
+            } catch(IOException e) {
+                Log.w(TAG, "Unable to write thumbnail " + file, e);
+            } finally {
+                if(stream != null) {
+                    try {
+                        stream.close();
+                    } catch(IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+
+            trimDiskCache();
+        }
+    }
+
+    /**
+     * Deletes the oldest thumbnails while the disk cache is over {@link #MAX_DISK_CACHE_BYTES}.
+     */
+    private void trimDiskCache() {
+        final File[] files = mDiskCacheDir.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        long totalBytes = 0;
+        for(File file : files) {
+            totalBytes += file.length();
+        }
+
+        while(totalBytes > MAX_DISK_CACHE_BYTES) {
+            File oldest = null;
+            for(File file : files) {
+                if(file != null && (oldest == null || file.lastModified() < oldest.lastModified())) {
+                    oldest = file;
+                }
+            }
+            if(oldest == null) {
+                break;
+            }
+
+            totalBytes -= oldest.length();
+            if(!oldest.delete()) {
+                Log.w(TAG, "Unable to delete thumbnail " + oldest);
+            }
+            for(int i=0; i<files.length; i++) {
+                if(files[i] == oldest) {
+                    files[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -150,7 +150,7 @@ public class ResourceUtils {
     }
 
     private static final String FILE_SCHEME = "file";
-    private static InputStream openInputStream(final Context context, final Uri uri) throws FileNotFoundException {
+    static InputStream openInputStream(final Context context, final Uri uri) throws FileNotFoundException {
         if(FILE_SCHEME.equals(uri.getScheme())) {
             return new FileInputStream(uri.toString().substring(6));
         }
@@ -0,0 +1,177 @@
+package com.peppermint.app.utils;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe LRU cache with a maximum number of entries, whose entries also expire after a
+ * fixed time-to-live.<br />
+ * Expired entries are removed lazily (when accessed) or through {@link #trimExpired()}.
+ * Hits, misses, evictions and expirations are counted to allow tracking the efficiency of the cache.
+ * Override {@link #entryEvicted(Object, Object)} to release the resources of evicted or expired values.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class TimedLruCache<K, V> {
+
+    private static class Entry<V> {
+        private final V mValue;
+        private final long mExpiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.mValue = value;
+            this.mExpiresAt = expiresAt;
+        }
+    }
+
+    private final int mMaxSize;
+    private final long mTimeToLiveMs;
+    private final LinkedHashMap<K, Entry<V>> mMap;
+
+    private int mHitCount, mMissCount, mEvictionCount, mExpirationCount;
+
+    /**
+     * @param maxSize the max. amount of entries
+     * @param timeToLiveMs the time (in ms) after which an entry expires
+     */
+    public TimedLruCache(int maxSize, long timeToLiveMs) {
+        if(maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be > 0");
+        }
+        this.mMaxSize = maxSize;
+        this.mTimeToLiveMs = timeToLiveMs;
+        // access-ordered
+        this.mMap = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if(size() > mMaxSize) {
+                    mEvictionCount++;
+                    entryEvicted(eldest.getKey(), eldest.getValue().mValue);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Can be overridden to use a different time base (e.g. on tests).
+     * @return the current time in ms
+     */
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Invoked when an entry is evicted due to the size limit or when it expires (but not when it
+     * is explicitly removed or replaced).<br />
+     * <strong>Invoked while holding the cache lock, so it must return quickly.</strong>
+     *
+     * @param key the key of the entry
+     * @param value the value of the entry
+     */
+    protected void entryEvicted(K key, V value) {
+    }
+
+    /**
+     * @param key the key
+     * @return the cached value; null if there's none or if it has expired
+     */
+    public synchronized V get(K key) {
+        final Entry<V> entry = mMap.get(key);
+        if(entry == null) {
+            mMissCount++;
+            return null;
+        }
+        if(entry.mExpiresAt <= now()) {
+            mMap.remove(key);
+            mExpirationCount++;
+            mMissCount++;
+            entryEvicted(key, entry.mValue);
+            return null;
+        }
+        mHitCount++;
+        return entry.mValue;
+    }
+
+    public synchronized void put(K key, V value) {
+        if(value == null) {
+            mMap.remove(key);
+            return;
+        }
+        mMap.put(key, new Entry<>(value, now() + mTimeToLiveMs));
+    }
+
+    public synchronized V remove(K key) {
+        final Entry<V> entry = mMap.remove(key);
+        return entry == null ? null : entry.mValue;
+    }
+
+    /**
+     * Removes all expired entries.
+     * @return the amount of removed entries
+     */
+    public synchronized int trimExpired() {
+        final long now = now();
+        int removed = 0;
+        final Iterator<Map.Entry<K, Entry<V>>> it = mMap.entrySet().iterator();
+        while(it.hasNext()) {
+            final Map.Entry<K, Entry<V>> entry = it.next();
+            if(entry.getValue().mExpiresAt <= now) {
+                it.remove();
+                removed++;
+                entryEvicted(entry.getKey(), entry.getValue().mValue);
+            }
+        }
+        mExpirationCount += removed;
+        return removed;
+    }
+
+    public synchronized void clear() {
+        mMap.clear();
+    }
+
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public long getTimeToLive() {
+        return mTimeToLiveMs;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized int getExpirationCount() {
+        return mExpirationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TimedLruCache{" +
+                "size=" + mMap.size() +
+                ", maxSize=" + mMaxSize +
+                ", hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", evictions=" + mEvictionCount +
+                ", expirations=" + mExpirationCount +
+                '}';
+    }
+}
@@ -9,12 +9,28 @@ public class AACEncoder {
     public native void init(int bitrate, int channels,
             int sampleRate, int bitsPerSample, String outputFile);
 
+    /**
+     * Native JNI - initialize AAC encoder without an output file<br />
+     * Encoded access units (without ADTS headers) are returned by {@link #encodeFrame(byte[], byte[])}
+     *
+     */
+    public native void initRaw(int bitrate, int channels,
+            int sampleRate, int bitsPerSample);
+
     /**
      * Native JNI - encode one or more frames
      *
      */
     public native void encode(byte[] inputArray);
 
+    /**
+     * Native JNI - encode exactly one frame (1024 samples per channel) into outputArray
+     * (requires {@link #initRaw(int, int, int, int)})
+     *
+     * @return the size of the encoded access unit; 0 if there was not enough input
+     */
+    public native int encodeFrame(byte[] inputArray, byte[] outputArray);
+
     /**
      * Native JNI - uninitialize AAC encoder and flush file
      *
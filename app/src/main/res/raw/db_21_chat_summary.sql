@@ -0,0 +1,11 @@
+-- Materialized chat data previously computed by the nested v_chat/v_chat_peppermint views (kept up-to-date by ChatManager, MessageManager and RecipientManager)
+CREATE TABLE IF NOT EXISTS tbl_chat_summary (chat_id INTEGER PRIMARY KEY, droid_contact_ids text, is_peppermint int default 0, peppermint_chat_id bigint default 0, unopened_count int default 0, last_message_ts varchar(19));
+DELETE FROM tbl_chat_summary;
+INSERT INTO tbl_chat_summary (chat_id, droid_contact_ids, is_peppermint, peppermint_chat_id, unopened_count, last_message_ts) SELECT v_chat.chat_id, v_chat.droid_contact_ids, IFNULL(v_chat.is_peppermint, 0), v_chat.peppermint_chat_id, (SELECT COUNT(*) FROM tbl_message WHERE tbl_message.chat_id = v_chat.chat_id AND tbl_message.played <= 0 AND tbl_message.received >= 1), v_chat.last_message_ts FROM v_chat;
+
+-- Views (same as in db_create.sql)
+DROP VIEW IF EXISTS v_message;
+DROP VIEW IF EXISTS v_chat;
+DROP VIEW IF EXISTS v_chat_peppermint;
+CREATE VIEW IF NOT EXISTS v_chat AS SELECT tbl_chat.chat_id, tbl_chat.title, tbl_chat_summary.last_message_ts, tbl_chat_summary.droid_contact_ids, tbl_chat_summary.is_peppermint, tbl_chat_summary.peppermint_chat_id, tbl_chat_summary.unopened_count FROM tbl_chat_summary INNER JOIN tbl_chat ON tbl_chat.chat_id = tbl_chat_summary.chat_id WHERE tbl_chat_summary.droid_contact_ids IS NOT NULL;
+CREATE VIEW IF NOT EXISTS v_message AS SELECT tbl_message.*, (CASE WHEN tbl_chat_summary.peppermint_chat_id <> 0 THEN tbl_chat_summary.peppermint_chat_id ELSE tbl_message.chat_id END) AS merged_chat_id FROM tbl_message INNER JOIN tbl_chat_summary ON tbl_chat_summary.chat_id = tbl_message.chat_id WHERE tbl_chat_summary.droid_contact_ids IS NOT NULL;
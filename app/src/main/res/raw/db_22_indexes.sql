@@ -0,0 +1,11 @@
+-- Secondary indexes for the access paths of MessageManager, ChatManager and RecipientManager (same as in db_create.sql)
+CREATE INDEX IF NOT EXISTS idx_message_chat ON tbl_message (chat_id, registration_ts);
+CREATE INDEX IF NOT EXISTS idx_message_unopened ON tbl_message (chat_id, received, played);
+CREATE INDEX IF NOT EXISTS idx_message_server_id ON tbl_message (server_message_id, received);
+CREATE INDEX IF NOT EXISTS idx_message_status ON tbl_message (sent, received, played, registration_ts);
+CREATE INDEX IF NOT EXISTS idx_recipient_via ON tbl_recipient (via, mimetype);
+CREATE INDEX IF NOT EXISTS idx_recipient_droid_ids ON tbl_recipient (droid_contact_id, droid_contact_raw_id, droid_contact_data_id);
+CREATE INDEX IF NOT EXISTS idx_chat_recipient_chat ON tbl_chat_recipient (chat_id, recipient_id);
+CREATE INDEX IF NOT EXISTS idx_chat_last_message ON tbl_chat (last_message_ts);
+CREATE INDEX IF NOT EXISTS idx_chat_summary_peppermint ON tbl_chat_summary (peppermint_chat_id, last_message_ts);
+CREATE INDEX IF NOT EXISTS idx_chat_summary_contacts ON tbl_chat_summary (droid_contact_ids, is_peppermint);
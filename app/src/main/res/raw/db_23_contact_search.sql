@@ -0,0 +1,3 @@
+-- Local mirror of the Android contact data rows used by the contact list, and its search index (same as in db_create.sql)
+CREATE TABLE IF NOT EXISTS tbl_contact_data (_id INTEGER PRIMARY KEY, raw_contact_id bigint, contact_id bigint, starred int default 0, mimetype text, data1 text, photo_uri text, display_name text, account_name text, account_type text, is_primary int default 0, is_super_primary int default 0, in_visible_group int default 0, is_peppermint int default 0);
+CREATE VIRTUAL TABLE IF NOT EXISTS tbl_contact_search USING fts4(search_name, search_via);
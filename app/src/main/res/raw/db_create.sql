@@ -11,11 +11,27 @@ CREATE TABLE IF NOT EXISTS tbl_message (message_id INTEGER PRIMARY KEY AUTOINCRE
 
 CREATE TABLE IF NOT EXISTS tbl_message_recipient (message_id bigint NOT NULL, recipient_id bigint NOT NULL, sent int default 0, PRIMARY KEY (message_id, recipient_id));
 
+CREATE TABLE IF NOT EXISTS tbl_chat_summary (chat_id INTEGER PRIMARY KEY, droid_contact_ids text, is_peppermint int default 0, peppermint_chat_id bigint default 0, unopened_count int default 0, last_message_ts varchar(19));
+
 CREATE TABLE IF NOT EXISTS tbl_recording (recording_id INTEGER PRIMARY KEY AUTOINCREMENT, file_path varchar(255), transcription text, transcription_confidence decimal(10,5), transcription_lang varchar(128), transcription_url varchar(255), duration_millis bigint, size_kb float, has_video int, recorded_ts varchar(19), content_type varchar(150));
 
--- Views
-CREATE VIEW IF NOT EXISTS v_chat_peppermint AS SELECT tbl_chat.*, tmp.droid_contact_ids, (SELECT MAX(is_peppermint) FROM tbl_recipient INNER JOIN tbl_chat_recipient ON tbl_recipient.recipient_id = tbl_chat_recipient.recipient_id WHERE tbl_chat_recipient.chat_id = tbl_chat.chat_id GROUP BY tbl_chat_recipient.chat_id) AS is_peppermint FROM tbl_chat, (SELECT chat_id, GROUP_CONCAT(droid_contact_id, ',') as droid_contact_ids FROM (SELECT DISTINCT chat_id, droid_contact_id FROM tbl_chat_recipient, tbl_recipient WHERE tbl_recipient.recipient_id = tbl_chat_recipient.recipient_id ORDER BY chat_id ASC, droid_contact_id ASC) GROUP BY chat_id)tmp WHERE tbl_chat.chat_id = tmp.chat_id;
+-- Indexes
+CREATE INDEX IF NOT EXISTS idx_message_chat ON tbl_message (chat_id, registration_ts);
+CREATE INDEX IF NOT EXISTS idx_message_unopened ON tbl_message (chat_id, received, played);
+CREATE INDEX IF NOT EXISTS idx_message_server_id ON tbl_message (server_message_id, received);
+CREATE INDEX IF NOT EXISTS idx_message_status ON tbl_message (sent, received, played, registration_ts);
+CREATE INDEX IF NOT EXISTS idx_recipient_via ON tbl_recipient (via, mimetype);
+CREATE INDEX IF NOT EXISTS idx_recipient_droid_ids ON tbl_recipient (droid_contact_id, droid_contact_raw_id, droid_contact_data_id);
+CREATE INDEX IF NOT EXISTS idx_chat_recipient_chat ON tbl_chat_recipient (chat_id, recipient_id);
+CREATE INDEX IF NOT EXISTS idx_chat_last_message ON tbl_chat (last_message_ts);
+CREATE INDEX IF NOT EXISTS idx_chat_summary_peppermint ON tbl_chat_summary (peppermint_chat_id, last_message_ts);
+CREATE INDEX IF NOT EXISTS idx_chat_summary_contacts ON tbl_chat_summary (droid_contact_ids, is_peppermint);
+
+-- Contact search index
+CREATE TABLE IF NOT EXISTS tbl_contact_data (_id INTEGER PRIMARY KEY, raw_contact_id bigint, contact_id bigint, starred int default 0, mimetype text, data1 text, photo_uri text, display_name text, account_name text, account_type text, is_primary int default 0, is_super_primary int default 0, in_visible_group int default 0, is_peppermint int default 0);
+CREATE VIRTUAL TABLE IF NOT EXISTS tbl_contact_search USING fts4(search_name, search_via);
 
-CREATE VIEW IF NOT EXISTS v_chat AS SELECT v_chat_peppermint.*, (CASE WHEN v_chat_peppermint.is_peppermint <= 0 THEN IFNULL((SELECT rel.chat_id FROM v_chat_peppermint AS rel WHERE rel.is_peppermint > 0 AND rel.droid_contact_ids = v_chat_peppermint.droid_contact_ids), 0) ELSE 0 END) AS peppermint_chat_id FROM v_chat_peppermint;
+-- Views
+CREATE VIEW IF NOT EXISTS v_chat AS SELECT tbl_chat.chat_id, tbl_chat.title, tbl_chat_summary.last_message_ts, tbl_chat_summary.droid_contact_ids, tbl_chat_summary.is_peppermint, tbl_chat_summary.peppermint_chat_id, tbl_chat_summary.unopened_count FROM tbl_chat_summary INNER JOIN tbl_chat ON tbl_chat.chat_id = tbl_chat_summary.chat_id WHERE tbl_chat_summary.droid_contact_ids IS NOT NULL;
 
-CREATE VIEW IF NOT EXISTS v_message AS SELECT tbl_message.*, tbl_message.chat_id AS merged_chat_id FROM tbl_message, v_chat WHERE v_chat.chat_id = tbl_message.chat_id AND v_chat.peppermint_chat_id = 0 UNION SELECT tbl_message.*, v_chat.peppermint_chat_id AS merged_chat_id FROM tbl_message, v_chat WHERE v_chat.chat_id = tbl_message.chat_id AND v_chat.peppermint_chat_id <> 0;
\ No newline at end of file
+CREATE VIEW IF NOT EXISTS v_message AS SELECT tbl_message.*, (CASE WHEN tbl_chat_summary.peppermint_chat_id <> 0 THEN tbl_chat_summary.peppermint_chat_id ELSE tbl_message.chat_id END) AS merged_chat_id FROM tbl_message INNER JOIN tbl_chat_summary ON tbl_chat_summary.chat_id = tbl_message.chat_id WHERE tbl_chat_summary.droid_contact_ids IS NOT NULL;
\ No newline at end of file
@@ -2,11 +2,15 @@
 DROP TABLE IF EXISTS tbl_chat;
 DROP TABLE IF EXISTS tbl_recipient;
 DROP TABLE IF EXISTS tbl_chat_recipient;
+DROP TABLE IF EXISTS tbl_chat_summary;
 
 DROP TABLE IF EXISTS tbl_message;
 DROP TABLE IF EXISTS tbl_message_recipient;
 DROP TABLE IF EXISTS tbl_recording;
+DROP TABLE IF EXISTS tbl_contact_data;
+DROP TABLE IF EXISTS tbl_contact_search;
 
 -- Views
+DROP VIEW IF EXISTS v_chat_peppermint;
 DROP VIEW IF EXISTS v_chat;
 DROP VIEW IF EXISTS v_message;
\ No newline at end of file
@@ -0,0 +1,128 @@
+package com.peppermint.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.peppermint.app.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests that the FTS queries of the {@link ContactSearchIndex} and its in-memory narrowing
+ * return the same contact data rows.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ContactSearchIndexTest {
+
+    private static final String[][] CONTACTS = {
+            // display name, mimetype, via
+            { "John Doe", ContactData.EMAIL_MIMETYPE, "john.doe@gmail.com" },
+            { "John Smith", ContactData.EMAIL_MIMETYPE, "smith@work.com" },
+            { "Mary-Jane Johnson", ContactData.EMAIL_MIMETYPE, "mj@example.com" },
+            { "José Álvares", ContactData.EMAIL_MIMETYPE, "jose@example.com" },
+            { "Jonas", ContactData.PHONE_MIMETYPE, "+351 912 345 678" }
+    };
+
+    private static final String[] QUERIES = {
+            "j", "jo", "joh", "john", "john ", "john s", "john smi", "johnd", "jose", "JOSÉ Á", "mary jane", "jane", "smith@w", "351", "@@"
+    };
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void init() {
+        mDatabase = SQLiteDatabase.create(null);
+        new DatabaseHelper(RuntimeEnvironment.application).onCreate(mDatabase);
+
+        for(int i=0; i<CONTACTS.length; i++) {
+            final long id = i + 1;
+            final boolean isEmail = ContactData.EMAIL_MIMETYPE.equals(CONTACTS[i][1]);
+            mDatabase.execSQL("INSERT INTO tbl_contact_data (_id, raw_contact_id, contact_id, mimetype, data1, display_name) VALUES (?, ?, ?, ?, ?, ?)",
+                    new Object[] { id, id, id, CONTACTS[i][1], CONTACTS[i][2], CONTACTS[i][0] });
+            mDatabase.execSQL("INSERT INTO tbl_contact_search (docid, search_name, search_via) VALUES (?, ?, ?)",
+                    new Object[] { id, ContactSearchIndex.joinTokens(ContactSearchIndex.getTokens(CONTACTS[i][0])), isEmail ? ContactSearchIndex.getViaKey(CONTACTS[i][2]) : "" });
+        }
+    }
+
+    @After
+    public void deinit() {
+        mDatabase.close();
+    }
+
+    private Set<Long> searchIndex(String query) {
+        final Set<Long> ids = new HashSet<>();
+        final Cursor cursor = mDatabase.rawQuery("SELECT _id FROM tbl_contact_data WHERE " + ContactSearchIndex.getConditions(query, null, null), null);
+        while(cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private Set<Long> searchMemory(String query) {
+        final Set<Long> ids = new HashSet<>();
+        for(int i=0; i<CONTACTS.length; i++) {
+            final boolean isEmail = ContactData.EMAIL_MIMETYPE.equals(CONTACTS[i][1]);
+            if(query.length() > 0 && (ContactSearchIndex.matchesName(ContactSearchIndex.getTokens(CONTACTS[i][0]), query.split(" ")) ||
+                    ContactSearchIndex.matchesVia(isEmail ? ContactSearchIndex.getViaKey(CONTACTS[i][2]) : "", ContactSearchIndex.getViaKey(query)))) {
+                ids.add(i + 1L);
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void testNormalization() {
+        assertEquals("jose alvares", ContactSearchIndex.joinTokens(ContactSearchIndex.getTokens("  José  Álvares ")));
+        assertEquals("mary jane johnson", ContactSearchIndex.joinTokens(ContactSearchIndex.getTokens("Mary-Jane Johnson")));
+        assertEquals("johndoegmailcom", ContactSearchIndex.getViaKey("John.Doe@gmail.com"));
+        assertEquals(0, ContactSearchIndex.getTokens("@@").length);
+    }
+
+    @Test
+    public void testIndexAndNarrowingMatch() {
+        for(String rawQuery : QUERIES) {
+            final String query = ContactSearchIndex.joinTokens(ContactSearchIndex.getTokens(rawQuery));
+            assertEquals("Query '" + rawQuery + "'", searchIndex(query), searchMemory(query));
+        }
+
+        // "John Smith" by name ("johns" is not the start of any email)
+        assertEquals(1, searchIndex("john s").size());
+        assertTrue(searchIndex("john s").contains(2L));
+        assertTrue(searchIndex("jane").contains(3L));
+        assertTrue(searchIndex("").isEmpty());
+    }
+
+    @Test
+    public void testNarrowedQueriesAreSubsets() {
+        final List<String> queries = new ArrayList<>();
+        for(String rawQuery : QUERIES) {
+            queries.add(ContactSearchIndex.joinTokens(ContactSearchIndex.getTokens(rawQuery)));
+        }
+
+        for(String previous : queries) {
+            for(String next : queries) {
+                if(previous.length() > 0 && next.startsWith(previous)) {
+                    assertTrue("'" + next + "' narrows '" + previous + "'", searchIndex(previous).containsAll(searchIndex(next)));
+                }
+            }
+        }
+        assertFalse(searchIndex("john").isEmpty());
+    }
+}
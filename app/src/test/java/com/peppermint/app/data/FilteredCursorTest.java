@@ -0,0 +1,106 @@
+package com.peppermint.app.data;
+
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.database.MatrixCursor;
+
+import com.peppermint.app.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests the chunked filtering of {@link FilteredCursor}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class FilteredCursorTest {
+
+    private static final int ROW_COUNT = 1000;
+
+    private static FilteredCursor createEvenCursor() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "_id" });
+        for(int i=0; i<ROW_COUNT; i++) {
+            cursor.addRow(new Object[] { i });
+        }
+
+        final FilteredCursor filteredCursor = new FilteredCursor(cursor);
+        filteredCursor.setFilter(new FilteredCursor.Filter() {
+            @Override
+            public boolean isValid(Cursor cursor) {
+                return cursor.getInt(0) % 2 == 0;
+            }
+        });
+        return filteredCursor;
+    }
+
+    @Test
+    public void testFullFilter() {
+        final FilteredCursor cursor = createEvenCursor();
+        cursor.filter();
+        assertTrue(cursor.isFiltered());
+        assertEquals(ROW_COUNT / 2, cursor.getCount());
+
+        int expected = 0;
+        while(cursor.moveToNext()) {
+            assertEquals(expected, cursor.getInt(0));
+            expected += 2;
+        }
+        assertTrue(cursor.isAfterLast());
+        cursor.close();
+    }
+
+    @Test
+    public void testChunkedFilter() {
+        final FilteredCursor cursor = createEvenCursor();
+        final int[] changes = new int[1];
+        cursor.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                changes[0]++;
+            }
+        });
+
+        assertFalse(cursor.filter(100));
+        assertEquals(50, cursor.getCount());
+        assertEquals(0, changes[0]);
+
+        // the current position is kept while filtering more rows
+        assertTrue(cursor.moveToPosition(10));
+        assertFalse(cursor.filter(100));
+        assertEquals(100, cursor.getCount());
+        assertEquals(1, changes[0]);
+        assertEquals(20, cursor.getInt(0));
+
+        while(!cursor.filter(100)) {
+            assertEquals(20, cursor.getInt(0));
+        }
+        assertEquals(ROW_COUNT / 2, cursor.getCount());
+        cursor.close();
+    }
+
+    @Test
+    public void testMoveDoesNotFilter() {
+        final FilteredCursor cursor = createEvenCursor();
+        assertFalse(cursor.filter(10));
+
+        // iterating only goes through the rows filtered so far
+        int count = 0;
+        cursor.moveToPosition(-1);
+        while(cursor.moveToNext()) {
+            assertEquals(count * 2, cursor.getInt(0));
+            count++;
+        }
+        assertEquals(5, count);
+        assertFalse(cursor.moveToPosition(5));
+        assertFalse(cursor.isFiltered());
+        assertEquals(5, cursor.getCount());
+        cursor.close();
+    }
+}
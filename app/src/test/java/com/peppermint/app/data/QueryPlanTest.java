@@ -0,0 +1,159 @@
+package com.peppermint.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import com.peppermint.app.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests that the filtered read queries of the data managers are able to use an index,
+ * i.e. that their query plan does not contain a full table or index scan. <br />
+ * Queries that return rows are captured through the {@link SQLiteDatabase.CursorFactory}.
+ * Single value queries (e.g. COUNT and SUM) never create a cursor, so their SQL constants are
+ * checked directly.<br />
+ * Queries that read every listed chat (i.e. all chats with contacts) may scan the table
+ * driving the query, but must use an index for every other table.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class QueryPlanTest {
+
+    // e.g. "SCAN TABLE tbl_message", "SCAN tbl_message AS author" (newer SQLite versions) or
+    // "SCAN TABLE tbl_chat USING COVERING INDEX idx_chat_last_message" (a full index scan)
+    private static final Pattern SCAN_PATTERN = Pattern.compile("^SCAN (?!CONSTANT ROW).*");
+    private static final Pattern INDEX_SCAN_PATTERN = Pattern.compile("^SCAN .* USING (COVERING )?INDEX .*");
+    // a scan of an index stops at the first row (e.g. to get the oldest timestamp)
+    private static final Pattern FIRST_ROW_PATTERN = Pattern.compile(".*\\sLIMIT 1;?$", Pattern.DOTALL);
+    private static final String QUERY_PREFIX = "SQLiteQuery: ";
+
+    private SQLiteDatabase mDatabase;
+    private boolean mRecording = false;
+    private final List<String> mQueries = new ArrayList<>();
+
+    @Before
+    public void init() {
+        mDatabase = SQLiteDatabase.create(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+                if(mRecording) {
+                    String sql = query.toString();
+                    mQueries.add(sql.startsWith(QUERY_PREFIX) ? sql.substring(QUERY_PREFIX.length()) : sql);
+                }
+                return new SQLiteCursor(masterQuery, editTable, query);
+            }
+        });
+        new DatabaseHelper(RuntimeEnvironment.application).onCreate(mDatabase);
+    }
+
+    @After
+    public void deinit() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void testQueryPlans() throws SQLException {
+        Recipient recipient = new Recipient(0, 1, 1, 1, "John Doe", "vnd.android.cursor.item/email_v2", "john@doe.com", null, "2016-04-01 10:00:00", true);
+        RecipientManager.insert(RuntimeEnvironment.application, mDatabase, recipient);
+
+        Chat chat = new Chat(0, "John Doe", "2016-04-01 10:00:00", recipient);
+        ChatManager.insert(mDatabase, chat);
+
+        Recording recording = new Recording("file://recording.m4a", 2000, 12f, false, Recording.CONTENT_TYPE_AUDIO);
+        recording.setRecordedTimestamp("2016-04-01 10:00:00");
+        RecordingManager.insert(mDatabase, recording);
+
+        Message message = new Message(recording.getId(), chat.getId());
+        message.setServerId("server_id");
+        message.setReceived(true);
+        message.setAuthorId(recipient.getId());
+        message.setRegistrationTimestamp("2016-04-01 10:00:00");
+        MessageManager.insert(mDatabase, message);
+
+        mRecording = true;
+
+        MessageManager.getByChatId(mDatabase, chat.getId()).close();
+        MessageManager.getMessagesQueued(mDatabase);
+        MessageManager.getMessageByIdOrServerId(mDatabase, message.getId(), message.getServerId(), true);
+        MessageManager.getMessagesByServerIds(mDatabase, Arrays.asList(message.getServerId(), "other_server_id"), true);
+        MessageManager.getUnopenedCountByChat(mDatabase, chat.getId());
+        MessageManager.getLastAutoPlayMessageIdByChat(mDatabase, chat.getId());
+
+        ChatManager.getChatById(mDatabase, chat.getId());
+        ChatManager.getOldestChatTimestamp(mDatabase);
+        ChatManager.getMainChatByDroidContactId(mDatabase, recipient.getDroidContactId());
+        ChatManager.getChatByRecipients(mDatabase, recipient);
+        ChatManager.getAll(mDatabase, true).close();
+
+        RecipientManager.getByChatId(mDatabase, chat.getId());
+        RecipientManager.getByViaAndMimetype(mDatabase, recipient.getVia(), recipient.getMimeType()).close();
+        RecipientManager.getByDroidIds(mDatabase, recipient.getDroidContactId(), recipient.getDroidContactRawId(), recipient.getDroidContactDataId()).close();
+
+        RecordingManager.getRecordingById(mDatabase, recording.getId());
+
+        final int filteredQueryCount = mQueries.size();
+        ChatManager.getAll(mDatabase, false).close();
+
+        mRecording = false;
+
+        final List<String> allChatsQueries = new ArrayList<>(mQueries.subList(filteredQueryCount, mQueries.size()));
+        mQueries.subList(filteredQueryCount, mQueries.size()).clear();
+        assertTrue("No queries were captured", allChatsQueries.size() > 0);
+        allChatsQueries.add(MessageManager.SQL_UNOPENED_COUNT);
+
+        assertTrue("No queries were captured", mQueries.size() > 0);
+
+        // single value queries
+        mQueries.add(MessageManager.SQL_UNOPENED_COUNT_BY_CHAT);
+        mQueries.add(MessageManager.SQL_CHAT_ID_BY_MESSAGE_ID);
+        mQueries.add(ChatManager.SQL_CHAT_COUNT_WITHOUT_RELATED);
+        mQueries.add(ChatManager.SQL_OLDEST_CHAT_TIMESTAMP);
+        mQueries.add(ChatManager.SQL_SUMMARY_DROID_CONTACT_IDS);
+        mQueries.add(ChatManager.SQL_SUMMARY_PEPPERMINT_CHAT_ID);
+
+        for(String sql : mQueries) {
+            assertNoFullScan(sql, false);
+        }
+        for(String sql : allChatsQueries) {
+            assertNoFullScan(sql, true);
+        }
+    }
+
+    private void assertNoFullScan(String sql, boolean allowDrivingTableScan) {
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = cursor.getColumnIndex("detail");
+            while(cursor.moveToNext()) {
+                String detail = cursor.getString(detailIndex);
+                if(allowDrivingTableScan && cursor.isFirst()) {
+                    continue;
+                }
+                if(SCAN_PATTERN.matcher(detail).matches() &&
+                        !(INDEX_SCAN_PATTERN.matcher(detail).matches() && FIRST_ROW_PATTERN.matcher(sql).matches())) {
+                    fail("Full scan (" + detail + ") in query: " + sql);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.peppermint.app.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Pure JVM microbenchmark for {@link AudioGainProcessor}.<br />
+ * Checks that processing a frame performs no allocations and stays well within the real-time
+ * budget of the recorder.
+ */
+public class AudioGainProcessorBenchmarkTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SIZE = 1024;
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 50000;
+    // under 1% of the time between two samples at 16 kHz (62.5 us), with plenty of margin for slow CI machines
+    private static final double MAX_NANOS_PER_SAMPLE = 500;
+
+    private static short[][] createFrames(int amount) {
+        final Random random = new Random(1234);
+        final short[][] frames = new short[amount][FRAME_SIZE];
+        for(int f=0; f<amount; f++) {
+            // quiet and loud frames, to exercise both attack and release
+            final int amplitude = f % 2 == 0 ? 2000 : 20000;
+            for(int i=0; i<FRAME_SIZE; i++) {
+                frames[f][i] = (short) (Math.sin(i / 8d) * amplitude + random.nextInt(200) - 100);
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    public void testOutput() {
+        final AudioGainProcessor processor = new AudioGainProcessor(SAMPLE_RATE);
+        final short[] samples = new short[FRAME_SIZE];
+        final byte[] output = new byte[FRAME_SIZE * 2];
+        for(int i=0; i<FRAME_SIZE; i++) {
+            samples[i] = (short) (i % 2 == 0 ? 1000 : -1000);
+        }
+
+        processor.process(samples, FRAME_SIZE / 2, output);
+        assertEquals(1000, processor.getRms());
+        assertEquals(1000, processor.getPeak());
+        assertTrue(processor.getGain() > 1f);
+
+        // the rest of the frame is silence
+        for(int j=FRAME_SIZE; j<output.length; j++) {
+            assertEquals(0, output[j]);
+        }
+
+        // little-endian samples, within the short range
+        for(int j=0; j<FRAME_SIZE; j+=2) {
+            final int sample = (output[j] & 0xFF) | (output[j + 1] << 8);
+            assertTrue(sample >= Short.MIN_VALUE && sample <= Short.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void testNoAllocationPerFrame() {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        final short[][] frames = createFrames(16);
+        final byte[] output = new byte[FRAME_SIZE * 2];
+        final AudioGainProcessor processor = new AudioGainProcessor(SAMPLE_RATE);
+
+        // warm up (lets the JIT compile the loop)
+        for(int f=0; f<WARMUP_FRAMES; f++) {
+            processor.process(frames[f % frames.length], FRAME_SIZE, output);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+        final long startNanos = System.nanoTime();
+        for(int f=0; f<MEASURED_FRAMES; f++) {
+            processor.process(frames[f % frames.length], FRAME_SIZE, output);
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        final double nanosPerSample = (double) elapsedNanos / ((long) MEASURED_FRAMES * FRAME_SIZE);
+
+        // tolerate the bookkeeping of the measurement itself, but not a single allocation per frame
+        assertTrue("Allocated " + allocated + " bytes in " + MEASURED_FRAMES + " frames", allocated < MEASURED_FRAMES);
+        assertTrue(String.format("Took %.3f ns/sample", nanosPerSample), nanosPerSample < MAX_NANOS_PER_SAMPLE);
+    }
+}
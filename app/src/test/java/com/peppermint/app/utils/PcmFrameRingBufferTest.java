@@ -0,0 +1,68 @@
+package com.peppermint.app.utils;
+
+import com.peppermint.app.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class PcmFrameRingBufferTest {
+
+    @Test
+    public void testReusesReleasedFrames() {
+        PcmFrameRingBuffer ring = new PcmFrameRingBuffer(2, 2, 16);
+        PcmFrameRingBuffer.Frame frame = ring.acquire();
+        assertEquals(1, ring.getFreeFrameCount());
+
+        // a consumer keeps the frame after the producer releases it
+        frame.retain();
+        frame.release();
+        assertEquals(1, ring.getFreeFrameCount());
+        frame.release();
+        assertEquals(2, ring.getFreeFrameCount());
+
+        ring.acquire();
+        ring.acquire();
+        assertEquals(2, ring.getFrameCount());
+        assertEquals(0, ring.getOverflowCount());
+    }
+
+    @Test
+    public void testGrowsWhenFramesAreHeldPastCapacity() {
+        PcmFrameRingBuffer ring = new PcmFrameRingBuffer(4, 10, 16);
+
+        // a slow consumer holds more frames than were allocated upfront
+        List<PcmFrameRingBuffer.Frame> held = new ArrayList<>();
+        for(int i=0; i<10; i++) {
+            held.add(ring.acquire());
+        }
+        assertEquals(10, ring.getFrameCount());
+        assertEquals(0, ring.getOverflowCount());
+
+        // past the max. frame count, temporary frames are used
+        PcmFrameRingBuffer.Frame overflow = ring.acquire();
+        assertEquals(1, ring.getOverflowCount());
+        overflow.release();
+        assertEquals(0, ring.getFreeFrameCount());
+
+        // grown frames return to the ring as well, so no more frames are allocated
+        for(PcmFrameRingBuffer.Frame frame : held) {
+            frame.release();
+        }
+        assertEquals(10, ring.getFreeFrameCount());
+
+        for(int i=0; i<10; i++) {
+            ring.acquire();
+        }
+        assertEquals(10, ring.getFrameCount());
+        assertEquals(1, ring.getOverflowCount());
+    }
+}
@@ -0,0 +1,95 @@
+package com.peppermint.app.utils;
+
+import com.peppermint.app.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class TimedLruCacheTest {
+
+    private static class TestCache extends TimedLruCache<String, String> {
+        private long mNow = 0;
+        private final List<String> mEvictedKeys = new ArrayList<>();
+
+        public TestCache(int maxSize, long timeToLiveMs) {
+            super(maxSize, timeToLiveMs);
+        }
+
+        @Override
+        protected long now() {
+            return mNow;
+        }
+
+        @Override
+        protected void entryEvicted(String key, String value) {
+            mEvictedKeys.add(key);
+        }
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        TestCache cache = new TestCache(2, 1000);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        // "a" becomes the most recently used
+        assertEquals("A", cache.get("a"));
+        cache.put("c", "C");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpires() {
+        TestCache cache = new TestCache(10, 1000);
+        cache.put("a", "A");
+        cache.mNow = 500;
+        cache.put("b", "B");
+
+        cache.mNow = 999;
+        assertEquals("A", cache.get("a"));
+
+        cache.mNow = 1000;
+        assertNull(cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertEquals(1, cache.getExpirationCount());
+
+        cache.mNow = 1500;
+        assertEquals(1, cache.trimExpired());
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getExpirationCount());
+    }
+
+    @Test
+    public void testNotifiesEvictions() {
+        TestCache cache = new TestCache(2, 1000);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.remove("b");
+        cache.put("c", "C");
+        cache.put("d", "D");
+
+        cache.mNow = 1000;
+        assertNull(cache.get("c"));
+        assertEquals(1, cache.trimExpired());
+
+        // explicitly removed entries are not notified
+        assertEquals(Arrays.asList("a", "c", "d"), cache.mEvictedKeys);
+    }
+}